@@ -0,0 +1,73 @@
+package edu.ohsu.cmp.fhirproxy.benchmark;
+
+import org.hl7.fhir.r4.model.*;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Builds search results shaped like those of a typical EHR: vital-sign Observations with codings, a reference range,
+ * and the meta, fullUrl and search mode an upstream server fills in.
+ */
+class BenchmarkData {
+    private static final String SERVER_URL = "https://fhir.example.org/r4";
+
+    static Bundle searchset(int entries) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        bundle.setTotal(entries);
+        bundle.addLink().setRelation(Bundle.LINK_SELF).setUrl(SERVER_URL + "/Observation?patient=123");
+        for (int i = 0; i < entries; i ++) {
+            Observation observation = observation("obs-" + i, i);
+            bundle.addEntry()
+                    .setFullUrl(SERVER_URL + "/Observation/" + observation.getIdPart())
+                    .setResource(observation)
+                    .getSearch().setMode(Bundle.SearchEntryMode.MATCH);
+        }
+        return bundle;
+    }
+
+    /**
+     * @return the pages of a search, each of pageSize entries, linked as an upstream server would link them
+     */
+    static List<Bundle> pages(int pages, int pageSize) {
+        List<Bundle> list = new ArrayList<>();
+        for (int p = 0; p < pages; p ++) {
+            Bundle page = searchset(pageSize);
+            page.setTotal(pages * pageSize);
+            if (p + 1 < pages) {
+                page.addLink().setRelation(Bundle.LINK_NEXT)
+                        .setUrl(SERVER_URL + "/Observation?patient=123&_offset=" + ((p + 1) * pageSize));
+            }
+            list.add(page);
+        }
+        return list;
+    }
+
+    private static Observation observation(String id, int i) {
+        Observation observation = new Observation();
+        observation.setId(id);
+        observation.getMeta().setVersionId("1").setLastUpdated(new Date(1700000000000L + i * 60000L));
+        observation.setStatus(Observation.ObservationStatus.FINAL);
+        observation.addCategory().addCoding()
+                .setSystem("http://terminology.hl7.org/CodeSystem/observation-category")
+                .setCode("vital-signs")
+                .setDisplay("Vital Signs");
+        observation.getCode()
+                .setText("Systolic blood pressure")
+                .addCoding().setSystem("http://loinc.org").setCode("8480-6").setDisplay("Systolic blood pressure");
+        observation.setSubject(new Reference("Patient/123").setDisplay("Jane Doe"));
+        observation.setEffective(new DateTimeType(new Date(1700000000000L + i * 60000L)));
+        observation.setValue(new Quantity()
+                .setValue(100 + i % 60)
+                .setUnit("mmHg")
+                .setSystem("http://unitsofmeasure.org")
+                .setCode("mm[Hg]"));
+        observation.addReferenceRange()
+                .setLow(new Quantity().setValue(90).setUnit("mmHg"))
+                .setHigh(new Quantity().setValue(120).setUnit("mmHg"))
+                .setText("normal");
+        return observation;
+    }
+}
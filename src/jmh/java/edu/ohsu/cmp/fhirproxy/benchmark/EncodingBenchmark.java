@@ -0,0 +1,79 @@
+package edu.ohsu.cmp.fhirproxy.benchmark;
+
+import ca.uhn.fhir.context.FhirContext;
+import edu.ohsu.cmp.fhirproxy.model.FhirFormat;
+import edu.ohsu.cmp.fhirproxy.util.FhirUtil;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of search result Bundles, both to a String (FhirUtil.toJson, toXml and toRDF) and streamed as a response
+ * body is (FhirUtil.toResponseBody, which ProxyController's encodeResponse delegates to).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EncodingBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    private int entries;
+
+    private FhirContext fhirContext;
+    private Bundle bundle;
+
+    @Setup
+    public void setup() {
+        fhirContext = FhirContext.forR4();
+        bundle = BenchmarkData.searchset(entries);
+
+        // the first encoding with a context scans the model, which isn't what's being measured
+        FhirUtil.toJson(fhirContext, BenchmarkData.searchset(1), false);
+    }
+
+    @Benchmark
+    public String toJson() {
+        return FhirUtil.toJson(fhirContext, bundle, false);
+    }
+
+    @Benchmark
+    public String toXml() {
+        return FhirUtil.toXml(fhirContext, bundle, false);
+    }
+
+    @Benchmark
+    public String toRDF() {
+        return FhirUtil.toRDF(fhirContext, bundle, false);
+    }
+
+    @Benchmark
+    public long encodeResponseJson() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        FhirUtil.toResponseBody(fhirContext, bundle, FhirFormat.JSON, false).writeTo(out);
+        return out.count;
+    }
+
+    @Benchmark
+    public long encodeResponseXml() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        FhirUtil.toResponseBody(fhirContext, bundle, FhirFormat.XML, false).writeTo(out);
+        return out.count;
+    }
+
+    // stands in for the servlet response; counting keeps the writes from being optimized away
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count ++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
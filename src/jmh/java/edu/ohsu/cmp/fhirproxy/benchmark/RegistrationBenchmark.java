@@ -0,0 +1,81 @@
+package edu.ohsu.cmp.fhirproxy.benchmark;
+
+import edu.ohsu.cmp.fhirproxy.exception.ClientInfoNotFoundException;
+import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import edu.ohsu.cmp.fhirproxy.model.Registration;
+import edu.ohsu.cmp.fhirproxy.service.InMemoryRegistrationStore;
+import edu.ohsu.cmp.fhirproxy.service.MetricsService;
+import edu.ohsu.cmp.fhirproxy.service.RegistrationService;
+import edu.ohsu.cmp.fhirproxy.util.AuthUtil;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RegistrationService under contention, as every proxied request resolves its access token with get, and clients
+ * re-register (put) whenever they launch.  Runs with 8 threads against the in-memory store, with the journal off.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(8)
+public class RegistrationBenchmark {
+    private static final int CLIENTS = 1000;
+
+    private RegistrationService registrationService;
+    private ClientInfo[] clients;
+    private String[] authorizations;
+
+    @Setup
+    public void setup() throws IOException {
+        MetricsService metricsService = new MetricsService();
+        ReflectionTestUtils.setField(metricsService, "registry", new SimpleMeterRegistry());
+
+        registrationService = new RegistrationService();
+        ReflectionTestUtils.setField(registrationService, "configuredSalt", "benchmark");
+        ReflectionTestUtils.setField(registrationService, "journalEnabled", false);
+        ReflectionTestUtils.setField(registrationService, "store", new InMemoryRegistrationStore());
+        ReflectionTestUtils.setField(registrationService, "metricsService", metricsService);
+        registrationService.init();
+
+        long exp = System.currentTimeMillis() / 1000 + TimeUnit.DAYS.toSeconds(1);
+        String payload = Base64.getEncoder().encodeToString(("{\"exp\":" + exp + "}").getBytes(StandardCharsets.UTF_8));
+
+        clients = new ClientInfo[CLIENTS];
+        authorizations = new String[CLIENTS];
+        for (int i = 0; i < CLIENTS; i ++) {
+            clients[i] = new ClientInfo("client-" + i, "https://fhir.example.org/r4", "header." + payload + ".signature",
+                    String.valueOf(i), "user-" + i);
+            Registration registration = registrationService.put(clients[i]);
+            authorizations[i] = "Bearer " + registration.getAccessToken();
+        }
+    }
+
+    /**
+     * Re-registration of an existing client, which derives its access token and finds it already registered
+     */
+    @Benchmark
+    public Registration put() {
+        return registrationService.put(clients[ThreadLocalRandom.current().nextInt(CLIENTS)]);
+    }
+
+    /**
+     * What every proxied request does first: take the access token from its Authorization header and resolve it
+     */
+    @Benchmark
+    public ClientInfo get() throws ClientInfoNotFoundException {
+        String authorization = authorizations[ThreadLocalRandom.current().nextInt(CLIENTS)];
+        return registrationService.get(AuthUtil.extractBearerToken(authorization));
+    }
+
+    @Benchmark
+    public String extractBearerToken() {
+        return AuthUtil.extractBearerToken(authorizations[ThreadLocalRandom.current().nextInt(CLIENTS)]);
+    }
+}
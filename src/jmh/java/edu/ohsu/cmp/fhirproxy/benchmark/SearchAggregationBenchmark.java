@@ -0,0 +1,62 @@
+package edu.ohsu.cmp.fhirproxy.benchmark;
+
+import edu.ohsu.cmp.fhirproxy.service.ProxyService;
+import edu.ohsu.cmp.fhirproxy.service.SearchPager;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The merging of search pages into a single Bundle that ProxyService.search does, over pages already fetched, so
+ * that only the proxy's own work is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SearchAggregationBenchmark {
+    @Param({"1", "10", "100"})
+    private int pages;
+
+    @Param({"50"})
+    private int pageSize;
+
+    private List<Bundle> fetched;
+
+    @Setup
+    public void setup() {
+        fetched = BenchmarkData.pages(pages, pageSize);
+    }
+
+    @Benchmark
+    public Bundle aggregate() {
+        return ProxyService.aggregate(new FetchedSearchPager(fetched));
+    }
+
+    private static class FetchedSearchPager implements SearchPager {
+        private final Iterator<Bundle> iterator;
+        private int pagesFetched = 0;
+
+        FetchedSearchPager(List<Bundle> pages) {
+            this.iterator = pages.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public Bundle next() {
+            pagesFetched ++;
+            return iterator.next();
+        }
+
+        @Override
+        public int getPagesFetched() {
+            return pagesFetched;
+        }
+    }
+}
@@ -1,37 +1,32 @@
 package edu.ohsu.cmp.fhirproxy;
 
+import edu.ohsu.cmp.fhirproxy.service.MetricsService;
 import edu.ohsu.cmp.fhirproxy.service.RegistrationService;
-import org.quartz.Job;
-import org.quartz.JobDataMap;
-import org.quartz.JobExecutionContext;
-import org.quartz.JobExecutionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.context.ApplicationContext;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+/**
+ * Periodically sweeps expired client registrations out of the RegistrationService
+ */
 @Component
-public class DeleteStaleClientInfoJob implements Job {
+public class DeleteStaleClientInfoJob {
     private static final Logger logger = LoggerFactory.getLogger(DeleteStaleClientInfoJob.class);
 
-    public static final String JOBDATA_APPLICATIONCONTEXT = "applicationContext";
-    public static final String JOBDATA_CACHEKEY = "cacheKey";
+    @Autowired
+    private RegistrationService registrationService;
 
-    @Override
-    public void execute(JobExecutionContext jobExecutionContext) throws JobExecutionException {
-        String name = jobExecutionContext.getJobDetail().getKey().getName();
+    @Autowired
+    private MetricsService metricsService;
 
-        logger.info("running job {} fired at {}", name, jobExecutionContext.getFireTime());
-
-        JobDataMap jobDataMap = jobExecutionContext.getMergedJobDataMap();
-        ApplicationContext ctx = (ApplicationContext) jobDataMap.get(JOBDATA_APPLICATIONCONTEXT);
-        String cacheKey = jobDataMap.getString(JOBDATA_CACHEKEY);
-
-        RegistrationService registrationService = ctx.getBean(RegistrationService.class);
-        if (registrationService.delete(cacheKey)) {
-            logger.info("client info deleted for job: " + name);
-        } else {
-            logger.warn("client info not found for job: " + name + ", nothing to delete.  ???");
+    @Scheduled(fixedDelayString = "${registration.sweep-interval:1000}")
+    public void execute() {
+        int deleted = metricsService.registrationSweepTimer()
+                .record(() -> registrationService.deleteExpired(System.currentTimeMillis()));
+        if (deleted > 0) {
+            logger.info("deleted " + deleted + " stale client info registration(s)");
         }
     }
 }
@@ -0,0 +1,85 @@
+package edu.ohsu.cmp.fhirproxy;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnThreading;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * When running on virtual threads, watches for virtual threads that block while pinned to their carrier thread, e.g.
+ * inside a synchronized block, and logs where it happened.  Pinning while waiting on a slow upstream would tie up a
+ * carrier thread for the whole wait, and enough of that would stall every virtual thread in the process.
+ *
+ * Apache HttpClient 4.x waits for a pooled connection inside a synchronized block; FhirConfig gates the pool with
+ * PermitGatedConnectionManager on virtual threads so that an exhausted pool doesn't show up here.
+ */
+@Component
+@ConditionalOnThreading(Threading.VIRTUAL)
+@ConditionalOnProperty(name = "virtual-threads.pinning-monitor.enabled", havingValue = "true", matchIfMissing = true)
+public class VirtualThreadPinningMonitor {
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreadPinningMonitor.class);
+    private static final String EVENT = "jdk.VirtualThreadPinned";
+    private static final int MAX_FRAMES = 12;
+
+    @Value("${virtual-threads.pinning-monitor.threshold:20}")
+    private Long thresholdMillis;
+
+    private final AtomicLong pinnedCount = new AtomicLong();
+    private RecordingStream stream;
+
+    @PostConstruct
+    public void start() {
+        stream = new RecordingStream();
+        stream.enable(EVENT).withThreshold(Duration.ofMillis(thresholdMillis)).withStackTrace();
+        stream.onEvent(EVENT, this::onPinned);
+        stream.startAsync();
+        logger.info("watching for virtual threads pinned for longer than " + thresholdMillis + " ms");
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    /**
+     * @return the number of pinning events seen since startup
+     */
+    public long getPinnedCount() {
+        return pinnedCount.get();
+    }
+
+    private void onPinned(RecordedEvent event) {
+        pinnedCount.incrementAndGet();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("virtual thread pinned to its carrier for ").append(event.getDuration().toMillis()).append(" ms");
+        RecordedStackTrace stackTrace = event.getStackTrace();
+        if (stackTrace != null) {
+            int n = 0;
+            for (RecordedFrame frame : stackTrace.getFrames()) {
+                if (n++ == MAX_FRAMES) {
+                    sb.append("\n\t...");
+                    break;
+                }
+                sb.append("\n\tat ").append(frame.getMethod().getType().getName())
+                        .append('.').append(frame.getMethod().getName())
+                        .append(':').append(frame.getLineNumber());
+            }
+        }
+        logger.warn(sb.toString());
+    }
+}
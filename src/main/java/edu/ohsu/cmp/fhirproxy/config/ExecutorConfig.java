@@ -0,0 +1,113 @@
+package edu.ohsu.cmp.fhirproxy.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnThreading;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+@Configuration
+public class ExecutorConfig {
+
+    @Value("${upstream.executor.pool-size:32}")
+    private Integer poolSize;
+
+    @Value("${upstream.executor.queue-capacity:1000}")
+    private Integer queueCapacity;
+
+    @Value("${aggregate.executor.pool-size:32}")
+    private Integer aggregatePoolSize;
+
+    @Value("${aggregate.executor.queue-capacity:1000}")
+    private Integer aggregateQueueCapacity;
+
+    @Value("${proxy.async.cpu-pool-size:0}")
+    private Integer cpuPoolSize;
+
+    @Value("${proxy.async.cpu-queue-capacity:10000}")
+    private Integer cpuQueueCapacity;
+
+    /**
+     * Bounded pool for upstream requests made on behalf of a request thread, e.g. prefetching search pages.  When
+     * the pool and its queue are full, the submitting thread runs the task itself rather than failing.
+     * @return
+     */
+    @Bean
+    @ConditionalOnThreading(Threading.PLATFORM)
+    public AsyncTaskExecutor upstreamExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(poolSize);
+        executor.setMaxPoolSize(poolSize);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("upstream-");
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.initialize();
+        return executor;
+    }
+
+    /**
+     * When spring.threads.virtual.enabled=true, upstream requests made on behalf of a request thread each get a
+     * virtual thread of their own, as request threads do.  Concurrent upstream calls are then bounded by the upstream
+     * connection pool (upstream.pool.*) and by the per-search limits, rather than by a thread count.
+     * @return
+     */
+    @Bean("upstreamExecutor")
+    @ConditionalOnThreading(Threading.VIRTUAL)
+    public AsyncTaskExecutor upstreamVirtualExecutor() {
+        SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor("upstream-");
+        executor.setVirtualThreads(true);
+        return executor;
+    }
+
+    /**
+     * Bounded pool for the independent operations that make up one aggregate request, e.g. the entries of a batch.
+     * These operations wait on tasks of their own in upstreamExecutor, so they must not run there: a pool full of
+     * waiting operations would leave nothing to run the tasks they wait on.
+     * @return
+     */
+    @Bean
+    @ConditionalOnThreading(Threading.PLATFORM)
+    public AsyncTaskExecutor aggregateExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(aggregatePoolSize);
+        executor.setMaxPoolSize(aggregatePoolSize);
+        executor.setQueueCapacity(aggregateQueueCapacity);
+        executor.setThreadNamePrefix("aggregate-");
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.initialize();
+        return executor;
+    }
+
+    @Bean("aggregateExecutor")
+    @ConditionalOnThreading(Threading.VIRTUAL)
+    public AsyncTaskExecutor aggregateVirtualExecutor() {
+        SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor("aggregate-");
+        executor.setVirtualThreads(true);
+        return executor;
+    }
+
+    /**
+     * Bounded pool on which the asynchronous proxy path parses upstream responses and encodes its own, sized to the
+     * number of CPUs unless proxy.async.cpu-pool-size says otherwise.  Nothing that blocks on I/O should run here.
+     * @return
+     */
+    @Bean
+    @ConditionalOnProperty(name = "proxy.async.enabled", havingValue = "true")
+    public AsyncTaskExecutor fhirCpuExecutor() {
+        int size = cpuPoolSize > 0 ? cpuPoolSize : Runtime.getRuntime().availableProcessors();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(size);
+        executor.setMaxPoolSize(size);
+        executor.setQueueCapacity(cpuQueueCapacity);
+        executor.setThreadNamePrefix("fhir-cpu-");
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.initialize();
+        return executor;
+    }
+}
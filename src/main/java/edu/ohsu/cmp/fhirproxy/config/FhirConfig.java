@@ -0,0 +1,205 @@
+package edu.ohsu.cmp.fhirproxy.config;
+
+import ca.uhn.fhir.context.FhirContext;
+import edu.ohsu.cmp.fhirproxy.service.FairQueueService;
+import edu.ohsu.cmp.fhirproxy.service.MetricsService;
+import edu.ohsu.cmp.fhirproxy.service.UpstreamGuardService;
+import edu.ohsu.cmp.fhirproxy.service.UpstreamLatencyService;
+import edu.ohsu.cmp.fhirproxy.service.UpstreamRecorder;
+import edu.ohsu.cmp.fhirproxy.util.GuardedHttpClientBuilder;
+import edu.ohsu.cmp.fhirproxy.util.PermitGatedConnectionManager;
+import edu.ohsu.cmp.fhirproxy.util.RecordingHttpRequestExecutor;
+import edu.ohsu.cmp.fhirproxy.util.TimedHttpRequestExecutor;
+import edu.ohsu.cmp.fhirproxy.util.UpstreamReplayServer;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.routing.HttpRoutePlanner;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+import java.util.concurrent.TimeUnit;
+
+@Configuration
+public class FhirConfig {
+
+    @Value("${socket.timeout:300000}")
+    private Integer socketTimeout;
+
+    @Value("${upstream.connect.timeout:10000}")
+    private Integer connectTimeout;
+
+    @Value("${upstream.pool.max-total:200}")
+    private Integer poolMaxTotal;
+
+    @Value("${upstream.pool.max-per-route:50}")
+    private Integer poolMaxPerRoute;
+
+    @Value("${upstream.pool.idle-timeout:60000}")
+    private Long poolIdleTimeout;
+
+    @Value("${upstream.keep-alive:30000}")
+    private Long keepAlive;
+
+    @Value("${upstream.compression.enabled:true}")
+    private Boolean compressionEnabled;
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private MetricsService metricsService;
+
+    @Autowired
+    private UpstreamRecorder upstreamRecorder;
+
+    @Autowired
+    private UpstreamGuardService upstreamGuardService;
+
+    @Autowired
+    private UpstreamLatencyService upstreamLatencyService;
+
+    @Autowired
+    private FairQueueService fairQueueService;
+
+    @Autowired(required = false)
+    private UpstreamReplayServer upstreamReplayServer;
+
+    /**
+     * FhirContext is expensive to build (it scans the R4 model on first use) but is thread-safe once built, so the
+     * application shares a single instance rather than calling FhirContext.forR4() per request
+     * @return
+     */
+    @Bean
+    public FhirContext fhirContext(@Qualifier("upstreamHttpClient") CloseableHttpClient upstreamHttpClient) {
+        FhirContext ctx = FhirContext.forR4();
+        ctx.getRestfulClientFactory().setSocketTimeout(socketTimeout);
+        ctx.getRestfulClientFactory().setHttpClient(upstreamHttpClient);
+        return ctx;
+    }
+
+    /**
+     * Pool of upstream connections, shared by every HTTP client that talks to upstream servers.  Connections are
+     * pooled per route (i.e. per upstream host).  On virtual threads, callers wait for a free connection outside the
+     * pool, so that the wait doesn't pin their carrier.
+     * @return
+     */
+    @Bean
+    public HttpClientConnectionManager upstreamConnectionManager() {
+        PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager();
+        pool.setMaxTotal(poolMaxTotal);
+        pool.setDefaultMaxPerRoute(poolMaxPerRoute);
+
+        return Threading.VIRTUAL.isActive(environment) ?
+                new PermitGatedConnectionManager(pool, poolMaxTotal, poolMaxPerRoute) :
+                pool;
+    }
+
+    /**
+     * HTTP client shared by every upstream FHIR client.  Connections are kept alive between requests, and closed by
+     * a background evictor once they have been idle too long.  Every request is timed, by upstream host and status,
+     * and recorded if upstream.record.enabled.  Requests are admitted by each upstream server's UpstreamGuard (see
+     * UpstreamGuardService), and given socket timeouts adapted to the server's recent latencies (see
+     * UpstreamLatencyService).  Once the proxy is saturated, requests wait their registration's turn (see
+     * FairQueueService).  This client owns the connection pool.
+     * If upstream.compression.enabled, requests carry Accept-Encoding: gzip, and compressed responses are
+     * decompressed as they are read.
+     * @return
+     */
+    @Bean(destroyMethod = "close")
+    public CloseableHttpClient upstreamHttpClient(HttpClientConnectionManager upstreamConnectionManager) {
+        HttpClientBuilder builder = new GuardedHttpClientBuilder(upstreamGuardService, upstreamLatencyService,
+                fairQueueService)
+                .setConnectionManager(upstreamConnectionManager)
+                .setRequestExecutor(requestExecutor())
+                .setDefaultRequestConfig(requestConfig())
+                .setKeepAliveStrategy(this::keepAliveDuration)
+                .evictExpiredConnections()
+                .evictIdleConnections(poolIdleTimeout.longValue(), TimeUnit.MILLISECONDS);
+
+        if (upstreamReplayServer != null) {
+            builder.setRoutePlanner(replayRoutePlanner());
+        }
+
+        if (compressionEnabled) {
+            // the default Accept-Encoding also offers deflate, which servers implement inconsistently
+            builder.addInterceptorFirst((HttpRequestInterceptor) (request, context) -> {
+                if ( ! request.containsHeader(HttpHeaders.ACCEPT_ENCODING) ) {
+                    request.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+                }
+            });
+
+        } else {
+            builder.disableContentCompression();
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * HTTP client for relaying upstream responses verbatim (see RelayService).  It shares the upstream connection
+     * pool, but leaves response bodies as the upstream server encoded them rather than decompressing them.
+     * @return
+     */
+    @Bean(destroyMethod = "close")
+    public CloseableHttpClient relayHttpClient(HttpClientConnectionManager upstreamConnectionManager) {
+        HttpClientBuilder builder = new GuardedHttpClientBuilder(upstreamGuardService, upstreamLatencyService,
+                fairQueueService)
+                .setConnectionManager(upstreamConnectionManager)
+                .setConnectionManagerShared(true)
+                .setRequestExecutor(requestExecutor())
+                .setDefaultRequestConfig(requestConfig())
+                .setKeepAliveStrategy(this::keepAliveDuration)
+                .disableContentCompression();
+
+        if (upstreamReplayServer != null) {
+            builder.setRoutePlanner(replayRoutePlanner());
+        }
+
+        return builder.build();
+    }
+
+    private HttpRequestExecutor requestExecutor() {
+        return upstreamRecorder.isEnabled() ?
+                new RecordingHttpRequestExecutor(metricsService, upstreamRecorder) :
+                new TimedHttpRequestExecutor(metricsService);
+    }
+
+    /**
+     * Route every request to the replay server.  The request keeps its Host header, which is how the replay server
+     * tells the recorded upstream servers apart.
+     */
+    private HttpRoutePlanner replayRoutePlanner() {
+        HttpRoute route = new HttpRoute(new HttpHost("localhost", upstreamReplayServer.getPort(), "http"));
+        return (target, request, context) -> route;
+    }
+
+    private RequestConfig requestConfig() {
+        return RequestConfig.custom()
+                .setSocketTimeout(socketTimeout)
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .build();
+    }
+
+    private long keepAliveDuration(HttpResponse response, HttpContext context) {
+        // honor a shorter Keep-Alive timeout advertised by the upstream server
+        long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+        return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAlive) : keepAlive;
+    }
+}
@@ -0,0 +1,97 @@
+package edu.ohsu.cmp.fhirproxy.config;
+
+import edu.ohsu.cmp.fhirproxy.model.FhirFormat;
+import edu.ohsu.cmp.fhirproxy.model.FhirResponseBody;
+import edu.ohsu.cmp.fhirproxy.service.MetricsService;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Writes FhirResponseBody instances directly to the response stream.  The Content-Type is chosen by the controller,
+ * so this converter accepts any media type.  The size of each body, and the time taken to encode and write it, are
+ * recorded by format.
+ */
+public class FhirResponseBodyMessageConverter extends AbstractHttpMessageConverter<FhirResponseBody> {
+    private static final Map<FhirFormat, MediaType> FORMAT_MEDIA_TYPES = new EnumMap<>(FhirFormat.class);
+    static {
+        for (FhirFormat format : FhirFormat.values()) {
+            FORMAT_MEDIA_TYPES.put(format, MediaType.parseMediaType(format.getContentType()));
+        }
+    }
+
+    private final MetricsService metricsService;
+
+    public FhirResponseBodyMessageConverter(MetricsService metricsService) {
+        super(MediaType.ALL);
+        this.metricsService = metricsService;
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return FhirResponseBody.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    protected boolean canRead(MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected FhirResponseBody readInternal(Class<? extends FhirResponseBody> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("reading " + clazz.getSimpleName() + " is not supported", inputMessage);
+    }
+
+    @Override
+    protected void writeInternal(FhirResponseBody body, HttpOutputMessage outputMessage) throws IOException {
+        long start = System.nanoTime();
+        CountingOutputStream out = new CountingOutputStream(outputMessage.getBody());
+        try {
+            body.writeTo(out);
+
+        } finally {
+            metricsService.recordResponse(formatTag(outputMessage.getHeaders().getContentType()), out.count,
+                    System.nanoTime() - start);
+        }
+    }
+
+    private static String formatTag(MediaType contentType) {
+        if (contentType == null) {
+            return "other";
+        }
+        for (Map.Entry<FhirFormat, MediaType> entry : FORMAT_MEDIA_TYPES.entrySet()) {
+            if (contentType.isCompatibleWith(entry.getValue())) {
+                return entry.getKey().name().toLowerCase();
+            }
+        }
+        return "other";
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package edu.ohsu.cmp.fhirproxy.config;
+
+import ca.uhn.fhir.context.FhirContext;
+import edu.ohsu.cmp.fhirproxy.exception.ClientInfoNotFoundException;
+import edu.ohsu.cmp.fhirproxy.exception.RateLimitExceededException;
+import edu.ohsu.cmp.fhirproxy.exception.UpstreamUnavailableException;
+import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import edu.ohsu.cmp.fhirproxy.model.FhirFormat;
+import edu.ohsu.cmp.fhirproxy.service.RateLimitService;
+import edu.ohsu.cmp.fhirproxy.service.RegistrationService;
+import edu.ohsu.cmp.fhirproxy.util.AuthUtil;
+import edu.ohsu.cmp.fhirproxy.util.FhirUtil;
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Applies RateLimitService to proxied requests before they reach a controller.  A request over a limit gets 429 Too
+ * Many Requests, with a Retry-After header and an OperationOutcome in the requested _format.  The access token's limit
+ * is applied before its registration is looked up, and the client's after; requests within the access token's limit
+ * but without a valid registration are let through, for the controller to refuse.
+ */
+public class RateLimitInterceptor implements HandlerInterceptor {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final String PARAM_FORMAT = "_format";
+
+    private final RateLimitService rateLimitService;
+    private final RegistrationService registrationService;
+    private final FhirContext fhirContext;
+
+    public RateLimitInterceptor(RateLimitService rateLimitService, RegistrationService registrationService,
+                                FhirContext fhirContext) {
+        this.rateLimitService = rateLimitService;
+        this.registrationService = registrationService;
+        this.fhirContext = fhirContext;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler)
+            throws Exception {
+        // an async request's result is dispatched back through here, and was already counted on the way in
+        if ( ! rateLimitService.isEnabled() || request.getDispatcherType() == DispatcherType.ASYNC ) {
+            return true;
+        }
+
+        String accessToken;
+        try {
+            accessToken = AuthUtil.extractBearerToken(request.getHeader(HttpHeaders.AUTHORIZATION));
+
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+
+        try {
+            rateLimitService.acquire(accessToken);
+
+            ClientInfo clientInfo;
+            try {
+                clientInfo = registrationService.get(accessToken);
+
+            } catch (ClientInfoNotFoundException e) {
+                return true;
+            }
+
+            rateLimitService.acquire(clientInfo);
+            return true;
+
+        } catch (RateLimitExceededException e) {
+            logger.warn(e.getMessage());
+
+            FhirFormat format = FhirFormat.fromParam(request.getParameter(PARAM_FORMAT));
+            response.setStatus(e.getStatusCode());
+            response.setHeader(UpstreamUnavailableException.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()));
+            response.setContentType(format.getContentType());
+            response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+            FhirUtil.encode(fhirContext, e.getOperationOutcome(), format, false, response.getWriter());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package edu.ohsu.cmp.fhirproxy.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.ohsu.cmp.fhirproxy.service.InMemoryRegistrationStore;
+import edu.ohsu.cmp.fhirproxy.service.ReplicatedRegistrationStore;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+import java.util.List;
+
+@Configuration
+public class RegistrationStoreConfig {
+
+    @Value("${registration.replication.peers:}")
+    private List<String> peers;
+
+    @Value("${registration.replication.secret:}")
+    private String secret;
+
+    @Value("${registration.replication.timeout:2000}")
+    private Long timeout;
+
+    @Value("${registration.replication.negative-ttl:5000}")
+    private Long negativeTtl;
+
+    /**
+     * Registrations held only by this instance.  This is the default.
+     * @return
+     */
+    @Bean
+    @ConditionalOnProperty(name = "registration.store", havingValue = "memory", matchIfMissing = true)
+    public InMemoryRegistrationStore inMemoryRegistrationStore() {
+        return new InMemoryRegistrationStore();
+    }
+
+    /**
+     * Registrations shared with the instances listed in registration.replication.peers
+     * @param objectMapper
+     * @return
+     */
+    @Bean(initMethod = "start", destroyMethod = "close")
+    @ConditionalOnProperty(name = "registration.store", havingValue = "replicated")
+    public ReplicatedRegistrationStore replicatedRegistrationStore(ObjectMapper objectMapper) {
+        return new ReplicatedRegistrationStore(peers, secret, Duration.ofMillis(timeout),
+                Duration.ofMillis(negativeTtl), objectMapper);
+    }
+}
@@ -0,0 +1,35 @@
+package edu.ohsu.cmp.fhirproxy.config;
+
+import edu.ohsu.cmp.fhirproxy.util.UpstreamReplayServer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+@Configuration
+public class ReplayConfig {
+
+    @Value("${upstream.replay.path:recordings}")
+    private String path;
+
+    @Value("${upstream.replay.port:0}")
+    private Integer port;
+
+    @Value("${upstream.replay.speedup:1.0}")
+    private Double speedup;
+
+    /**
+     * Serves the traffic recorded in upstream.replay.path.  When this bean exists, the upstream HTTP clients send
+     * every request to it instead of to the upstream server the request is addressed to.
+     * @return
+     * @throws IOException
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "upstream.replay.enabled", havingValue = "true")
+    public UpstreamReplayServer upstreamReplayServer() throws IOException {
+        return new UpstreamReplayServer(Paths.get(path), port, speedup);
+    }
+}
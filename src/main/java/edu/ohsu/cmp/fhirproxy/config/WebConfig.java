@@ -0,0 +1,40 @@
+package edu.ohsu.cmp.fhirproxy.config;
+
+import ca.uhn.fhir.context.FhirContext;
+import edu.ohsu.cmp.fhirproxy.service.MetricsService;
+import edu.ohsu.cmp.fhirproxy.service.RateLimitService;
+import edu.ohsu.cmp.fhirproxy.service.RegistrationService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.util.List;
+
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+
+    @Autowired
+    private MetricsService metricsService;
+
+    @Autowired
+    private RateLimitService rateLimitService;
+
+    @Autowired
+    private RegistrationService registrationService;
+
+    @Autowired
+    private FhirContext fhirContext;
+
+    @Override
+    public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+        converters.add(0, new FhirResponseBodyMessageConverter(metricsService));
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(new RateLimitInterceptor(rateLimitService, registrationService, fhirContext))
+                .addPathPatterns("/proxy/**", "/async/proxy/**");
+    }
+}
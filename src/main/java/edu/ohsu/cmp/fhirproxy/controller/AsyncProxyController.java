@@ -0,0 +1,242 @@
+package edu.ohsu.cmp.fhirproxy.controller;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import edu.ohsu.cmp.fhirproxy.exception.ClientInfoNotFoundException;
+import edu.ohsu.cmp.fhirproxy.exception.UpstreamUnavailableException;
+import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import edu.ohsu.cmp.fhirproxy.model.FhirFormat;
+import edu.ohsu.cmp.fhirproxy.model.FhirResponseBody;
+import edu.ohsu.cmp.fhirproxy.service.AsyncProxyService;
+import edu.ohsu.cmp.fhirproxy.service.RegistrationService;
+import edu.ohsu.cmp.fhirproxy.util.AuthUtil;
+import edu.ohsu.cmp.fhirproxy.util.FhirUtil;
+import edu.ohsu.cmp.fhirproxy.util.UpstreamErrorUtil;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Asynchronous variant of ProxyController's read, vread and search endpoints, enabled by proxy.async.enabled.  Each
+ * endpoint returns as soon as its upstream request has been sent, releasing the request thread; the response is
+ * completed when the upstream response has been parsed and re-encoded on the fhirCpuExecutor pool.  Resource caching
+ * and conditional reads remain features of the blocking endpoints.
+ */
+@Controller
+@ConditionalOnProperty(name = "proxy.async.enabled", havingValue = "true")
+@CrossOrigin(origins = "*", allowedHeaders = "*")
+@RequestMapping("/async/proxy")
+public class AsyncProxyController {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final String REQUEST_HEADER_PAGE_LIMIT = "X-Page-Limit";
+    private static final String PARAM_FORMAT = "_format";
+    private static final String PARAM_PRETTY = "_pretty";
+
+    @Autowired
+    private FhirContext fhirContext;
+
+    @Autowired
+    private RegistrationService registrationService;
+
+    @Autowired
+    private AsyncProxyService asyncProxyService;
+
+    @Autowired
+    private AsyncTaskExecutor fhirCpuExecutor;
+
+    /**
+     * Read a resource
+     * Implements https://www.hl7.org/fhir/R4/http.html#read
+     * @param authorization
+     * @param resourceType
+     * @param id
+     * @param params
+     * @return
+     */
+    @GetMapping("/{resourceType}/{id}")
+    public CompletableFuture<ResponseEntity<FhirResponseBody>> read(@RequestHeader(HttpHeaders.AUTHORIZATION) String authorization,
+                                                                    @PathVariable String resourceType,
+                                                                    @PathVariable String id,
+                                                                    @RequestParam Map<String,String> params) {
+        try {
+            ClientInfo clientInfo = registrationService.get(AuthUtil.extractBearerToken(authorization));
+            return respond(asyncProxyService.read(clientInfo, resourceType, id), params);
+
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(errorResponse(e, authorization, params));
+        }
+    }
+
+    /**
+     * Read a specific version of a resource
+     * Implements https://www.hl7.org/fhir/R4/http.html#vread
+     * @param authorization
+     * @param resourceType
+     * @param id
+     * @param vid
+     * @param params
+     * @return
+     */
+    @GetMapping("/{resourceType}/{id}/_history/{vid}")
+    public CompletableFuture<ResponseEntity<FhirResponseBody>> vread(@RequestHeader(HttpHeaders.AUTHORIZATION) String authorization,
+                                                                     @PathVariable String resourceType,
+                                                                     @PathVariable String id,
+                                                                     @PathVariable String vid,
+                                                                     @RequestParam Map<String,String> params) {
+        try {
+            ClientInfo clientInfo = registrationService.get(AuthUtil.extractBearerToken(authorization));
+            return respond(asyncProxyService.vread(clientInfo, resourceType, id, vid), params);
+
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(errorResponse(e, authorization, params));
+        }
+    }
+
+    /**
+     * Search for resources - GET strategy
+     * Implements https://www.hl7.org/fhir/R4/http.html#search
+     * @param authorization
+     * @param pageLimit
+     * @param resourceType
+     * @param params
+     * @return
+     */
+    @GetMapping("/{resourceType}")
+    public CompletableFuture<ResponseEntity<FhirResponseBody>> search(@RequestHeader(HttpHeaders.AUTHORIZATION) String authorization,
+                                                                      @RequestHeader(value = REQUEST_HEADER_PAGE_LIMIT, required = false) Integer pageLimit,
+                                                                      @PathVariable String resourceType,
+                                                                      @RequestParam Map<String,String> params) {
+        return doSearch(authorization, resourceType, params, pageLimit);
+    }
+
+    /**
+     * Search for resources - POST strategy
+     * Implements https://www.hl7.org/fhir/R4/http.html#search
+     * @param authorization
+     * @param pageLimit
+     * @param resourceType
+     * @param params
+     * @return
+     */
+    @PostMapping("/{resourceType}/_search")
+    public CompletableFuture<ResponseEntity<FhirResponseBody>> searchByPost(@RequestHeader(HttpHeaders.AUTHORIZATION) String authorization,
+                                                                            @RequestHeader(value = REQUEST_HEADER_PAGE_LIMIT, required = false) Integer pageLimit,
+                                                                            @PathVariable String resourceType,
+                                                                            @RequestParam Map<String,String> params) {
+        return doSearch(authorization, resourceType, params, pageLimit);
+    }
+
+///////////////////////////////////////////////////////////////////////////////////
+/// private methods
+///
+
+    private CompletableFuture<ResponseEntity<FhirResponseBody>> doSearch(String authorization, String resourceType,
+                                                                         Map<String,String> params, Integer pageLimit) {
+        try {
+            ClientInfo clientInfo = registrationService.get(AuthUtil.extractBearerToken(authorization));
+            return respond(asyncProxyService.search(clientInfo, resourceType, params, pageLimit), params);
+
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(errorResponse(e, authorization, params));
+        }
+    }
+
+    /**
+     * Encode the resource on the CPU pool once it arrives, and map any failure to an OperationOutcome response
+     */
+    private CompletableFuture<ResponseEntity<FhirResponseBody>> respond(CompletableFuture<? extends IBaseResource> future,
+                                                                        Map<String,String> params) {
+        return future
+                .thenApplyAsync(resource -> {
+                    HttpHeaders responseHeaders = new HttpHeaders();
+                    appendContentTypeResponseHeader(responseHeaders, params.get(PARAM_FORMAT));
+                    return new ResponseEntity<>(encodeResponse(resource, params), responseHeaders, HttpStatus.OK);
+                }, fhirCpuExecutor)
+                .exceptionally(t -> errorResponse(t, null, params));
+    }
+
+    private ResponseEntity<FhirResponseBody> errorResponse(Throwable t, String authorization, Map<String,String> params) {
+        if (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+
+        HttpHeaders responseHeaders = new HttpHeaders();
+        appendContentTypeResponseHeader(responseHeaders, params.get(PARAM_FORMAT));
+
+        if (t instanceof ClientInfoNotFoundException) {
+            logger.warn("client info not found for authorization=" + authorization);
+            OperationOutcome outcome = new OperationOutcome();
+            outcome.addIssue()
+                    .setCode(OperationOutcome.IssueType.FORBIDDEN)
+                    .setDiagnostics("invalid authorization");
+
+            return new ResponseEntity<>(encodeResponse(outcome, params), responseHeaders, HttpStatus.UNAUTHORIZED);
+
+        } else if (UpstreamErrorUtil.isUpstreamFailure(t)) {
+            logger.error("caught " + t.getClass().getSimpleName() + " from upstream - " + t.getMessage());
+            if (t instanceof BaseServerResponseException bsre) {
+                appendRetryAfterResponseHeader(responseHeaders, bsre);
+            }
+            return new ResponseEntity<>(encodeResponse(UpstreamErrorUtil.outcomeOf(t), params), responseHeaders,
+                    UpstreamErrorUtil.statusOf(t));
+
+        } else {
+            logger.error("caught " + t.getClass().getSimpleName() + " while processing request - " + t.getMessage());
+            logger.debug("stack trace: ", t);
+
+            OperationOutcome outcome = new OperationOutcome();
+            outcome.addIssue()
+                    .setCode(OperationOutcome.IssueType.EXCEPTION)
+                    .setDiagnostics(t.getMessage());
+
+            return new ResponseEntity<>(encodeResponse(outcome, params), responseHeaders, HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    private void appendContentTypeResponseHeader(HttpHeaders responseHeaders, String format) {
+        responseHeaders.add("Content-Type", FhirFormat.fromParam(format).getContentType());
+    }
+
+    /**
+     * Pass on the Retry-After of a 503 or 429, whether the proxy's own (see UpstreamGuardService) or the upstream
+     * server's
+     */
+    private void appendRetryAfterResponseHeader(HttpHeaders responseHeaders, BaseServerResponseException bsre) {
+        for (Map.Entry<String, List<String>> header : bsre.getResponseHeaders().entrySet()) {
+            if (header.getKey().equalsIgnoreCase(UpstreamUnavailableException.RETRY_AFTER) && ! header.getValue().isEmpty()) {
+                responseHeaders.set(HttpHeaders.RETRY_AFTER, header.getValue().get(0));
+            }
+        }
+    }
+
+    /**
+     * Encode eagerly, on the calling thread, so that the servlet thread that writes the response only copies bytes
+     */
+    private FhirResponseBody encodeResponse(IBaseResource resource, Map<String,String> params) {
+        byte[] encoded = FhirUtil.encode(fhirContext, resource, FhirFormat.fromParam(params.get(PARAM_FORMAT)),
+                doPrettyPrint(params)).getBytes(StandardCharsets.UTF_8);
+        return out -> out.write(encoded);
+    }
+
+    private boolean doPrettyPrint(Map<String,String> params) {
+        String pretty = params.get(PARAM_PRETTY);
+        return StringUtils.isNotBlank(pretty) && pretty.equalsIgnoreCase("true");
+    }
+}
@@ -1,11 +1,29 @@
 package edu.ohsu.cmp.fhirproxy.controller;
 
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
 import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import edu.ohsu.cmp.fhirproxy.exception.ClientInfoNotFoundException;
+import edu.ohsu.cmp.fhirproxy.exception.UpstreamUnavailableException;
+import edu.ohsu.cmp.fhirproxy.model.CachedResource;
 import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import edu.ohsu.cmp.fhirproxy.model.FhirFormat;
+import edu.ohsu.cmp.fhirproxy.model.FhirResponseBody;
+import edu.ohsu.cmp.fhirproxy.service.BatchService;
+import edu.ohsu.cmp.fhirproxy.service.EverythingSearch;
+import edu.ohsu.cmp.fhirproxy.service.EverythingService;
+import edu.ohsu.cmp.fhirproxy.service.MetricsService;
 import edu.ohsu.cmp.fhirproxy.service.RegistrationService;
+import edu.ohsu.cmp.fhirproxy.service.RelayService;
 import edu.ohsu.cmp.fhirproxy.service.ProxyService;
+import edu.ohsu.cmp.fhirproxy.service.ResourceCacheService;
+import edu.ohsu.cmp.fhirproxy.service.SearchPager;
+import edu.ohsu.cmp.fhirproxy.util.BundleStreamWriter;
+import edu.ohsu.cmp.fhirproxy.util.AuthUtil;
 import edu.ohsu.cmp.fhirproxy.util.FhirUtil;
+import edu.ohsu.cmp.fhirproxy.util.UpstreamErrorUtil;
+import edu.ohsu.cmp.fhirproxy.util.Deadline;
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
@@ -13,12 +31,20 @@ import org.hl7.fhir.r4.model.OperationOutcome;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -34,38 +60,89 @@ public class ProxyController {
     private static final String PARAM_FORMAT = "_format";
     private static final String PARAM_PRETTY = "_pretty";
 
+    @Value("${search.streaming.enabled:false}")
+    private Boolean searchStreamingEnabled;
+
+    @Autowired
+    private FhirContext fhirContext;
+
     @Autowired
     private RegistrationService registrationService;
 
     @Autowired
     private ProxyService proxyService;
 
+    @Autowired
+    private ResourceCacheService resourceCacheService;
+
+    @Autowired
+    private RelayService relayService;
+
+    @Autowired
+    private BatchService batchService;
+
+    @Autowired
+    private EverythingService everythingService;
+
+    @Autowired
+    private MetricsService metricsService;
+
     /**
      * Read a resource
      * Implements https://www.hl7.org/fhir/R4/http.html#read
+     * Honors If-None-Match and If-Modified-Since, responding 304 Not Modified when the client's copy is current
+     * If resources aren't cached, the upstream response may be relayed as-is; see RelayService
      * @param authorization
+     * @param requestHeaders
      * @param resourceType
      * @param id
      * @param params
      * @return
      */
     @GetMapping("/{resourceType}/{id}")
-    public ResponseEntity<String> read(@RequestHeader(HttpHeaders.AUTHORIZATION) String authorization,
-                                       @PathVariable String resourceType,
-                                       @PathVariable String id,
-                                       @RequestParam Map<String,String> params) {
+    public ResponseEntity<FhirResponseBody> read(@RequestHeader(HttpHeaders.AUTHORIZATION) String authorization,
+                                                 @RequestHeader HttpHeaders requestHeaders,
+                                                 @PathVariable String resourceType,
+                                                 @PathVariable String id,
+                                                 @RequestParam Map<String,String> params) {
         HttpHeaders responseHeaders = new HttpHeaders();
         appendContentTypeResponseHeader(responseHeaders, params.get(PARAM_FORMAT));
 
         try {
-            ClientInfo clientInfo = registrationService.get(extractBearerToken(authorization));
+            ClientInfo clientInfo = registrationService.get(AuthUtil.extractBearerToken(authorization));
+
+            FhirFormat format = FhirFormat.fromParam(params.get(PARAM_FORMAT));
+            if ( ! resourceCacheService.isEnabled() && relayService.canRelay(format, doPrettyPrint(params)) ) {
+                ResponseEntity<FhirResponseBody> relayed = relayService.read(clientInfo, resourceType, id, format, requestHeaders);
+                if (relayed != null) {
+                    return relayed;
+                }
+            }
+
+            IBaseResource resource;
+            CachedResource cached = null;
+
+            if (resourceCacheService.isEnabled()) {
+                cached = resourceCacheService.read(clientInfo, resourceType, id, params);
+                resource = cached.getResource();
+
+            } else {
+                resource = proxyService.read(clientInfo, resourceType, id, params);
+            }
+
+            appendValidatorResponseHeaders(responseHeaders, resource);
 
-            IBaseResource resource = proxyService.read(clientInfo, resourceType, id, params);
+            if (isNotModified(requestHeaders, responseHeaders)) {
+                responseHeaders.remove(HttpHeaders.CONTENT_TYPE);
+                return new ResponseEntity<>(responseHeaders, HttpStatus.NOT_MODIFIED);
+            }
 
-            responseHeaders.add("ETag", resource.getMeta().getVersionId());
-            responseHeaders.add("Last-Modified", resource.getMeta().getLastUpdated().toString());
+            // encoded only now, as a 304 has no body
+            FhirResponseBody body = cached != null ?
+                    encodeCachedResponse(clientInfo, resourceType, id, null, cached, params) :
+                    encodeResponse(resource, params);
 
-            return new ResponseEntity<>(encodeResponse(resource, params), responseHeaders, HttpStatus.OK);
+            return new ResponseEntity<>(body, responseHeaders, HttpStatus.OK);
 
         } catch (ClientInfoNotFoundException cinfe) {
             logger.warn("client info not found for authorization=" + authorization);
@@ -78,7 +155,9 @@ public class ProxyController {
 
         } catch (BaseServerResponseException bsre) {
             logger.error(bsre.getMessage());
-            return new ResponseEntity<>(encodeResponse(bsre.getOperationOutcome(), params), responseHeaders, bsre.getStatusCode());
+            appendRetryAfterResponseHeader(responseHeaders, bsre);
+            return new ResponseEntity<>(encodeResponse(UpstreamErrorUtil.outcomeOf(bsre), params), responseHeaders,
+                    UpstreamErrorUtil.statusOf(bsre));
 
         } catch (Exception e) {
             logger.error("caught " + e.getClass().getSimpleName() + " while processing request - " + e.getMessage(), e);
@@ -95,7 +174,10 @@ public class ProxyController {
     /**
      * Read a specific version of a resource
      * Implements https://www.hl7.org/fhir/R4/http.html#vread
+     * Honors If-None-Match and If-Modified-Since, responding 304 Not Modified when the client's copy is current
+     * If resources aren't cached, the upstream response may be relayed as-is; see RelayService
      * @param authorization
+     * @param requestHeaders
      * @param resourceType
      * @param id
      * @param vid
@@ -103,23 +185,50 @@ public class ProxyController {
      * @return
      */
     @GetMapping("/{resourceType}/{id}/_history/{vid}")
-    public ResponseEntity<String> vread(@RequestHeader(HttpHeaders.AUTHORIZATION) String authorization,
-                                       @PathVariable String resourceType,
-                                       @PathVariable String id,
-                                       @PathVariable String vid,
-                                       @RequestParam Map<String,String> params) {
+    public ResponseEntity<FhirResponseBody> vread(@RequestHeader(HttpHeaders.AUTHORIZATION) String authorization,
+                                                  @RequestHeader HttpHeaders requestHeaders,
+                                                  @PathVariable String resourceType,
+                                                  @PathVariable String id,
+                                                  @PathVariable String vid,
+                                                  @RequestParam Map<String,String> params) {
         HttpHeaders responseHeaders = new HttpHeaders();
         appendContentTypeResponseHeader(responseHeaders, params.get(PARAM_FORMAT));
 
         try {
-            ClientInfo clientInfo = registrationService.get(extractBearerToken(authorization));
+            ClientInfo clientInfo = registrationService.get(AuthUtil.extractBearerToken(authorization));
 
-            IBaseResource resource = proxyService.vread(clientInfo, resourceType, id, vid, params);
+            FhirFormat format = FhirFormat.fromParam(params.get(PARAM_FORMAT));
+            if ( ! resourceCacheService.isEnabled() && relayService.canRelay(format, doPrettyPrint(params)) ) {
+                ResponseEntity<FhirResponseBody> relayed = relayService.vread(clientInfo, resourceType, id, vid, format, requestHeaders);
+                if (relayed != null) {
+                    return relayed;
+                }
+            }
 
-            responseHeaders.add("ETag", resource.getMeta().getVersionId());
-            responseHeaders.add("Last-Modified", resource.getMeta().getLastUpdated().toString());
+            IBaseResource resource;
+            CachedResource cached = null;
 
-            return new ResponseEntity<>(encodeResponse(resource, params), responseHeaders, HttpStatus.OK);
+            if (resourceCacheService.isEnabled()) {
+                cached = resourceCacheService.vread(clientInfo, resourceType, id, vid, params);
+                resource = cached.getResource();
+
+            } else {
+                resource = proxyService.vread(clientInfo, resourceType, id, vid, params);
+            }
+
+            appendValidatorResponseHeaders(responseHeaders, resource);
+
+            if (isNotModified(requestHeaders, responseHeaders)) {
+                responseHeaders.remove(HttpHeaders.CONTENT_TYPE);
+                return new ResponseEntity<>(responseHeaders, HttpStatus.NOT_MODIFIED);
+            }
+
+            // encoded only now, as a 304 has no body
+            FhirResponseBody body = cached != null ?
+                    encodeCachedResponse(clientInfo, resourceType, id, vid, cached, params) :
+                    encodeResponse(resource, params);
+
+            return new ResponseEntity<>(body, responseHeaders, HttpStatus.OK);
 
         } catch (ClientInfoNotFoundException cinfe) {
             logger.warn("client info not found for authorization=" + authorization);
@@ -132,7 +241,9 @@ public class ProxyController {
 
         } catch (BaseServerResponseException bsre) {
             logger.error(bsre.getMessage());
-            return new ResponseEntity<>(encodeResponse(bsre.getOperationOutcome(), params), responseHeaders, bsre.getStatusCode());
+            appendRetryAfterResponseHeader(responseHeaders, bsre);
+            return new ResponseEntity<>(encodeResponse(UpstreamErrorUtil.outcomeOf(bsre), params), responseHeaders,
+                    UpstreamErrorUtil.statusOf(bsre));
 
         } catch (Exception e) {
             logger.error("caught " + e.getClass().getSimpleName() + " while processing request - " + e.getMessage());
@@ -158,16 +269,16 @@ public class ProxyController {
      * @return
      */
     @PutMapping("/{resourceType}/{id}")
-    public ResponseEntity<String> update(@RequestHeader(HttpHeaders.AUTHORIZATION) String authorization,
-                                         @PathVariable String resourceType,
-                                         @PathVariable String id,
-                                         @RequestParam Map<String,String> params,
-                                         @RequestBody(required = false) String body) { // todo : make body required when implementing
+    public ResponseEntity<FhirResponseBody> update(@RequestHeader(HttpHeaders.AUTHORIZATION) String authorization,
+                                                   @PathVariable String resourceType,
+                                                   @PathVariable String id,
+                                                   @RequestParam Map<String,String> params,
+                                                   @RequestBody(required = false) String body) { // todo : make body required when implementing
         HttpHeaders responseHeaders = new HttpHeaders();
         appendContentTypeResponseHeader(responseHeaders, params.get(PARAM_FORMAT));
 
         try {
-            ClientInfo clientInfo = registrationService.get(extractBearerToken(authorization));
+            ClientInfo clientInfo = registrationService.get(AuthUtil.extractBearerToken(authorization));
 
             // todo : implement this
 
@@ -211,16 +322,16 @@ public class ProxyController {
      * @return
      */
     @PatchMapping("/{resourceType}/{id}")
-    public ResponseEntity<String> patch(@RequestHeader(HttpHeaders.AUTHORIZATION) String authorization,
-                                        @PathVariable String resourceType,
-                                        @PathVariable String id,
-                                        @RequestParam Map<String,String> params,
-                                        @RequestBody(required = false) String body) { // todo : make body required when implementing
+    public ResponseEntity<FhirResponseBody> patch(@RequestHeader(HttpHeaders.AUTHORIZATION) String authorization,
+                                                  @PathVariable String resourceType,
+                                                  @PathVariable String id,
+                                                  @RequestParam Map<String,String> params,
+                                                  @RequestBody(required = false) String body) { // todo : make body required when implementing
         HttpHeaders responseHeaders = new HttpHeaders();
         appendContentTypeResponseHeader(responseHeaders, params.get(PARAM_FORMAT));
 
         try {
-            ClientInfo clientInfo = registrationService.get(extractBearerToken(authorization));
+            ClientInfo clientInfo = registrationService.get(AuthUtil.extractBearerToken(authorization));
 
             // todo : implement this
 
@@ -262,15 +373,15 @@ public class ProxyController {
      * @return
      */
     @DeleteMapping("/{resourceType}/{id}")
-    public ResponseEntity<String> delete(@RequestHeader(HttpHeaders.AUTHORIZATION) String authorization,
-                                         @PathVariable String resourceType,
-                                         @PathVariable String id,
-                                         @RequestParam Map<String,String> params) { // todo : make body required when implementing
+    public ResponseEntity<FhirResponseBody> delete(@RequestHeader(HttpHeaders.AUTHORIZATION) String authorization,
+                                                   @PathVariable String resourceType,
+                                                   @PathVariable String id,
+                                                   @RequestParam Map<String,String> params) { // todo : make body required when implementing
         HttpHeaders responseHeaders = new HttpHeaders();
         appendContentTypeResponseHeader(responseHeaders, params.get(PARAM_FORMAT));
 
         try {
-            ClientInfo clientInfo = registrationService.get(extractBearerToken(authorization));
+            ClientInfo clientInfo = registrationService.get(AuthUtil.extractBearerToken(authorization));
 
             // todo : implement this
 
@@ -313,15 +424,15 @@ public class ProxyController {
      * @return
      */
     @PostMapping("/{resourceType}")
-    public ResponseEntity<String> create(@RequestHeader(HttpHeaders.AUTHORIZATION) String authorization,
-                                         @PathVariable String resourceType,
-                                         @RequestParam Map<String,String> params,
-                                         @RequestBody(required = false) String body) { // todo : make body required when implementing
+    public ResponseEntity<FhirResponseBody> create(@RequestHeader(HttpHeaders.AUTHORIZATION) String authorization,
+                                                   @PathVariable String resourceType,
+                                                   @RequestParam Map<String,String> params,
+                                                   @RequestBody(required = false) String body) { // todo : make body required when implementing
         HttpHeaders responseHeaders = new HttpHeaders();
         appendContentTypeResponseHeader(responseHeaders, params.get(PARAM_FORMAT));
 
         try {
-            ClientInfo clientInfo = registrationService.get(extractBearerToken(authorization));
+            ClientInfo clientInfo = registrationService.get(AuthUtil.extractBearerToken(authorization));
 
             // todo : implement this
 
@@ -358,53 +469,231 @@ public class ProxyController {
      * Search for resources - GET strategy
      * Implements https://www.hl7.org/fhir/R4/http.html#search
      * Also see: https://build.fhir.org/http.html#search
+     * A search limited to one page may be relayed as-is; see RelayService
      * @param authorization
      * @param pageLimit
+     * @param requestHeaders
      * @param resourceType
      * @param params
      * @return
      */
     @GetMapping(value = {"/{resourceType}", "/{resourceType}/"})
-    public ResponseEntity<String> searchByGet(@RequestHeader(HttpHeaders.AUTHORIZATION) String authorization,
-                                              @RequestHeader(value = REQUEST_HEADER_PAGE_LIMIT, required = false) Integer pageLimit,
-                                              @PathVariable String resourceType,
-                                              @RequestParam Map<String,String> params) {
-        return doSearch(authorization, resourceType, params, pageLimit);
+    public ResponseEntity<FhirResponseBody> searchByGet(@RequestHeader(HttpHeaders.AUTHORIZATION) String authorization,
+                                                        @RequestHeader(value = REQUEST_HEADER_PAGE_LIMIT, required = false) Integer pageLimit,
+                                                        @RequestHeader HttpHeaders requestHeaders,
+                                                        @PathVariable String resourceType,
+                                                        @RequestParam Map<String,String> params) {
+        return doSearch(authorization, requestHeaders, resourceType, params, pageLimit);
     }
 
     /**
      * Search for resources - POST strategy
      * Implements https://www.hl7.org/fhir/R4/http.html#search
      * Also see: https://build.fhir.org/http.html#search
+     * A search limited to one page may be relayed as-is; see RelayService
      * @param authorization
      * @param pageLimit
+     * @param requestHeaders
      * @param resourceType
      * @param params
      * @return
      */
     @PostMapping("/{resourceType}/_search")
-    public ResponseEntity<String> searchByPost(@RequestHeader(HttpHeaders.AUTHORIZATION) String authorization,
-                                               @RequestHeader(value = REQUEST_HEADER_PAGE_LIMIT, required = false) Integer pageLimit,
-                                               @PathVariable String resourceType,
-                                               @RequestParam Map<String,String> params) {
-        return doSearch(authorization, resourceType, params, pageLimit);
+    public ResponseEntity<FhirResponseBody> searchByPost(@RequestHeader(HttpHeaders.AUTHORIZATION) String authorization,
+                                                         @RequestHeader(value = REQUEST_HEADER_PAGE_LIMIT, required = false) Integer pageLimit,
+                                                         @RequestHeader HttpHeaders requestHeaders,
+                                                         @PathVariable String resourceType,
+                                                         @RequestParam Map<String,String> params) {
+        return doSearch(authorization, requestHeaders, resourceType, params, pageLimit);
+    }
+
+    /**
+     * Batch - GET entries only
+     * Implements https://www.hl7.org/fhir/R4/http.html#transaction for Bundles of type batch
+     * Entries are executed concurrently, and each entry that fails is answered with its own OperationOutcome
+     * @param authorization
+     * @param pageLimit applied to each search entry
+     * @param params
+     * @param body a Bundle of type batch, in JSON or XML
+     * @return
+     */
+    @PostMapping({"", "/"})
+    public ResponseEntity<FhirResponseBody> batch(@RequestHeader(HttpHeaders.AUTHORIZATION) String authorization,
+                                                  @RequestHeader(value = REQUEST_HEADER_PAGE_LIMIT, required = false) Integer pageLimit,
+                                                  @RequestParam Map<String,String> params,
+                                                  @RequestBody String body) {
+        HttpHeaders responseHeaders = new HttpHeaders();
+        appendContentTypeResponseHeader(responseHeaders, params.get(PARAM_FORMAT));
+
+        try {
+            ClientInfo clientInfo = registrationService.get(AuthUtil.extractBearerToken(authorization));
+
+            FhirFormat bodyFormat = StringUtils.stripStart(body, null).startsWith("<") ? FhirFormat.XML : FhirFormat.JSON;
+            Bundle batch;
+            try (FhirUtil.ParserLease lease = FhirUtil.borrowParser(fhirContext, bodyFormat, false)) {
+                batch = lease.parser().parseResource(Bundle.class, body);
+            }
+
+            if (batch.getType() != Bundle.BundleType.BATCH) {
+                OperationOutcome outcome = new OperationOutcome();
+                outcome.addIssue()
+                        .setCode(OperationOutcome.IssueType.NOTSUPPORTED)
+                        .setDiagnostics("only Bundles of type batch are supported");
+
+                return new ResponseEntity<>(encodeResponse(outcome, params), responseHeaders, HttpStatus.BAD_REQUEST);
+
+            } else if (batch.getEntry().size() > batchService.getMaxEntries()) {
+                OperationOutcome outcome = new OperationOutcome();
+                outcome.addIssue()
+                        .setCode(OperationOutcome.IssueType.TOOCOSTLY)
+                        .setDiagnostics("batch has " + batch.getEntry().size() + " entries; at most " +
+                                batchService.getMaxEntries() + " are allowed");
+
+                return new ResponseEntity<>(encodeResponse(outcome, params), responseHeaders, HttpStatus.BAD_REQUEST);
+            }
+
+            Bundle response = batchService.execute(clientInfo, batch, pageLimit);
+
+            return new ResponseEntity<>(encodeResponse(response, params), responseHeaders, HttpStatus.OK);
+
+        } catch (ClientInfoNotFoundException cinfe) {
+            logger.warn("client info not found for authorization=" + authorization);
+            OperationOutcome outcome = new OperationOutcome();
+            outcome.addIssue()
+                    .setCode(OperationOutcome.IssueType.FORBIDDEN)
+                    .setDiagnostics("invalid authorization");
+
+            return new ResponseEntity<>(encodeResponse(outcome, params), responseHeaders, HttpStatus.UNAUTHORIZED);
+
+        } catch (DataFormatException dfe) {
+            logger.warn("could not parse batch - " + dfe.getMessage());
+            OperationOutcome outcome = new OperationOutcome();
+            outcome.addIssue()
+                    .setCode(OperationOutcome.IssueType.STRUCTURE)
+                    .setDiagnostics(dfe.getMessage());
+
+            return new ResponseEntity<>(encodeResponse(outcome, params), responseHeaders, HttpStatus.BAD_REQUEST);
+
+        } catch (Exception e) {
+            logger.error("caught " + e.getClass().getSimpleName() + " while processing request - " + e.getMessage());
+            logger.debug("stack trace: ", e);
+
+            OperationOutcome outcome = new OperationOutcome();
+            outcome.addIssue()
+                    .setCode(OperationOutcome.IssueType.EXCEPTION)
+                    .setDiagnostics(e.getMessage());
+
+            return new ResponseEntity<>(encodeResponse(outcome, params), responseHeaders, HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * Patient compartment - the registered patient's record, assembled from a search per resource type
+     * Modeled on https://www.hl7.org/fhir/R4/patient-operation-everything.html; see EverythingService
+     * The searches run concurrently, and their results are streamed as a single searchset Bundle as they arrive.
+     * Searches that fail, or that haven't finished by everything.deadline, are reported as OperationOutcome entries.
+     * @param authorization
+     * @param pageLimit if present, caps the page limit of each search
+     * @param id if present, must be the registered patient; registrations without a patient get 403 Forbidden
+     * @param params
+     * @return
+     */
+    @GetMapping({"/Patient/$everything", "/Patient/{id}/$everything"})
+    public ResponseEntity<FhirResponseBody> everything(@RequestHeader(HttpHeaders.AUTHORIZATION) String authorization,
+                                                       @RequestHeader(value = REQUEST_HEADER_PAGE_LIMIT, required = false) Integer pageLimit,
+                                                       @PathVariable(required = false) String id,
+                                                       @RequestParam Map<String,String> params) {
+        HttpHeaders responseHeaders = new HttpHeaders();
+        appendContentTypeResponseHeader(responseHeaders, params.get(PARAM_FORMAT));
+
+        try {
+            ClientInfo clientInfo = registrationService.get(AuthUtil.extractBearerToken(authorization));
+
+            if (StringUtils.isBlank(clientInfo.getPatientId())) {
+                logger.warn("everything: registration has no patient");
+                OperationOutcome outcome = new OperationOutcome();
+                outcome.addIssue()
+                        .setCode(OperationOutcome.IssueType.FORBIDDEN)
+                        .setDiagnostics("the registration has no patient, so no patient's record is available");
+
+                return new ResponseEntity<>(encodeResponse(outcome, params), responseHeaders, HttpStatus.FORBIDDEN);
+            }
+
+            if (id != null && ! id.equals(clientInfo.getPatientId())) {
+                logger.warn("everything: requested patient " + id + " is not the registered patient");
+                OperationOutcome outcome = new OperationOutcome();
+                outcome.addIssue()
+                        .setCode(OperationOutcome.IssueType.FORBIDDEN)
+                        .setDiagnostics("only the registered patient's record is available");
+
+                return new ResponseEntity<>(encodeResponse(outcome, params), responseHeaders, HttpStatus.FORBIDDEN);
+            }
+
+            EverythingSearch search = everythingService.open(clientInfo, pageLimit);
+
+            return new ResponseEntity<>(streamEverythingResponse(search, params), responseHeaders, HttpStatus.OK);
+
+        } catch (ClientInfoNotFoundException cinfe) {
+            logger.warn("client info not found for authorization=" + authorization);
+            OperationOutcome outcome = new OperationOutcome();
+            outcome.addIssue()
+                    .setCode(OperationOutcome.IssueType.FORBIDDEN)
+                    .setDiagnostics("invalid authorization");
+
+            return new ResponseEntity<>(encodeResponse(outcome, params), responseHeaders, HttpStatus.UNAUTHORIZED);
+
+        } catch (Exception e) {
+            logger.error("caught " + e.getClass().getSimpleName() + " while processing request - " + e.getMessage());
+            logger.debug("stack trace: ", e);
+
+            OperationOutcome outcome = new OperationOutcome();
+            outcome.addIssue()
+                    .setCode(OperationOutcome.IssueType.EXCEPTION)
+                    .setDiagnostics(e.getMessage());
+
+            return new ResponseEntity<>(encodeResponse(outcome, params), responseHeaders, HttpStatus.INTERNAL_SERVER_ERROR);
+        }
     }
 
 ///////////////////////////////////////////////////////////////////////////////////
 /// private methods
 ///
 
-    private ResponseEntity<String> doSearch(String authorization, String resourceType, Map<String,String> params,
-                                            Integer pageLimit) {
+    private ResponseEntity<FhirResponseBody> doSearch(String authorization, HttpHeaders requestHeaders, String resourceType,
+                                                      Map<String,String> params, Integer pageLimit) {
         HttpHeaders responseHeaders = new HttpHeaders();
         appendContentTypeResponseHeader(responseHeaders, params.get(PARAM_FORMAT));
 
         try {
-            ClientInfo clientInfo = registrationService.get(extractBearerToken(authorization));
+            ClientInfo clientInfo = registrationService.get(AuthUtil.extractBearerToken(authorization));
 
-            Bundle bundle = proxyService.search(clientInfo, resourceType, params, pageLimit);
+            // only a search limited to its first page is a single upstream response, and so can be relayed
+            if (pageLimit != null && pageLimit == 1 &&
+                    relayService.canRelay(FhirFormat.fromParam(params.get(PARAM_FORMAT)), doPrettyPrint(params))) {
+                ResponseEntity<FhirResponseBody> relayed = relayService.searchPage(clientInfo, resourceType, params,
+                        FhirFormat.fromParam(params.get(PARAM_FORMAT)), requestHeaders);
+                if (relayed != null) {
+                    return relayed;
+                }
+            }
 
-            return new ResponseEntity<>(encodeResponse(bundle, params), responseHeaders, HttpStatus.OK);
+            if (searchStreamingEnabled && BundleStreamWriter.supports(FhirFormat.fromParam(params.get(PARAM_FORMAT)))) {
+                // opened under the deadline, so that pages fetched in the background are bound by it too
+                Deadline deadline = proxyService.newSearchDeadline();
+                SearchPager pager = deadline.call(() -> proxyService.openSearch(clientInfo, resourceType, params, pageLimit));
+                Bundle bundle = deadline.call(pager::next);
+
+                FhirResponseBody body = pager.hasNext() ?
+                        streamSearchResponse(bundle, pager, deadline, params) :
+                        encodeResponse(bundle, params);
+
+                return new ResponseEntity<>(body, responseHeaders, HttpStatus.OK);
+
+            } else {
+                Bundle bundle = proxyService.search(clientInfo, resourceType, params, pageLimit);
+
+                return new ResponseEntity<>(encodeResponse(bundle, params), responseHeaders, HttpStatus.OK);
+            }
 
         } catch (ClientInfoNotFoundException cinfe) {
             logger.warn("client info not found for authorization=" + authorization);
@@ -417,7 +706,9 @@ public class ProxyController {
 
         } catch (BaseServerResponseException bsre) {
             logger.error(bsre.getMessage());
-            return new ResponseEntity<>(encodeResponse(bsre.getOperationOutcome(), params), responseHeaders, bsre.getStatusCode());
+            appendRetryAfterResponseHeader(responseHeaders, bsre);
+            return new ResponseEntity<>(encodeResponse(UpstreamErrorUtil.outcomeOf(bsre), params), responseHeaders,
+                    UpstreamErrorUtil.statusOf(bsre));
 
         } catch (Exception e) {
             logger.error("caught " + e.getClass().getSimpleName() + " while processing request - " + e.getMessage());
@@ -433,76 +724,191 @@ public class ProxyController {
     }
 
     private void appendContentTypeResponseHeader(HttpHeaders responseHeaders, String format) {
-        if (StringUtils.isBlank(format) || doEncodeJson(format)) {
-            responseHeaders.add("Content-Type", "application/fhir+json");
-        } else if (doEncodeRDF(format)) {
-            responseHeaders.add("Content-Type", "application/fhir+turtle");
-        } else {
-            responseHeaders.add("Content-Type", "application/fhir+xml");
-        }
+        responseHeaders.add("Content-Type", FhirFormat.fromParam(format).getContentType());
     }
 
-    private String encodeResponse(IBaseResource resource, Map<String,String> params) {
-        String format = params.get(PARAM_FORMAT);
-        boolean prettyPrint = doPrettyPrint(params);
+    /**
+     * Defer encoding until the response is written, so that the resource is encoded directly to the output stream
+     * instead of first being materialized as a String
+     */
+    private FhirResponseBody encodeResponse(IBaseResource resource, Map<String,String> params) {
+        return FhirUtil.toResponseBody(fhirContext, resource, FhirFormat.fromParam(params.get(PARAM_FORMAT)),
+                doPrettyPrint(params));
+    }
 
-        String response;
-        if (StringUtils.isBlank(format) || doEncodeJson(format)) {
-            response = FhirUtil.toJson(resource, prettyPrint);
-        } else if (doEncodeRDF(format)) {
-            response = FhirUtil.toRDF(resource, prettyPrint);
-        } else {
-            response = FhirUtil.toXml(resource, prettyPrint);
+    /**
+     * Pass on the Retry-After of a 503 or 429, whether the proxy's own (see UpstreamGuardService) or the upstream
+     * server's
+     */
+    private void appendRetryAfterResponseHeader(HttpHeaders responseHeaders, BaseServerResponseException bsre) {
+        for (Map.Entry<String, List<String>> header : bsre.getResponseHeaders().entrySet()) {
+            if (header.getKey().equalsIgnoreCase(UpstreamUnavailableException.RETRY_AFTER) && ! header.getValue().isEmpty()) {
+                responseHeaders.set(HttpHeaders.RETRY_AFTER, header.getValue().get(0));
+            }
         }
-        return response;
     }
 
-    // see https://www.hl7.org/fhir/R4/http.html#parameters
-    private boolean doEncodeJson(String format) {
-        return StringUtils.isNotBlank(format) && (
-                format.equalsIgnoreCase("json") ||
-                        format.equalsIgnoreCase("application/json") ||
-                        format.equalsIgnoreCase("application/fhir+json")
-        );
-    }
+    /**
+     * Add ETag and Last-Modified headers, formatted per https://www.hl7.org/fhir/R4/http.html#versioning
+     */
+    private void appendValidatorResponseHeaders(HttpHeaders responseHeaders, IBaseResource resource) {
+        String versionId = resource.getMeta().getVersionId();
+        if (StringUtils.isNotBlank(versionId)) {
+            responseHeaders.setETag("W/\"" + versionId + "\"");
+        }
 
-    // see https://www.hl7.org/fhir/R4/http.html#parameters
-    private boolean doEncodeRDF(String format) {
-        return StringUtils.isNotBlank(format) && (
-                format.equalsIgnoreCase("ttl") ||
-                        format.equalsIgnoreCase("application/fhir+turtle") ||
-                        format.equalsIgnoreCase("text/turtle")
-        );
+        Date lastUpdated = resource.getMeta().getLastUpdated();
+        if (lastUpdated != null) {
+            responseHeaders.setLastModified(lastUpdated.getTime());
+        }
     }
 
-    // see https://www.hl7.org/fhir/R4/http.html#parameters
-    private boolean doEncodeXml(String format) {
-        return StringUtils.isNotBlank(format) && (
-                format.equalsIgnoreCase("xml") ||
-                        format.equalsIgnoreCase("text/xml") ||
-                        format.equalsIgnoreCase("application/xml") ||
-                        format.equalsIgnoreCase("application/fhir+xml")
-        );
-    }
+    /**
+     * Evaluate the request's conditional headers against the validators about to be sent, per RFC 9110 section 13.
+     * If-Modified-Since is only considered when If-None-Match is absent.
+     */
+    private boolean isNotModified(HttpHeaders requestHeaders, HttpHeaders responseHeaders) {
+        List<String> ifNoneMatch = requestHeaders.getIfNoneMatch();
+        if ( ! ifNoneMatch.isEmpty() ) {
+            String etag = responseHeaders.getETag();
+            if (etag == null) {
+                return false;
+            }
+            for (String candidate : ifNoneMatch) {
+                if (candidate.equals("*") || weakEtagValue(candidate).equals(weakEtagValue(etag))) {
+                    return true;
+                }
+            }
+            return false;
+        }
 
-    private boolean doPrettyPrint(Map<String,String> params) {
-        String pretty = params.get("_pretty");
-        return StringUtils.isNotBlank(pretty) && pretty.equalsIgnoreCase("true");
+        long ifModifiedSince = requestHeaders.getIfModifiedSince();
+        long lastModified = responseHeaders.getLastModified();
+        return ifModifiedSince >= 0 && lastModified >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
     }
 
-    private static final String BEARER_TOKEN_PREFIX = "Bearer ";
+    private String weakEtagValue(String etag) {
+        String value = etag.startsWith("W/") ? etag.substring(2) : etag;
+        return StringUtils.strip(value, "\"");
+    }
 
-    private String extractBearerToken(String authorization) {
-        if (StringUtils.isBlank(authorization))
-            throw new IllegalArgumentException("authorization is blank");
+    private FhirResponseBody encodeCachedResponse(ClientInfo clientInfo, String resourceType, String id, String vid,
+                                                  CachedResource cached, Map<String,String> params) {
+        byte[] encoded = resourceCacheService.getEncoded(clientInfo, resourceType, id, vid, cached,
+                FhirFormat.fromParam(params.get(PARAM_FORMAT)), doPrettyPrint(params));
+        return out -> out.write(encoded);
+    }
 
-        if ( ! authorization.startsWith(BEARER_TOKEN_PREFIX) )
-            throw new IllegalArgumentException("authorization is not a bearer token");
+    /**
+     * Stream a multi-page search as a single searchset Bundle.  The envelope is written immediately, and each page's
+     * entries are written and flushed as that page arrives from the upstream server.  If a subsequent page can't be
+     * fetched, an OperationOutcome entry describing the failure is appended, since the response status has already
+     * been sent; likewise if the deadline passes first, as in ProxyService.aggregate().
+     */
+    private FhirResponseBody streamSearchResponse(Bundle firstPage, SearchPager pager, Deadline deadline,
+                                                  Map<String,String> params) {
+        FhirFormat format = FhirFormat.fromParam(params.get(PARAM_FORMAT));
+        boolean prettyPrint = doPrettyPrint(params);
+        return out -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            BundleStreamWriter bundleWriter = new BundleStreamWriter(fhirContext, format, prettyPrint, writer);
+
+            Bundle envelope = new Bundle();
+            envelope.setType(Bundle.BundleType.SEARCHSET);
+            envelope.setTotal(firstPage.getTotal());
+            bundleWriter.start(envelope);
+
+            for (Bundle.BundleEntryComponent entry : firstPage.getEntry()) {
+                bundleWriter.writeEntry(entry);
+            }
+            writer.flush();
+
+            try {
+                while (pager.hasNext()) {
+                    if (deadline.isExpired()) {
+                        bundleWriter.writeEntry(ProxyService.incompleteEntry(deadline, pager));
+                        break;
+                    }
+
+                    for (Bundle.BundleEntryComponent entry : deadline.call(pager::next).getEntry()) {
+                        bundleWriter.writeEntry(entry);
+                    }
+                    writer.flush();
+                }
+
+            } catch (BaseServerResponseException bsre) {
+                if (bsre instanceof FhirClientConnectionException && deadline.isExpired()) {
+                    bundleWriter.writeEntry(ProxyService.incompleteEntry(deadline, pager));
+
+                } else {
+                    logger.error("search: caught " + bsre.getClass().getSimpleName() + " fetching page " +
+                            (pager.getPagesFetched() + 1) + " - " + bsre.getMessage());
+
+                    OperationOutcome outcome = new OperationOutcome();
+                    outcome.addIssue()
+                            .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                            .setCode(OperationOutcome.IssueType.INCOMPLETE)
+                            .setDiagnostics("search results are incomplete - " + bsre.getMessage());
+
+                    Bundle.BundleEntryComponent outcomeEntry = new Bundle.BundleEntryComponent();
+                    outcomeEntry.setResource(outcome);
+                    outcomeEntry.getSearch().setMode(Bundle.SearchEntryMode.OUTCOME);
+                    bundleWriter.writeEntry(outcomeEntry);
+                }
+            }
+
+            bundleWriter.finish();
+            metricsService.recordSearch(pager.getPagesFetched(), bundleWriter.getEntryCount());
+        };
+    }
 
-        String key = authorization.substring(BEARER_TOKEN_PREFIX.length());
-        if (StringUtils.isBlank(key))
-            throw new IllegalArgumentException("bearer token is blank");
+    /**
+     * Stream the results of a patient-compartment aggregation as a single searchset Bundle, writing and flushing each
+     * page's entries as they arrive.  Formats that can't be streamed are encoded once every search has finished.
+     */
+    private FhirResponseBody streamEverythingResponse(EverythingSearch search, Map<String,String> params) {
+        FhirFormat format = FhirFormat.fromParam(params.get(PARAM_FORMAT));
+        boolean prettyPrint = doPrettyPrint(params);
+        return out -> {
+            try (search) {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+
+                Bundle envelope = new Bundle();
+                envelope.setType(Bundle.BundleType.SEARCHSET);
+
+                if (BundleStreamWriter.supports(format)) {
+                    BundleStreamWriter bundleWriter = new BundleStreamWriter(fhirContext, format, prettyPrint, writer);
+                    bundleWriter.start(envelope);
+
+                    List<Bundle.BundleEntryComponent> entries;
+                    while ((entries = search.next()) != null) {
+                        for (Bundle.BundleEntryComponent entry : entries) {
+                            bundleWriter.writeEntry(entry);
+                        }
+                        writer.flush();
+                    }
+
+                    bundleWriter.finish();
+
+                } else {
+                    List<Bundle.BundleEntryComponent> entries;
+                    while ((entries = search.next()) != null) {
+                        envelope.getEntry().addAll(entries);
+                    }
+
+                    FhirUtil.encode(fhirContext, envelope, format, prettyPrint, writer);
+                    writer.flush();
+                }
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for search results", e);
+            }
+        };
+    }
 
-        return key;
+    private boolean doPrettyPrint(Map<String,String> params) {
+        String pretty = params.get(PARAM_PRETTY);
+        return StringUtils.isNotBlank(pretty) && pretty.equalsIgnoreCase("true");
     }
 }
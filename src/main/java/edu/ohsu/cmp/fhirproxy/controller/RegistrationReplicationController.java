@@ -0,0 +1,68 @@
+package edu.ohsu.cmp.fhirproxy.controller;
+
+import edu.ohsu.cmp.fhirproxy.model.RegisteredClient;
+import edu.ohsu.cmp.fhirproxy.service.RegistrationService;
+import edu.ohsu.cmp.fhirproxy.service.ReplicatedRegistrationStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+/**
+ * Endpoints through which replicating proxy instances exchange registrations.  Only present when
+ * registration.store=replicated, and only answers requests that present the shared replication secret.
+ */
+@Controller
+@ConditionalOnProperty(name = "registration.store", havingValue = "replicated")
+@RequestMapping(ReplicatedRegistrationStore.PATH)
+public class RegistrationReplicationController {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private ReplicatedRegistrationStore store;
+
+    @Autowired
+    private RegistrationService registrationService;
+
+    @GetMapping(headers = ReplicatedRegistrationStore.ACCESS_TOKEN_HEADER)
+    public ResponseEntity<RegisteredClient> get(@RequestHeader(value = ReplicatedRegistrationStore.SECRET_HEADER, required = false) String secret,
+                                                @RequestHeader(ReplicatedRegistrationStore.ACCESS_TOKEN_HEADER) String accessToken) {
+        if ( ! store.isAuthorized(secret) ) {
+            return new ResponseEntity<>(HttpStatus.FORBIDDEN);
+        }
+
+        RegisteredClient registration = store.getLocal(accessToken);
+        return registration != null && ! registration.isExpired(System.currentTimeMillis()) ?
+                new ResponseEntity<>(registration, HttpStatus.OK) :
+                new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    }
+
+    @GetMapping
+    public ResponseEntity<List<RegisteredClient>> list(@RequestHeader(value = ReplicatedRegistrationStore.SECRET_HEADER, required = false) String secret) {
+        if ( ! store.isAuthorized(secret) ) {
+            return new ResponseEntity<>(HttpStatus.FORBIDDEN);
+        }
+
+        return new ResponseEntity<>(store.snapshot(), HttpStatus.OK);
+    }
+
+    @PostMapping
+    public ResponseEntity<Void> accept(@RequestHeader(value = ReplicatedRegistrationStore.SECRET_HEADER, required = false) String secret,
+                                       @RequestBody List<ReplicatedRegistrationStore.Change> changes) {
+        if ( ! store.isAuthorized(secret) ) {
+            logger.warn("rejected registration changes from a peer that did not present the replication secret");
+            return new ResponseEntity<>(HttpStatus.FORBIDDEN);
+        }
+
+        for (RegisteredClient removed : store.accept(changes)) {
+            registrationService.evict(removed.clientInfo());
+        }
+        return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+    }
+}
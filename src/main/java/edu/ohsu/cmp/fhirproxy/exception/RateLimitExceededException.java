@@ -0,0 +1,31 @@
+package edu.ohsu.cmp.fhirproxy.exception;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import org.hl7.fhir.r4.model.OperationOutcome;
+
+/**
+ * Thrown in place of handling a request from a client that is over its rate limit (see RateLimitService).  Surfaces
+ * to the client as 429 Too Many Requests, with a Retry-After header and an OperationOutcome saying why.
+ */
+public class RateLimitExceededException extends BaseServerResponseException {
+    public static final int STATUS_CODE = 429;
+
+    private final int retryAfterSeconds;
+
+    public RateLimitExceededException(String message, int retryAfterSeconds) {
+        super(STATUS_CODE, message);
+        this.retryAfterSeconds = retryAfterSeconds;
+
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                .setCode(OperationOutcome.IssueType.THROTTLED)
+                .setDiagnostics(message);
+        setOperationOutcome(outcome);
+        addResponseHeader(UpstreamUnavailableException.RETRY_AFTER, String.valueOf(retryAfterSeconds));
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,32 @@
+package edu.ohsu.cmp.fhirproxy.exception;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import org.hl7.fhir.r4.model.OperationOutcome;
+
+/**
+ * Thrown in place of a request to an upstream server that the proxy won't send, because the server is failing or is
+ * already handling as many of the proxy's requests as it can.  Surfaces to the client as 503 Service Unavailable,
+ * with a Retry-After header and an OperationOutcome saying why.
+ */
+public class UpstreamUnavailableException extends BaseServerResponseException {
+    public static final String RETRY_AFTER = "Retry-After";
+
+    private final int retryAfterSeconds;
+
+    public UpstreamUnavailableException(String message, int retryAfterSeconds) {
+        super(503, message);
+        this.retryAfterSeconds = retryAfterSeconds;
+
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                .setCode(OperationOutcome.IssueType.TRANSIENT)
+                .setDiagnostics(message);
+        setOperationOutcome(outcome);
+        addResponseHeader(RETRY_AFTER, String.valueOf(retryAfterSeconds));
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
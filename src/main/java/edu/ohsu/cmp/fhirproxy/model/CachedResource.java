@@ -0,0 +1,61 @@
+package edu.ohsu.cmp.fhirproxy.model;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A resource held in the resource cache, along with each encoding of it that has been served so far and the time it
+ * was last known to be current
+ */
+public class CachedResource {
+    private static final int BASE_WEIGHT = 1024;
+
+    private final IBaseResource resource;
+    private final Map<Encoding, byte[]> encodings = new ConcurrentHashMap<>();
+    private volatile long validatedAt;
+
+    public CachedResource(IBaseResource resource) {
+        this.resource = resource;
+        this.validatedAt = System.currentTimeMillis();
+    }
+
+    public IBaseResource getResource() {
+        return resource;
+    }
+
+    public String getVersionId() {
+        return resource.getMeta().getVersionId();
+    }
+
+    public byte[] getEncoded(FhirFormat format, boolean pretty) {
+        return encodings.get(new Encoding(format, pretty));
+    }
+
+    public void putEncoded(FhirFormat format, boolean pretty, byte[] encoded) {
+        encodings.put(new Encoding(format, pretty), encoded);
+    }
+
+    public boolean isFresh(long ttl) {
+        return System.currentTimeMillis() - validatedAt < ttl;
+    }
+
+    public void markValidated() {
+        validatedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the approximate number of bytes this entry occupies, used to bound the size of the cache
+     */
+    public int getWeight() {
+        int weight = BASE_WEIGHT;
+        for (byte[] encoded : encodings.values()) {
+            weight += encoded.length;
+        }
+        return weight;
+    }
+
+    private record Encoding(FhirFormat format, boolean pretty) {
+    }
+}
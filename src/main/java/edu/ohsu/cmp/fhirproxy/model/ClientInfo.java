@@ -1,5 +1,7 @@
 package edu.ohsu.cmp.fhirproxy.model;
 
+import java.util.Objects;
+
 public class ClientInfo {
     private String clientId;
     private String serverUrl;
@@ -15,6 +17,23 @@ public class ClientInfo {
         this.userId = userId;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ClientInfo that = (ClientInfo) o;
+        return Objects.equals(clientId, that.clientId) &&
+                Objects.equals(serverUrl, that.serverUrl) &&
+                Objects.equals(bearerToken, that.bearerToken) &&
+                Objects.equals(patientId, that.patientId) &&
+                Objects.equals(userId, that.userId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(clientId, serverUrl, bearerToken, patientId, userId);
+    }
+
     @Override
     public String toString() {
         return "ClientInfo{" +
@@ -0,0 +1,51 @@
+package edu.ohsu.cmp.fhirproxy.model;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Encodings supported for proxied responses
+ * See https://www.hl7.org/fhir/R4/http.html#parameters
+ */
+public enum FhirFormat {
+    JSON("application/fhir+json"),
+    XML("application/fhir+xml"),
+    RDF("application/fhir+turtle");
+
+    private final String contentType;
+
+    FhirFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Resolve the value of a _format parameter.  Blank and JSON formats resolve to JSON, Turtle formats resolve to
+     * RDF, and anything else resolves to XML.
+     * @param format
+     * @return
+     */
+    public static FhirFormat fromParam(String format) {
+        if (StringUtils.isBlank(format) || isJson(format)) {
+            return JSON;
+        } else if (isRDF(format)) {
+            return RDF;
+        } else {
+            return XML;
+        }
+    }
+
+    private static boolean isJson(String format) {
+        return format.equalsIgnoreCase("json") ||
+                format.equalsIgnoreCase("application/json") ||
+                format.equalsIgnoreCase("application/fhir+json");
+    }
+
+    private static boolean isRDF(String format) {
+        return format.equalsIgnoreCase("ttl") ||
+                format.equalsIgnoreCase("application/fhir+turtle") ||
+                format.equalsIgnoreCase("text/turtle");
+    }
+}
@@ -0,0 +1,13 @@
+package edu.ohsu.cmp.fhirproxy.model;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A response body that is written straight to the servlet output stream when the response is committed, rather than
+ * being built up in memory first
+ */
+@FunctionalInterface
+public interface FhirResponseBody {
+    void writeTo(OutputStream out) throws IOException;
+}
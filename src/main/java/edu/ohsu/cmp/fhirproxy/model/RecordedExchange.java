@@ -0,0 +1,31 @@
+package edu.ohsu.cmp.fhirproxy.model;
+
+import java.util.Map;
+
+/**
+ * One upstream request and the response to it, as recorded by UpstreamRecorder and served by UpstreamReplayServer.
+ * The body is kept as it came off the wire, so a gzipped response is recorded gzipped.
+ * @param method
+ * @param host the upstream host, as host[:port]
+ * @param uri the request's path and query
+ * @param conditional the request's If-None-Match and If-Modified-Since, if any, which select the response as much as
+ *                    the URI does
+ * @param status
+ * @param headers the response headers that describe the body
+ * @param latencyMillis the time from sending the request to having read the whole response
+ * @param body
+ */
+public record RecordedExchange(String method, String host, String uri, String conditional, int status,
+                               Map<String, String> headers, long latencyMillis, byte[] body) {
+
+    /**
+     * @return the key under which a request is matched to its recorded responses
+     */
+    public String key() {
+        return key(method, host, uri, conditional);
+    }
+
+    public static String key(String method, String host, String uri, String conditional) {
+        return method + " " + host + uri + (conditional == null || conditional.isEmpty() ? "" : " " + conditional);
+    }
+}
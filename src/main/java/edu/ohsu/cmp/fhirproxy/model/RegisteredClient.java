@@ -0,0 +1,11 @@
+package edu.ohsu.cmp.fhirproxy.model;
+
+/**
+ * A client registration as held by a RegistrationStore: the access token issued to the client, the client's info,
+ * and the time (in epoch millis) at which the registration expires.
+ */
+public record RegisteredClient(String accessToken, ClientInfo clientInfo, long expiresAt) {
+    public boolean isExpired(long now) {
+        return expiresAt <= now;
+    }
+}
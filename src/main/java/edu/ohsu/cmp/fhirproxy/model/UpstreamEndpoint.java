@@ -0,0 +1,57 @@
+package edu.ohsu.cmp.fhirproxy.model;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.net.URI;
+
+/**
+ * The kind of FHIR interaction an upstream request is, as far as can be told from its method and URL alone.  Each
+ * kind has latencies of its own (a search page is typically much slower than a read), so they are tracked apart.
+ */
+public enum UpstreamEndpoint {
+    READ,
+    VREAD,
+    SEARCH,
+    OTHER;
+
+    /**
+     * @param method
+     * @param uri the request URI, absolute or not
+     * @return
+     */
+    public static UpstreamEndpoint of(String method, URI uri) {
+        String[] segments = StringUtils.split(StringUtils.defaultString(uri.getRawPath()), '/');
+        String query = uri.getRawQuery();
+        int n = segments.length;
+
+        if (n > 0 && segments[n - 1].equals("_search")) {
+            return SEARCH;
+
+        } else if ( ! "GET".equals(method) ) {
+            return OTHER;
+
+        } else if (n >= 4 && segments[n - 2].equals("_history") && isResourceType(segments[n - 4])) {
+            return VREAD;
+
+        } else if (n >= 2 && isResourceType(segments[n - 2]) && ! isOperationOrControl(segments[n - 1])) {
+            return READ;
+
+        } else if (n >= 1 && isResourceType(segments[n - 1])) {
+            return SEARCH;
+
+        } else if (query != null && (query.contains("_getpages") || query.contains("_offset"))) {
+            return SEARCH;
+
+        } else {
+            return OTHER;
+        }
+    }
+
+    private static boolean isResourceType(String segment) {
+        return ! segment.isEmpty() && Character.isUpperCase(segment.charAt(0));
+    }
+
+    private static boolean isOperationOrControl(String segment) {
+        return segment.startsWith("$") || segment.startsWith("_");
+    }
+}
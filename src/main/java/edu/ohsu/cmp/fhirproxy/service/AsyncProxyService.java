@@ -0,0 +1,295 @@
+package edu.ohsu.cmp.fhirproxy.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import edu.ohsu.cmp.fhirproxy.exception.UpstreamUnavailableException;
+import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import edu.ohsu.cmp.fhirproxy.model.FhirFormat;
+import edu.ohsu.cmp.fhirproxy.model.UpstreamEndpoint;
+import edu.ohsu.cmp.fhirproxy.util.Deadline;
+import edu.ohsu.cmp.fhirproxy.util.FhirUtil;
+import edu.ohsu.cmp.fhirproxy.util.UpstreamErrorUtil;
+import edu.ohsu.cmp.fhirproxy.util.UpstreamGuard;
+import jakarta.annotation.PostConstruct;
+import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Non-blocking counterpart to ProxyService.  Upstream requests are made with the JDK HttpClient, so no thread is
+ * held while an upstream call is in flight; responses are parsed on the bounded fhirCpuExecutor pool rather than on
+ * the HTTP client's own threads.  Every method returns immediately with a future for its result.
+ *
+ * Upstream requests get the socket timeout UpstreamLatencyService derives for their server and kind, and feed their
+ * latencies back to it, and a search as a whole is held to search.deadline, after which it returns what it has,
+ * flagged incomplete, as ProxyService does.  The upstream server's circuit breaker applies, but not its concurrency
+ * limit, since nothing waits on an upstream response but a callback.  Unlike the blocking path, requests don't wait
+ * their turn in FairQueueService, and searches are neither coalesced nor fanned out, nor are reads hedged.
+ */
+@Service
+@ConditionalOnProperty(name = "proxy.async.enabled", havingValue = "true")
+public class AsyncProxyService {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final String FHIR_JSON = "application/fhir+json";
+    private static final String GZIP = "gzip";
+
+    @Value("${upstream.connect.timeout:10000}")
+    private Long connectTimeout;
+
+    @Value("${upstream.compression.enabled:true}")
+    private Boolean compressionEnabled;
+
+    @Autowired
+    private FhirContext fhirContext;
+
+    @Autowired
+    private AsyncTaskExecutor fhirCpuExecutor;
+
+    @Autowired
+    private UpstreamGuardService upstreamGuardService;
+
+    @Autowired
+    private UpstreamLatencyService upstreamLatencyService;
+
+    @Autowired
+    private ProxyService proxyService;
+
+    @Autowired
+    private MetricsService metricsService;
+
+    private HttpClient httpClient;
+
+    @PostConstruct
+    public void init() {
+        httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMillis(connectTimeout))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
+    public CompletableFuture<IBaseResource> read(ClientInfo clientInfo, String resourceType, String id) {
+        logger.info("async read: " + clientInfo.getServerUrl() + "/" + resourceType + "/" + id);
+        return fetch(clientInfo, clientInfo.getServerUrl() + "/" + resourceType + "/" + id, IBaseResource.class, null);
+    }
+
+    public CompletableFuture<IBaseResource> vread(ClientInfo clientInfo, String resourceType, String id, String vid) {
+        logger.info("async vread: " + clientInfo.getServerUrl() + "/" + resourceType + "/" + id + "/_history/" + vid);
+        return fetch(clientInfo, clientInfo.getServerUrl() + "/" + resourceType + "/" + id + "/_history/" + vid,
+                IBaseResource.class, null);
+    }
+
+    /**
+     * Search, aggregating all pages (up to pageLimit) into a single Bundle.  Pages are requested one after another by
+     * following next links, each as soon as the previous page has been parsed.  If search.deadline passes before the
+     * last page has been fetched, the entries collected so far are returned, followed by an OperationOutcome entry
+     * saying that the results are incomplete.
+     * @param clientInfo
+     * @param resourceType
+     * @param paramsMap
+     * @param pageLimit
+     * @return
+     */
+    public CompletableFuture<Bundle> search(ClientInfo clientInfo, String resourceType, Map<String, String> paramsMap,
+                                            Integer pageLimit) {
+        List<String> paramsList = new ArrayList<>();
+        for (Map.Entry<String, String> entry : paramsMap.entrySet()) {
+            if (entry.getKey().equals("_format") || entry.getKey().equals("_pretty")) continue;
+            paramsList.add(URLEncoder.encode(entry.getKey(), StandardCharsets.UTF_8) + "=" +
+                    URLEncoder.encode(entry.getValue(), StandardCharsets.UTF_8));
+        }
+
+        String url = clientInfo.getServerUrl() + "/" + resourceType + "?" + String.join("&", paramsList);
+
+        logger.info("async search: " + url);
+
+        Deadline deadline = proxyService.newSearchDeadline();
+        return fetch(clientInfo, url, Bundle.class, deadline).thenCompose(firstPage -> {
+            if (firstPage.getLink(Bundle.LINK_NEXT) == null || isPageLimitReached(pageLimit, 1)) {
+                metricsService.recordSearch(1, firstPage.getEntry().size());
+                return CompletableFuture.completedFuture(firstPage);
+            }
+
+            List<Bundle.BundleEntryComponent> entryList = new ArrayList<>(firstPage.getEntry());
+            return fetchRemainingPages(clientInfo, deadline, firstPage, pageLimit, 1, entryList).thenApply(entries -> {
+                Bundle compositeBundle = new Bundle();
+                compositeBundle.setType(Bundle.BundleType.SEARCHSET);
+                compositeBundle.setEntry(entries);
+                compositeBundle.setTotal(firstPage.getTotal());
+                return compositeBundle;
+            });
+        });
+    }
+
+////////////////////////////////////////////////////////////////////////////////////
+/// private stuff
+///
+
+    private CompletableFuture<List<Bundle.BundleEntryComponent>> fetchRemainingPages(ClientInfo clientInfo, Deadline deadline,
+                                                                                    Bundle page, Integer pageLimit,
+                                                                                    int pagesFetched,
+                                                                                    List<Bundle.BundleEntryComponent> entryList) {
+        Bundle.BundleLinkComponent next = page.getLink(Bundle.LINK_NEXT);
+        if (next == null || isPageLimitReached(pageLimit, pagesFetched)) {
+            if (next != null) {
+                logger.info("async search: reached page limit of " + pageLimit + ", stopping search.");
+            }
+            metricsService.recordSearch(pagesFetched, entryList.size());
+            return CompletableFuture.completedFuture(entryList);
+        }
+
+        if (deadline.isExpired()) {
+            return incomplete(deadline, pagesFetched, entryList);
+        }
+
+        logger.info("async search: fetching next page (" + (pagesFetched + 1) + ") from " + next.getUrl());
+
+        return fetch(clientInfo, next.getUrl(), Bundle.class, deadline).handle((nextPage, t) -> {
+            if (t == null) {
+                entryList.addAll(nextPage.getEntry());
+                return fetchRemainingPages(clientInfo, deadline, nextPage, pageLimit, pagesFetched + 1, entryList);
+
+            } else if (deadline.isExpired()) {
+                return incomplete(deadline, pagesFetched, entryList);
+
+            } else {
+                return CompletableFuture.<List<Bundle.BundleEntryComponent>>failedFuture(
+                        t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+            }
+        }).thenCompose(Function.identity());
+    }
+
+    private CompletableFuture<List<Bundle.BundleEntryComponent>> incomplete(Deadline deadline, int pagesFetched,
+                                                                           List<Bundle.BundleEntryComponent> entryList) {
+        entryList.add(ProxyService.incompleteEntry(deadline, pagesFetched));
+        metricsService.recordSearch(pagesFetched, entryList.size());
+        return CompletableFuture.completedFuture(entryList);
+    }
+
+    private boolean isPageLimitReached(Integer pageLimit, int pagesFetched) {
+        return pageLimit != null && pageLimit != 0 && pagesFetched >= pageLimit;
+    }
+
+    /**
+     * @param deadline the deadline the request must complete by, or null
+     */
+    private <T extends IBaseResource> CompletableFuture<T> fetch(ClientInfo clientInfo, String url, Class<T> type,
+                                                                 Deadline deadline) {
+        URI uri = URI.create(url);
+        String host = uri.getHost() + (uri.getPort() > 0 ? ":" + uri.getPort() : "");
+        UpstreamEndpoint endpoint = UpstreamEndpoint.of("GET", uri);
+
+        long timeout = upstreamLatencyService.socketTimeout(host, endpoint);
+        boolean cappedByDeadline = false;
+        if (deadline != null) {
+            if (deadline.isExpired()) {
+                return CompletableFuture.failedFuture(
+                        new HttpTimeoutException(deadline + " passed before request to " + host));
+            }
+            long remaining = Math.max(1, deadline.remainingMillis());
+            if (remaining < timeout) {
+                timeout = remaining;
+                cappedByDeadline = true;
+            }
+        }
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofMillis(timeout))
+                .header("Accept", FHIR_JSON)
+                .header("Authorization", "Bearer " + clientInfo.getBearerToken());
+
+        // the JDK client doesn't negotiate compression itself; parse() decompresses
+        if (compressionEnabled) {
+            builder.header("Accept-Encoding", GZIP);
+        }
+
+        HttpRequest request = builder.GET().build();
+
+        UpstreamGuard.Permit permit;
+        try {
+            // nothing waits on the response but a callback, so only the breaker applies
+            permit = upstreamGuardService.acquire(host, false);
+
+        } catch (UpstreamUnavailableException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        long start = System.nanoTime();
+        boolean timeoutIsOwn = ! cappedByDeadline;
+
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                .whenComplete((response, t) -> {
+                    int status = response != null ? response.statusCode() : 0;
+                    long nanos = System.nanoTime() - start;
+                    metricsService.recordUpstreamRequest(host, "GET", status, nanos);
+                    permit.release(status, nanos);
+                    // a timeout set by the deadline says nothing about the server's latency
+                    if (status > 0 || (timeoutIsOwn && UpstreamErrorUtil.isTimeout(t))) {
+                        upstreamLatencyService.record(host, endpoint, nanos);
+                    }
+                })
+                .thenApplyAsync(response -> parse(response, url, type), fhirCpuExecutor);
+    }
+
+    private <T extends IBaseResource> T parse(HttpResponse<byte[]> response, String url, Class<T> type) {
+        IBaseResource resource = null;
+        if (response.body().length > 0) {
+            try {
+                InputStream in = new ByteArrayInputStream(response.body());
+                if (response.headers().firstValue("Content-Encoding").orElse("").equalsIgnoreCase(GZIP)) {
+                    in = new GZIPInputStream(in);
+                }
+                try (FhirUtil.ParserLease lease = FhirUtil.borrowParser(fhirContext, FhirFormat.JSON, false)) {
+                    resource = lease.parser().parseResource(in);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("could not decompress response from " + url, e);
+            } catch (RuntimeException e) {
+                if (response.statusCode() / 100 == 2) throw e;
+            }
+        }
+
+        if (response.statusCode() / 100 != 2) {
+            BaseServerResponseException e = BaseServerResponseException.newInstance(response.statusCode(),
+                    "HTTP " + response.statusCode() + " from " + url);
+            if (resource instanceof IBaseOperationOutcome outcome) {
+                e.setOperationOutcome(outcome);
+            }
+            throw e;
+        }
+
+        if ( ! type.isInstance(resource) ) {
+            throw new IllegalStateException("expected " + type.getSimpleName() + " from " + url + " but got " +
+                    (resource == null ? "an empty response" : resource.fhirType()));
+        }
+
+        return type.cast(resource);
+    }
+}
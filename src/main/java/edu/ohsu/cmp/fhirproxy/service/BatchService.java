@@ -0,0 +1,203 @@
+package edu.ohsu.cmp.fhirproxy.service;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Executes the entries of a FHIR batch Bundle (https://www.hl7.org/fhir/R4/http.html#transaction) against the
+ * upstream server.  Only GET entries (read, vread and search) are supported.  Entries are run concurrently, at most
+ * batch.max-concurrency at a time for any one batch, and each entry succeeds or fails on its own: a failed entry is
+ * answered with an OperationOutcome and its status rather than failing the batch.
+ */
+@Service
+public class BatchService {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Value("${batch.max-concurrency:8}")
+    private Integer maxConcurrency;
+
+    @Value("${batch.max-entries:100}")
+    private Integer maxEntries;
+
+    @Autowired
+    private ProxyService proxyService;
+
+    @Autowired
+    private ResourceCacheService resourceCacheService;
+
+    @Autowired
+    private AsyncTaskExecutor aggregateExecutor;
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @param clientInfo
+     * @param batch a Bundle of type batch
+     * @param pageLimit the page limit applied to search entries
+     * @return a Bundle of type batch-response, with one entry for each entry in the batch, in the same order
+     */
+    public Bundle execute(ClientInfo clientInfo, Bundle batch, Integer pageLimit) {
+        logger.info("batch: " + batch.getEntry().size() + " entries for " + clientInfo.getServerUrl());
+
+        Semaphore permits = new Semaphore(Math.max(1, maxConcurrency));
+        List<CompletableFuture<Bundle.BundleEntryComponent>> futures = new ArrayList<>();
+
+        try {
+            for (Bundle.BundleEntryComponent entry : batch.getEntry()) {
+                permits.acquire();
+                CompletableFuture<Bundle.BundleEntryComponent> future;
+                try {
+                    future = CompletableFuture.supplyAsync(() -> executeEntry(clientInfo, entry, pageLimit),
+                            aggregateExecutor);
+                } catch (RuntimeException e) {
+                    permits.release();
+                    throw e;
+                }
+                futures.add(future.whenComplete((r, t) -> permits.release()));
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            futures.forEach(f -> f.cancel(true));
+            throw new IllegalStateException("interrupted while executing batch", e);
+        }
+
+        Bundle response = new Bundle();
+        response.setType(Bundle.BundleType.BATCHRESPONSE);
+        for (CompletableFuture<Bundle.BundleEntryComponent> future : futures) {
+            response.addEntry(future.join());
+        }
+        return response;
+    }
+
+///////////////////////////////////////////////////////////////////////////////////
+/// private methods
+///
+
+    private Bundle.BundleEntryComponent executeEntry(ClientInfo clientInfo, Bundle.BundleEntryComponent entry,
+                                                     Integer pageLimit) {
+        Bundle.BundleEntryRequestComponent request = entry.getRequest();
+        String url = request.getUrl();
+
+        try {
+            if (request.getMethod() != Bundle.HTTPVerb.GET) {
+                return outcomeEntry(HttpStatus.METHOD_NOT_ALLOWED, OperationOutcome.IssueType.NOTSUPPORTED,
+                        (request.getMethod() == null ? "missing method" : request.getMethod().toCode()) +
+                                " not supported in batch; only GET is supported");
+            }
+
+            if (StringUtils.isBlank(url)) {
+                return outcomeEntry(HttpStatus.BAD_REQUEST, OperationOutcome.IssueType.INVALID, "missing request url");
+            }
+
+            String path = StringUtils.substringBefore(url, "?");
+            Map<String, String> params = parseQuery(StringUtils.substringAfter(url, "?"));
+            String[] parts = StringUtils.strip(path, "/").split("/");
+
+            IBaseResource resource;
+            if (parts.length == 1) {
+                resource = proxyService.search(clientInfo, parts[0], params, pageLimit);
+
+            } else if (parts.length == 2) {
+                resource = resourceCacheService.isEnabled() ?
+                        resourceCacheService.read(clientInfo, parts[0], parts[1], params).getResource() :
+                        proxyService.read(clientInfo, parts[0], parts[1], params);
+
+            } else if (parts.length == 4 && parts[2].equals("_history")) {
+                resource = resourceCacheService.isEnabled() ?
+                        resourceCacheService.vread(clientInfo, parts[0], parts[1], parts[3], params).getResource() :
+                        proxyService.vread(clientInfo, parts[0], parts[1], parts[3], params);
+
+            } else {
+                return outcomeEntry(HttpStatus.BAD_REQUEST, OperationOutcome.IssueType.NOTSUPPORTED,
+                        "unsupported request url " + url);
+            }
+
+            Bundle.BundleEntryComponent responseEntry = new Bundle.BundleEntryComponent();
+            responseEntry.setResource((org.hl7.fhir.r4.model.Resource) resource);
+            responseEntry.getResponse().setStatus(statusLine(HttpStatus.OK.value()));
+            String versionId = resource.getMeta().getVersionId();
+            if (StringUtils.isNotBlank(versionId)) {
+                responseEntry.getResponse().setEtag("W/\"" + versionId + "\"");
+            }
+            if (resource.getMeta().getLastUpdated() != null) {
+                responseEntry.getResponse().setLastModified(resource.getMeta().getLastUpdated());
+            }
+            return responseEntry;
+
+        } catch (BaseServerResponseException bsre) {
+            logger.error("batch: " + url + " failed - " + bsre.getMessage());
+            Bundle.BundleEntryComponent responseEntry = new Bundle.BundleEntryComponent();
+            responseEntry.getResponse().setStatus(statusLine(bsre.getStatusCode()));
+            if (bsre.getOperationOutcome() instanceof OperationOutcome outcome) {
+                responseEntry.getResponse().setOutcome(outcome);
+            } else {
+                responseEntry.getResponse().setOutcome(outcome(OperationOutcome.IssueType.EXCEPTION, bsre.getMessage()));
+            }
+            return responseEntry;
+
+        } catch (Exception e) {
+            logger.error("batch: caught " + e.getClass().getSimpleName() + " executing " + url + " - " + e.getMessage());
+            logger.debug("stack trace: ", e);
+            return outcomeEntry(HttpStatus.INTERNAL_SERVER_ERROR, OperationOutcome.IssueType.EXCEPTION, e.getMessage());
+        }
+    }
+
+    private Bundle.BundleEntryComponent outcomeEntry(HttpStatus status, OperationOutcome.IssueType issueType,
+                                                     String diagnostics) {
+        Bundle.BundleEntryComponent responseEntry = new Bundle.BundleEntryComponent();
+        responseEntry.getResponse()
+                .setStatus(statusLine(status.value()))
+                .setOutcome(outcome(issueType, diagnostics));
+        return responseEntry;
+    }
+
+    private OperationOutcome outcome(OperationOutcome.IssueType issueType, String diagnostics) {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                .setCode(issueType)
+                .setDiagnostics(diagnostics);
+        return outcome;
+    }
+
+    private String statusLine(int statusCode) {
+        HttpStatus status = HttpStatus.resolve(statusCode);
+        return status != null ? statusCode + " " + status.getReasonPhrase() : String.valueOf(statusCode);
+    }
+
+    private Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new LinkedHashMap<>();
+        if (StringUtils.isNotBlank(query)) {
+            for (String pair : query.split("&")) {
+                if (pair.isEmpty()) continue;
+                String[] kv = pair.split("=", 2);
+                params.put(URLDecoder.decode(kv[0], StandardCharsets.UTF_8),
+                        kv.length > 1 ? URLDecoder.decode(kv[1], StandardCharsets.UTF_8) : "");
+            }
+        }
+        return params;
+    }
+}
@@ -0,0 +1,162 @@
+package edu.ohsu.cmp.fhirproxy.service;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import edu.ohsu.cmp.fhirproxy.util.Deadline;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.task.AsyncTaskExecutor;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One patient-compartment aggregation in progress: a search per configured resource type, all running at once.
+ * Pages are handed to the caller in the order in which they arrive, whichever search they come from.  A search that
+ * fails contributes an OperationOutcome entry instead of its results, and once the deadline has passed, any searches
+ * still running are abandoned and reported the same way.  Not thread-safe; intended to be drained by one thread.
+ */
+public class EverythingSearch implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(EverythingSearch.class);
+
+    /**
+     * A search to run for the patient: a resource type, its search parameters, and a page limit (null for none)
+     */
+    public record TypeSearch(String resourceType, Map<String, String> params, Integer pageLimit) {
+        @Override
+        public String toString() {
+            return resourceType + "?" + params;
+        }
+    }
+
+    private record Result(TypeSearch search, List<Bundle.BundleEntryComponent> entries, boolean last) {}
+
+    private final BlockingQueue<Result> results = new LinkedBlockingQueue<>();
+    private final List<Future<?>> futures = new ArrayList<>();
+    private final Set<TypeSearch> pending = new LinkedHashSet<>();
+    private final Set<String> seen = new HashSet<>();
+    private final long deadline;
+    private final long deadlineMillis;
+
+    private volatile boolean closed = false;
+    private boolean expired = false;
+
+    EverythingSearch(ProxyService proxyService, MetricsService metricsService, ClientInfo clientInfo,
+                     List<TypeSearch> searches, long deadlineMillis, AsyncTaskExecutor executor) {
+        this.deadlineMillis = deadlineMillis;
+        this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+
+        // the searches' upstream requests are cut short at the deadline too, rather than left to run on unread
+        Deadline upstreamDeadline = Deadline.after(deadlineMillis);
+        for (TypeSearch search : searches) {
+            pending.add(search);
+            futures.add(executor.submit(() -> upstreamDeadline.run(() ->
+                    run(proxyService, metricsService, clientInfo, search))));
+        }
+    }
+
+    /**
+     * Wait for the next page of entries from any of the searches.  Entries already returned for another search (by
+     * fullUrl) are dropped.
+     * @return the next page's entries, possibly empty; or null once every search has finished or been abandoned
+     * @throws InterruptedException
+     */
+    public List<Bundle.BundleEntryComponent> next() throws InterruptedException {
+        if (pending.isEmpty() || expired) {
+            return null;
+        }
+
+        Result result = results.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+
+        if (result == null) {
+            expired = true;
+            logger.warn("everything: deadline of " + deadlineMillis + " ms reached with " + pending.size() +
+                    " search(es) outstanding - " + pending);
+            close();
+            return List.of(outcomeEntry(OperationOutcome.IssueType.INCOMPLETE,
+                    "results are incomplete - deadline of " + deadlineMillis + " ms reached before " + pending +
+                            " finished"));
+        }
+
+        if (result.last()) {
+            pending.remove(result.search());
+        }
+
+        List<Bundle.BundleEntryComponent> entries = new ArrayList<>(result.entries().size());
+        for (Bundle.BundleEntryComponent entry : result.entries()) {
+            if ( ! entry.hasFullUrl() || seen.add(entry.getFullUrl()) ) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Abandon any searches still running
+     */
+    @Override
+    public void close() {
+        if ( ! closed ) {
+            closed = true;
+            futures.forEach(f -> f.cancel(true));
+        }
+    }
+
+///////////////////////////////////////////////////////////////////////////////////
+/// private methods
+///
+
+    private void run(ProxyService proxyService, MetricsService metricsService, ClientInfo clientInfo,
+                     TypeSearch search) {
+        try {
+            SearchPager pager = proxyService.openSearch(clientInfo, search.resourceType(), search.params(),
+                    search.pageLimit());
+
+            int entries = 0;
+            while ( ! closed && pager.hasNext() ) {
+                Bundle page = pager.next();
+                entries += page.getEntry().size();
+                results.add(new Result(search, page.getEntry(), ! pager.hasNext()));
+            }
+
+            metricsService.recordSearch(pager.getPagesFetched(), entries);
+
+        } catch (BaseServerResponseException bsre) {
+            logger.error("everything: " + search + " failed - " + bsre.getMessage());
+            results.add(new Result(search, List.of(outcomeEntry(OperationOutcome.IssueType.INCOMPLETE,
+                    search.resourceType() + " results are missing - " + bsre.getMessage())), true));
+
+        } catch (Exception e) {
+            if ( ! closed ) {
+                logger.error("everything: caught " + e.getClass().getSimpleName() + " running " + search + " - " +
+                        e.getMessage());
+                logger.debug("stack trace: ", e);
+                results.add(new Result(search, List.of(outcomeEntry(OperationOutcome.IssueType.EXCEPTION,
+                        search.resourceType() + " results are missing - " + e.getMessage())), true));
+            }
+        }
+    }
+
+    private static Bundle.BundleEntryComponent outcomeEntry(OperationOutcome.IssueType issueType, String diagnostics) {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                .setCode(issueType)
+                .setDiagnostics(diagnostics);
+
+        Bundle.BundleEntryComponent entry = new Bundle.BundleEntryComponent();
+        entry.setResource(outcome);
+        entry.getSearch().setMode(Bundle.SearchEntryMode.OUTCOME);
+        return entry;
+    }
+}
@@ -0,0 +1,124 @@
+package edu.ohsu.cmp.fhirproxy.service;
+
+import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import jakarta.annotation.PostConstruct;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assembles a view of the registered patient, in the manner of Patient/$everything
+ * (https://www.hl7.org/fhir/R4/patient-operation-everything.html), by running a search per resource type on the
+ * client's behalf.  The searches are configured by everything.searches, each a relative search URL in which
+ * {patientId} stands for the registered patient's id; each is paged as any other proxied search is, up to its page
+ * limit.  All of the searches run at once, so the whole takes about as long as the slowest of them, and no longer
+ * than everything.deadline.
+ */
+@Service
+public class EverythingService {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final String PATIENT_ID_TOKEN = "{patientId}";
+
+    @Value("${everything.searches:Patient?_id={patientId},Condition?patient={patientId},Observation?patient={patientId},MedicationRequest?patient={patientId},Encounter?patient={patientId}}")
+    private String searches;
+
+    @Value("${everything.page-limit:5}")
+    private Integer defaultPageLimit;
+
+    @Value("${everything.page-limits:}")
+    private String pageLimits;
+
+    @Value("${everything.deadline:10000}")
+    private Long deadline;
+
+    @Autowired
+    private ProxyService proxyService;
+
+    @Autowired
+    private MetricsService metricsService;
+
+    @Autowired
+    private AsyncTaskExecutor aggregateExecutor;
+
+    private final List<EverythingSearch.TypeSearch> templates = new ArrayList<>();
+
+    @PostConstruct
+    public void init() {
+        Map<String, Integer> pageLimitByType = new HashMap<>();
+        for (String pair : StringUtils.split(StringUtils.defaultString(pageLimits), ',')) {
+            String[] parts = pair.trim().split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("invalid everything.page-limits entry '" + pair +
+                        "' - expected ResourceType:limit");
+            }
+            pageLimitByType.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+        }
+
+        for (String search : StringUtils.split(searches, ',')) {
+            search = search.trim();
+            String resourceType = StringUtils.substringBefore(search, "?");
+
+            Map<String, String> params = new LinkedHashMap<>();
+            for (String param : StringUtils.split(StringUtils.substringAfter(search, "?"), '&')) {
+                String[] kv = param.split("=", 2);
+                params.put(kv[0], kv.length > 1 ? kv[1] : "");
+            }
+
+            templates.add(new EverythingSearch.TypeSearch(resourceType, params,
+                    pageLimitByType.getOrDefault(resourceType, defaultPageLimit)));
+        }
+
+        logger.info("everything: configured searches " + templates);
+    }
+
+    /**
+     * Start the configured searches for the client's registered patient
+     * @param clientInfo
+     * @param pageLimit if not null or 0, caps every search's page limit
+     * @return
+     */
+    public EverythingSearch open(ClientInfo clientInfo, Integer pageLimit) {
+        if (StringUtils.isBlank(clientInfo.getPatientId())) {
+            throw new IllegalArgumentException("registration has no patient");
+        }
+
+        List<EverythingSearch.TypeSearch> searches = new ArrayList<>();
+        for (EverythingSearch.TypeSearch template : templates) {
+            Map<String, String> params = new LinkedHashMap<>();
+            for (Map.Entry<String, String> entry : template.params().entrySet()) {
+                params.put(entry.getKey(), entry.getValue().replace(PATIENT_ID_TOKEN, clientInfo.getPatientId()));
+            }
+            searches.add(new EverythingSearch.TypeSearch(template.resourceType(), params,
+                    capPageLimit(template.pageLimit(), pageLimit)));
+        }
+
+        logger.info("everything: running " + searches.size() + " searches for patient " + clientInfo.getPatientId() +
+                " at " + clientInfo.getServerUrl());
+
+        return new EverythingSearch(proxyService, metricsService, clientInfo, searches, deadline, aggregateExecutor);
+    }
+
+///////////////////////////////////////////////////////////////////////////////////
+/// private methods
+///
+
+    private Integer capPageLimit(Integer configured, Integer requested) {
+        boolean configuredUnlimited = configured == null || configured == 0;
+        boolean requestedUnlimited = requested == null || requested == 0;
+
+        if (requestedUnlimited) return configured;
+        else if (configuredUnlimited) return requested;
+        else return Math.min(configured, requested);
+    }
+}
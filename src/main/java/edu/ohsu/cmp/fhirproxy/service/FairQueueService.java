@@ -0,0 +1,108 @@
+package edu.ohsu.cmp.fhirproxy.service;
+
+import edu.ohsu.cmp.fhirproxy.exception.UpstreamUnavailableException;
+import edu.ohsu.cmp.fhirproxy.util.Deadline;
+import edu.ohsu.cmp.fhirproxy.util.FairQueue;
+import jakarta.annotation.PostConstruct;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shares upstream requests fairly among registrations once the proxy is saturated.  Up to
+ * upstream.fair.max-concurrency upstream requests are sent at once, from all registrations together; past that,
+ * requests wait in a FairQueue in which each registration is a flow, weighted by its clientId
+ * (upstream.fair.weights).  A registration fetching hundreds of search pages then only delays the others' requests
+ * by its share, rather than by its whole backlog.  A request that isn't admitted within upstream.fair.max-wait, or
+ * before the current Deadline, fails with 503.
+ * Enabled by upstream.fair.enabled.
+ */
+@Service
+public class FairQueueService {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Value("${upstream.fair.enabled:false}")
+    private Boolean enabled;
+
+    @Value("${upstream.fair.max-concurrency:200}")
+    private Integer maxConcurrency;
+
+    @Value("${upstream.fair.max-wait:30000}")
+    private Long maxWait;
+
+    @Value("${upstream.fair.weights:}")
+    private String weights;
+
+    @Autowired
+    private MetricsService metricsService;
+
+    private record Flow(String clientId, String authorization) {}
+
+    private final Map<String, Double> weightByClientId = new HashMap<>();
+    private FairQueue queue;
+
+    @PostConstruct
+    public void init() {
+        for (String entry : StringUtils.split(StringUtils.defaultString(weights), ',')) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("invalid upstream.fair.weights entry '" + entry +
+                        "' - expected clientId:weight");
+            }
+            weightByClientId.put(parts[0].trim(), Double.parseDouble(parts[1].trim()));
+        }
+
+        queue = new FairQueue(maxConcurrency);
+        if (enabled) {
+            logger.info("fair queuing upstream requests beyond " + maxConcurrency + " at once, with weights " +
+                    weightByClientId);
+            metricsService.registerUpstreamQueue(queue::getWaiting);
+        }
+    }
+
+    /**
+     * Wait for a registration's turn to send an upstream request
+     * @param clientId the registration's clientId, or null if the request isn't made for a registration
+     * @param authorization the Authorization header of the upstream request, which tells registrations apart
+     * @throws UpstreamUnavailableException if not admitted in time
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public void acquire(String clientId, String authorization) throws InterruptedIOException {
+        if ( ! enabled ) return;
+
+        long timeout = maxWait;
+        Deadline deadline = Deadline.current();
+        if (deadline != null) {
+            timeout = Math.max(0, Math.min(timeout, deadline.remainingMillis()));
+        }
+
+        boolean admitted;
+        try {
+            admitted = queue.acquire(new Flow(clientId, authorization),
+                    clientId != null ? weightByClientId.getOrDefault(clientId, 1.0) : 1.0, timeout);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting to send upstream request");
+        }
+
+        if ( ! admitted ) {
+            throw new UpstreamUnavailableException("the proxy is saturated - upstream request for client " +
+                    clientId + " not sent after waiting " + timeout + " ms", 1);
+        }
+    }
+
+    /**
+     * Release the place of an upstream request that has completed, acquired with acquire()
+     */
+    public void release() {
+        if (enabled) queue.release();
+    }
+}
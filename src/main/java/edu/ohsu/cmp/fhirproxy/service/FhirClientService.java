@@ -0,0 +1,51 @@
+package edu.ohsu.cmp.fhirproxy.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import edu.ohsu.cmp.fhirproxy.util.FhirUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches one IGenericClient per registered upstream server, bearer token and clientId; the clientId is part of the
+ * key because each client tags its requests with it (see FhirUtil.buildClient).  All cached clients share the pooled
+ * HTTP client configured on the FhirContext, so upstream connections are reused across requests.
+ */
+@Service
+public class FhirClientService {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final Map<ClientKey, IGenericClient> clients = new ConcurrentHashMap<>();
+
+    @Autowired
+    private FhirContext fhirContext;
+
+    public IGenericClient getClient(ClientInfo clientInfo) {
+        return clients.computeIfAbsent(new ClientKey(clientInfo), key -> {
+            logger.debug("building client for " + clientInfo.getServerUrl());
+            return FhirUtil.buildClient(fhirContext, clientInfo);
+        });
+    }
+
+    public void evict(ClientInfo clientInfo) {
+        if (clients.remove(new ClientKey(clientInfo)) != null) {
+            logger.debug("evicted client for " + clientInfo.getServerUrl());
+        }
+    }
+
+    public int size() {
+        return clients.size();
+    }
+
+    private record ClientKey(String serverUrl, String bearerToken, String clientId) {
+        ClientKey(ClientInfo clientInfo) {
+            this(clientInfo.getServerUrl(), clientInfo.getBearerToken(), clientInfo.getClientId());
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package edu.ohsu.cmp.fhirproxy.service;
+
+import edu.ohsu.cmp.fhirproxy.model.RegisteredClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Default, single-node RegistrationStore.  Registrations are kept in a concurrent map so request threads never block
+ * one another, and are indexed by expiration time so that expired registrations can be removed in a single pass.
+ */
+public class InMemoryRegistrationStore implements RegistrationStore {
+    private final Map<String, RegisteredClient> map = new ConcurrentHashMap<>();
+    private final NavigableSet<Expiry> expiries = new ConcurrentSkipListSet<>();
+
+    @Override
+    public RegisteredClient get(String accessToken) {
+        return map.get(accessToken);
+    }
+
+    @Override
+    public RegisteredClient putIfAbsent(RegisteredClient registration) {
+        RegisteredClient[] existing = new RegisteredClient[1];
+        map.compute(registration.accessToken(), (key, current) -> {
+            if (current != null) {
+                existing[0] = current;
+                return current;
+            }
+            expiries.add(new Expiry(registration.expiresAt(), key));
+            return registration;
+        });
+        return existing[0];
+    }
+
+    @Override
+    public RegisteredClient remove(String accessToken) {
+        RegisteredClient removed = map.remove(accessToken);
+        if (removed != null) {
+            expiries.remove(new Expiry(removed.expiresAt(), accessToken));
+        }
+        return removed;
+    }
+
+    @Override
+    public List<RegisteredClient> removeExpired(long now) {
+        List<RegisteredClient> removed = new ArrayList<>();
+
+        Expiry expiry;
+        while ((expiry = firstExpiry()) != null && expiry.expiresAt() <= now) {
+            if (expiries.remove(expiry)) {
+                // only the registration this expiry was indexed for; it may since have been replaced by a renewal
+                Expiry swept = expiry;
+                map.computeIfPresent(swept.key(), (key, registration) -> {
+                    if (registration.expiresAt() != swept.expiresAt()) {
+                        return registration;
+                    }
+                    removed.add(registration);
+                    return null;
+                });
+            }
+        }
+
+        return removed;
+    }
+
+    @Override
+    public List<RegisteredClient> snapshot() {
+        return new ArrayList<>(map.values());
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+////////////////////////////////////////////////////////////////////////////////////
+/// private stuff
+///
+
+    private Expiry firstExpiry() {
+        try {
+            return expiries.first();
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    private record Expiry(long expiresAt, String key) implements Comparable<Expiry> {
+        @Override
+        public int compareTo(Expiry o) {
+            int c = Long.compare(expiresAt, o.expiresAt);
+            return c != 0 ? c : key.compareTo(o.key);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package edu.ohsu.cmp.fhirproxy.service;
+
+import edu.ohsu.cmp.fhirproxy.model.UpstreamEndpoint;
+import edu.ohsu.cmp.fhirproxy.util.UpstreamGuard;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The proxy's own meters, published with the rest of Micrometer's at /actuator/prometheus.  Request latency per
+ * endpoint comes from Spring's http.server.requests; the meters here cover what happens behind the endpoints, so that
+ * time spent waiting on the upstream server can be told apart from time spent paging and encoding.
+ */
+@Service
+public class MetricsService {
+    public static final String UPSTREAM_REQUESTS = "fhirproxy.upstream.requests";
+    public static final String UPSTREAM_ERRORS = "fhirproxy.upstream.errors";
+    public static final String UPSTREAM_LIMIT = "fhirproxy.upstream.limit";
+    public static final String UPSTREAM_IN_FLIGHT = "fhirproxy.upstream.in.flight";
+    public static final String UPSTREAM_BREAKER_STATE = "fhirproxy.upstream.breaker.state";
+    public static final String UPSTREAM_REJECTIONS = "fhirproxy.upstream.rejections";
+    public static final String UPSTREAM_TIMEOUT = "fhirproxy.upstream.timeout";
+    public static final String UPSTREAM_HEDGES = "fhirproxy.upstream.hedges";
+    public static final String UPSTREAM_QUEUED = "fhirproxy.upstream.queued";
+    public static final String RATE_LIMIT_REJECTIONS = "fhirproxy.ratelimit.rejections";
+    public static final String SEARCH_PAGES = "fhirproxy.search.pages";
+    public static final String SEARCH_ENTRIES = "fhirproxy.search.entries";
+    public static final String RESPONSE_BYTES = "fhirproxy.response.bytes";
+    public static final String RESPONSE_WRITES = "fhirproxy.response.writes";
+    public static final String REGISTRATIONS = "fhirproxy.registrations.active";
+    public static final String REGISTRATIONS_ADDED = "fhirproxy.registrations.added";
+    public static final String REGISTRATIONS_EXPIRED = "fhirproxy.registrations.expired";
+    public static final String REGISTRATION_SWEEPS = "fhirproxy.registrations.sweeps";
+
+    // the status tag of an upstream request that failed without a response
+    private static final String NO_RESPONSE = "NONE";
+
+    @Autowired
+    private MeterRegistry registry;
+
+    /**
+     * Record an upstream request
+     * @param host the upstream host, as host:port
+     * @param method
+     * @param status the response status, or 0 if no response was received
+     * @param nanos
+     */
+    public void recordUpstreamRequest(String host, String method, int status, long nanos) {
+        String statusTag = status > 0 ? String.valueOf(status) : NO_RESPONSE;
+
+        Timer.builder(UPSTREAM_REQUESTS)
+                .description("Requests made to upstream FHIR servers")
+                .tag("host", host)
+                .tag("method", method)
+                .tag("status", statusTag)
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+
+        if (status == 0 || status >= 400) {
+            Counter.builder(UPSTREAM_ERRORS)
+                    .description("Upstream requests that failed or got an error status")
+                    .tag("host", host)
+                    .tag("status", statusTag)
+                    .register(registry)
+                    .increment();
+        }
+    }
+
+    /**
+     * Publish the limit, in-flight requests and breaker state (0 closed, 1 half-open, 2 open) of an upstream guard
+     * @param host
+     * @param guard
+     */
+    public void registerUpstreamGuard(String host, UpstreamGuard guard) {
+        Gauge.builder(UPSTREAM_LIMIT, guard, UpstreamGuard::getLimit)
+                .description("Adaptive concurrency limit on requests to an upstream server")
+                .tag("host", host)
+                .register(registry);
+
+        Gauge.builder(UPSTREAM_IN_FLIGHT, guard, UpstreamGuard::getInFlight)
+                .description("Requests in flight to an upstream server")
+                .tag("host", host)
+                .register(registry);
+
+        Gauge.builder(UPSTREAM_BREAKER_STATE, guard, g -> switch (g.getState()) {
+                    case CLOSED -> 0;
+                    case HALF_OPEN -> 1;
+                    case OPEN -> 2;
+                })
+                .description("Circuit breaker state of an upstream server: 0 closed, 1 half-open, 2 open")
+                .tag("host", host)
+                .register(registry);
+    }
+
+    /**
+     * Record a request not sent to an upstream server
+     * @param host
+     * @param state the state of the server's breaker; if closed, the request was over the concurrency limit
+     */
+    public void recordUpstreamRejection(String host, UpstreamGuard.State state) {
+        Counter.builder(UPSTREAM_REJECTIONS)
+                .description("Requests not sent to an upstream server, over its limit or while its breaker was open")
+                .tag("host", host)
+                .tag("reason", state == UpstreamGuard.State.CLOSED ? "limit" : "breaker")
+                .register(registry)
+                .increment();
+    }
+
+    /**
+     * Publish the socket timeout given to requests of one kind to an upstream server (see UpstreamLatencyService)
+     * @param host
+     * @param endpoint
+     * @param timeoutMillis
+     */
+    public void registerUpstreamTimeout(String host, UpstreamEndpoint endpoint, Supplier<Number> timeoutMillis) {
+        Gauge.builder(UPSTREAM_TIMEOUT, timeoutMillis)
+                .description("Adaptive socket timeout of requests to an upstream server")
+                .baseUnit("milliseconds")
+                .tag("host", host)
+                .tag("endpoint", endpoint.name().toLowerCase())
+                .register(registry);
+    }
+
+    /**
+     * Record a hedged upstream request
+     * @param host
+     * @param endpoint
+     * @param hedgeWon true if the hedge's response arrived first, false if the original request's did
+     */
+    public void recordUpstreamHedge(String host, UpstreamEndpoint endpoint, boolean hedgeWon) {
+        Counter.builder(UPSTREAM_HEDGES)
+                .description("Upstream requests sent a second time for being slower than usual")
+                .tag("host", host)
+                .tag("endpoint", endpoint.name().toLowerCase())
+                .tag("winner", hedgeWon ? "hedge" : "original")
+                .register(registry)
+                .increment();
+    }
+
+    /**
+     * Publish the number of upstream requests waiting their registration's turn (see FairQueueService)
+     * @param waiting
+     */
+    public void registerUpstreamQueue(Supplier<Number> waiting) {
+        Gauge.builder(UPSTREAM_QUEUED, waiting)
+                .description("Upstream requests waiting to be sent while the proxy is saturated")
+                .register(registry);
+    }
+
+    /**
+     * Record a request refused for being over a rate limit
+     * @param scope the limit exceeded: access token or client
+     * @param clientId
+     */
+    public void recordRateLimitRejection(String scope, String clientId) {
+        Counter.builder(RATE_LIMIT_REJECTIONS)
+                .description("Requests refused with 429 for being over a rate limit")
+                .tag("scope", scope.replace(' ', '_'))
+                .tag("client", clientId)
+                .register(registry)
+                .increment();
+    }
+
+    /**
+     * Record a completed search
+     * @param pages the number of pages fetched from the upstream server
+     * @param entries the number of entries returned to the client
+     */
+    public void recordSearch(int pages, int entries) {
+        DistributionSummary.builder(SEARCH_PAGES)
+                .description("Upstream pages fetched per search")
+                .register(registry)
+                .record(pages);
+
+        DistributionSummary.builder(SEARCH_ENTRIES)
+                .description("Entries per search result Bundle")
+                .register(registry)
+                .record(entries);
+    }
+
+    /**
+     * Record a response body written to a client
+     * @param format the _format of the response (json, xml or rdf), or other
+     * @param bytes the number of bytes written, before any compression
+     * @param nanos the time taken to encode and write the body
+     */
+    public void recordResponse(String format, long bytes, long nanos) {
+        DistributionSummary.builder(RESPONSE_BYTES)
+                .description("Encoded size of response bodies")
+                .baseUnit("bytes")
+                .tag("format", format)
+                .register(registry)
+                .record(bytes);
+
+        Timer.builder(RESPONSE_WRITES)
+                .description("Time to encode and write response bodies")
+                .tag("format", format)
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void registerRegistrationGauge(Supplier<Number> size) {
+        Gauge.builder(REGISTRATIONS, size)
+                .description("Registrations currently held")
+                .register(registry);
+    }
+
+    public void recordRegistrationAdded() {
+        registry.counter(REGISTRATIONS_ADDED).increment();
+    }
+
+    public void recordRegistrationsExpired(int count) {
+        registry.counter(REGISTRATIONS_EXPIRED).increment(count);
+    }
+
+    /**
+     * @return the timer for executions of the job that sweeps out expired registrations
+     */
+    public Timer registrationSweepTimer() {
+        return Timer.builder(REGISTRATION_SWEEPS)
+                .description("Executions of the expired registration sweep")
+                .register(registry);
+    }
+}
@@ -0,0 +1,124 @@
+package edu.ohsu.cmp.fhirproxy.service;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Iterates over the pages of a search by following each page's next link until there are no more pages or the page
+ * limit has been reached.
+ * See: https://hapifhir.io/hapi-fhir/docs/client/examples.html#fetch-all-pages-of-a-bundle
+ *
+ * With a prefetch depth greater than 0, up to that many pages beyond the one most recently returned are fetched in
+ * the background, each as soon as the preceding page's next link is known, so upstream round trips overlap with
+ * whatever the caller does with each page.  Pages beyond the page limit are never requested.
+ */
+public class NextLinkSearchPager implements SearchPager {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final IGenericClient client;
+    private final Integer pageLimit;
+    private final int prefetchDepth;
+    private final Executor executor;
+
+    private final Deque<CompletableFuture<Bundle>> prefetched = new ArrayDeque<>();
+    private CompletableFuture<Bundle> lastScheduled;
+    private int pagesScheduled = 1;
+
+    private Bundle firstPage;
+    private Bundle currentPage = null;
+    private int pagesFetched = 1;
+
+    public NextLinkSearchPager(IGenericClient client, Bundle firstPage, Integer pageLimit) {
+        this(client, firstPage, pageLimit, 0, null);
+    }
+
+    public NextLinkSearchPager(IGenericClient client, Bundle firstPage, Integer pageLimit, int prefetchDepth, Executor executor) {
+        this.client = client;
+        this.firstPage = firstPage;
+        this.pageLimit = pageLimit;
+        this.prefetchDepth = executor != null ? prefetchDepth : 0;
+        this.executor = executor;
+        this.lastScheduled = CompletableFuture.completedFuture(firstPage);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (firstPage != null) {
+            return true;
+
+        } else if (currentPage.getLink(IBaseBundle.LINK_NEXT) == null) {
+            return false;
+
+        } else if (isPageLimitReached()) {
+            if (pageLimit > 1) {
+                logger.info("search: reached page limit of " + pageLimit + ", stopping search.");
+            }
+            return false;
+
+        } else {
+            return true;
+        }
+    }
+
+    @Override
+    public Bundle next() {
+        if ( ! hasNext() ) {
+            throw new NoSuchElementException();
+        }
+
+        if (firstPage != null) {
+            currentPage = firstPage;
+            firstPage = null;
+
+        } else if (prefetchDepth > 0) {
+            currentPage = SearchPager.join(prefetched.removeFirst());
+            pagesFetched++;
+
+        } else {
+            currentPage = fetchNext(currentPage, pagesFetched + 1);
+            pagesFetched++;
+        }
+
+        schedulePrefetch();
+
+        return currentPage;
+    }
+
+    @Override
+    public int getPagesFetched() {
+        return pagesFetched;
+    }
+
+    private boolean isPageLimitReached() {
+        return pageLimit != null && pageLimit != 0 && pagesFetched >= pageLimit;
+    }
+
+    private void schedulePrefetch() {
+        if (currentPage.getLink(IBaseBundle.LINK_NEXT) == null) {
+            return;
+        }
+
+        while (prefetched.size() < prefetchDepth && (pageLimit == null || pageLimit == 0 || pagesScheduled < pageLimit)) {
+            int pageNumber = ++pagesScheduled;
+            lastScheduled = lastScheduled.thenApplyAsync(previous -> previous != null && previous.getLink(IBaseBundle.LINK_NEXT) != null ?
+                    fetchNext(previous, pageNumber) :
+                    null,
+                    executor);
+            prefetched.addLast(lastScheduled);
+        }
+    }
+
+    private Bundle fetchNext(Bundle previous, int pageNumber) {
+        logger.info("search: fetching next page (" + pageNumber + ") from " + previous.getLink(IBaseBundle.LINK_NEXT).getUrl());
+        return client.loadPage().next(previous).execute();
+    }
+}
@@ -0,0 +1,130 @@
+package edu.ohsu.cmp.fhirproxy.service;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Iterates over the pages of a search whose upstream server pages by offset, as HAPI-based servers do with
+ * _getpagesoffset and _count.  Since the URL of every page can be derived from the first page's next link and total,
+ * the remaining pages are fetched concurrently, up to maxConcurrency at a time, and returned in order.
+ * Use planPageUrls() to determine whether a search can be paged this way.
+ */
+public class OffsetSearchPager implements SearchPager {
+    private static final Logger logger = LoggerFactory.getLogger(OffsetSearchPager.class);
+
+    private static final Pattern OFFSET_PARAM = Pattern.compile("([?&](?:_getpagesoffset|_offset)=)(\\d+)");
+    private static final Pattern COUNT_PARAM = Pattern.compile("[?&]_count=(\\d+)");
+
+    private final IGenericClient client;
+    private final List<String> pageUrls;
+    private final int maxConcurrency;
+    private final Executor executor;
+
+    private final Deque<CompletableFuture<Bundle>> inFlight = new ArrayDeque<>();
+    private int pagesSubmitted = 0;
+
+    private Bundle firstPage;
+    private int pagesFetched = 1;
+
+    public OffsetSearchPager(IGenericClient client, Bundle firstPage, List<String> pageUrls, int maxConcurrency,
+                             Executor executor) {
+        this.client = client;
+        this.firstPage = firstPage;
+        this.pageUrls = pageUrls;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.executor = executor;
+    }
+
+    /**
+     * Derive the URLs of every page after the first from the first page's next link, its _count, and the search
+     * total.  Returns null if the upstream server doesn't appear to use offset paging or doesn't report a total.
+     * @param firstPage
+     * @param pageLimit
+     * @return
+     */
+    public static List<String> planPageUrls(Bundle firstPage, Integer pageLimit) {
+        Bundle.BundleLinkComponent next = firstPage.getLink(IBaseBundle.LINK_NEXT);
+        if (next == null || ! firstPage.hasTotal()) {
+            return null;
+        }
+
+        String nextUrl = next.getUrl();
+        Matcher offsetMatcher = OFFSET_PARAM.matcher(nextUrl);
+        Matcher countMatcher = COUNT_PARAM.matcher(nextUrl);
+        if ( ! offsetMatcher.find() || ! countMatcher.find() ) {
+            return null;
+        }
+
+        int firstOffset = Integer.parseInt(offsetMatcher.group(2));
+        int count = Integer.parseInt(countMatcher.group(1));
+        int total = firstPage.getTotal();
+        if (firstOffset <= 0 || count <= 0) {
+            return null;
+        }
+
+        int maxPages = pageLimit != null && pageLimit != 0 ? pageLimit - 1 : Integer.MAX_VALUE;
+
+        List<String> urls = new ArrayList<>();
+        for (int offset = firstOffset; offset < total && urls.size() < maxPages; offset += count) {
+            urls.add(offsetMatcher.replaceFirst("$1" + offset));
+        }
+        return urls;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return firstPage != null || pagesFetched - 1 < pageUrls.size();
+    }
+
+    @Override
+    public Bundle next() {
+        if ( ! hasNext() ) {
+            throw new NoSuchElementException();
+        }
+
+        Bundle page;
+        if (firstPage != null) {
+            page = firstPage;
+            firstPage = null;
+
+        } else {
+            page = SearchPager.join(inFlight.removeFirst());
+            pagesFetched++;
+        }
+
+        while (inFlight.size() < maxConcurrency && pagesSubmitted < pageUrls.size()) {
+            String url = pageUrls.get(pagesSubmitted);
+            int pageNumber = pagesSubmitted + 2;
+            inFlight.addLast(CompletableFuture.supplyAsync(() -> fetch(url, pageNumber), executor));
+            pagesSubmitted++;
+        }
+
+        return page;
+    }
+
+    @Override
+    public int getPagesFetched() {
+        return pagesFetched;
+    }
+
+    private Bundle fetch(String url, int pageNumber) {
+        logger.info("search: fetching page (" + pageNumber + ") from " + url);
+        return client.loadPage()
+                .byUrl(url)
+                .andReturnBundle(Bundle.class)
+                .execute();
+    }
+}
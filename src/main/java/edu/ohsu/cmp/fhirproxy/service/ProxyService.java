@@ -1,100 +1,181 @@
 package edu.ohsu.cmp.fhirproxy.service;
 
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
 import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
-import edu.ohsu.cmp.fhirproxy.util.FhirUtil;
+import edu.ohsu.cmp.fhirproxy.model.UpstreamEndpoint;
+import edu.ohsu.cmp.fhirproxy.util.Deadline;
+import edu.ohsu.cmp.fhirproxy.util.SingleFlight;
 import org.apache.commons.lang3.StringUtils;
-import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
 
 @Service
 public class ProxyService {
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
-    @Value("${socket.timeout:300000}")
-    private Integer socketTimeout;
+    @Value("${search.prefetch-depth:1}")
+    private Integer prefetchDepth;
+
+    @Value("${search.coalesce.enabled:true}")
+    private Boolean coalesceEnabled;
+
+    @Value("${search.fanout.enabled:true}")
+    private Boolean fanoutEnabled;
+
+    @Value("${search.fanout.max-concurrency:4}")
+    private Integer fanoutMaxConcurrency;
+
+    @Value("${search.deadline:120000}")
+    private Long searchDeadline;
+
+    @Autowired
+    private FhirClientService fhirClientService;
+
+    @Autowired
+    private AsyncTaskExecutor upstreamExecutor;
+
+    @Autowired
+    private MetricsService metricsService;
+
+    @Autowired
+    private UpstreamLatencyService upstreamLatencyService;
+
+    private final SingleFlight<SearchKey, Bundle> searchFlights = new SingleFlight<>();
 
     public IBaseResource read(ClientInfo clientInfo, String resourceType, String id, Map<String, String> paramsMap) {
         logger.info("read: " + clientInfo.getServerUrl() + "/" + resourceType + "/" + id);
 
-        IGenericClient client = FhirUtil.buildClient(clientInfo, socketTimeout);
+        IGenericClient client = fhirClientService.getClient(clientInfo);
 
         // todo : incorporate params
 
-        IBaseResource resource = client.read()
+        return upstreamLatencyService.hedge(clientInfo.getServerUrl(), UpstreamEndpoint.READ, () -> client.read()
                 .resource(resourceType)
                 .withId(id)
-                .execute();
+                .execute());
+    }
+
+    /**
+     * Re-read a resource conditionally, using If-None-Match with the version already held by the caller
+     * @param clientInfo
+     * @param resourceType
+     * @param id
+     * @param versionId
+     * @param paramsMap
+     * @return the current resource, or null if the upstream server reports that versionId is still current
+     */
+    public IBaseResource readIfModified(ClientInfo clientInfo, String resourceType, String id, String versionId,
+                                        Map<String, String> paramsMap) {
+        logger.info("read: " + clientInfo.getServerUrl() + "/" + resourceType + "/" + id + " (if version " +
+                versionId + " is not current)");
+
+        IGenericClient client = fhirClientService.getClient(clientInfo);
 
-        return resource;
+        return upstreamLatencyService.hedge(clientInfo.getServerUrl(), UpstreamEndpoint.READ, () -> client.read()
+                .resource(resourceType)
+                .withId(id)
+                .ifVersionMatches(versionId).returnNull()
+                .execute());
     }
 
     public IBaseResource vread(ClientInfo clientInfo, String resourceType, String id, String vid, Map<String, String> paramsMap) {
         logger.info("vread: " + clientInfo.getServerUrl() + "/" + resourceType + "/" + id + "/_history/" + vid);
 
-        IGenericClient client = FhirUtil.buildClient(clientInfo, socketTimeout);
+        IGenericClient client = fhirClientService.getClient(clientInfo);
 
         // todo : incorporate params
 
-        IBaseResource resource = client.read()
+        return upstreamLatencyService.hedge(clientInfo.getServerUrl(), UpstreamEndpoint.VREAD, () -> client.read()
                 .resource(resourceType)
                 .withIdAndVersion(id, vid)
-                .execute();
-
-        return resource;
+                .execute());
     }
 
+    /**
+     * Search, aggregating all pages (up to pageLimit) into a single Bundle.  Identical searches made concurrently for
+     * the same registration share a single upstream search and its result.  The search as a whole must be done
+     * within search.deadline; pages not fetched by then are left out (see aggregate()).
+     * @param clientInfo
+     * @param resourceType
+     * @param paramsMap
+     * @param pageLimit
+     * @return
+     */
     public Bundle search(ClientInfo clientInfo, String resourceType, Map<String, String> paramsMap,
                          Integer pageLimit) {
-        IGenericClient client = FhirUtil.buildClient(clientInfo, socketTimeout);
+        if (coalesceEnabled) {
+            SearchKey key = new SearchKey(clientInfo, resourceType, paramsMap, pageLimit);
+            return searchFlights.execute(key, () -> aggregateSearch(clientInfo, resourceType, paramsMap, pageLimit));
 
-        List<String> paramsList = new ArrayList<>();
-
-        for (Map.Entry<String,String> entry : paramsMap.entrySet()) {
-            paramsList.add(entry.getKey() + "=" + entry.getValue());
+        } else {
+            return aggregateSearch(clientInfo, resourceType, paramsMap, pageLimit);
         }
+    }
 
-        String path = resourceType + "?" + StringUtils.join(paramsList, "&");;
-
-        logger.info("search: " + clientInfo.getServerUrl() + "/" + path);
+    /**
+     * @return a deadline of search.deadline from now, by which a search as a whole must be done
+     */
+    public Deadline newSearchDeadline() {
+        return Deadline.after(searchDeadline);
+    }
 
-        Bundle bundle = client.search()
-                .byUrl(path)
-                .returnBundle(Bundle.class)
-                .execute();
+    private Bundle aggregateSearch(ClientInfo clientInfo, String resourceType, Map<String, String> paramsMap,
+                                   Integer pageLimit) {
+        return newSearchDeadline().call(() -> {
+            SearchPager pager = openSearch(clientInfo, resourceType, paramsMap, pageLimit);
+            Bundle bundle = aggregate(pager);
+            metricsService.recordSearch(pager.getPagesFetched(), bundle.getEntry().size());
+            return bundle;
+        });
+    }
 
-        int total = bundle.getTotal();
+    /**
+     * Drain a pager into a single Bundle.  A search that returns a single page is returned as that page; otherwise
+     * the entries of every page are collected into a new searchset Bundle with the total reported by the first.  If
+     * the current Deadline passes before the last page has been fetched, the entries collected so far are returned,
+     * followed by an OperationOutcome entry saying that the results are incomplete.
+     * @param pager
+     * @return
+     */
+    public static Bundle aggregate(SearchPager pager) {
+        Bundle bundle = pager.next();
 
-        if (bundle.getLink(IBaseBundle.LINK_NEXT) == null || (pageLimit != null && pageLimit == 1)) {
+        if ( ! pager.hasNext() ) {
             return bundle;
 
         } else {
-            // see: https://hapifhir.io/hapi-fhir/docs/client/examples.html#fetch-all-pages-of-a-bundle
+            int total = bundle.getTotal();
 
             List<Bundle.BundleEntryComponent> entryList = new ArrayList<>();
             entryList.addAll(bundle.getEntry());
 
-            int pagesIncorporated = 1;
-
-            while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-                logger.info("search: fetching next page (" + (pagesIncorporated + 1) + ") from " +
-                        bundle.getLink(IBaseBundle.LINK_NEXT).getUrl());
+            Deadline deadline = Deadline.current();
+            while (pager.hasNext()) {
+                if (deadline != null && deadline.isExpired()) {
+                    entryList.add(incompleteEntry(deadline, pager));
+                    break;
+                }
 
-                bundle = client.loadPage().next(bundle).execute();
-                entryList.addAll(bundle.getEntry());
-                pagesIncorporated++;
+                try {
+                    entryList.addAll(pager.next().getEntry());
 
-                if (pageLimit != null && pageLimit != 0 && pagesIncorporated >= pageLimit) {
-                    logger.info("search: reached page limit of " + pageLimit + ", stopping search.");
+                } catch (FhirClientConnectionException e) {
+                    if (deadline == null || ! deadline.isExpired()) throw e;
+                    entryList.add(incompleteEntry(deadline, pager));
                     break;
                 }
             }
@@ -107,4 +188,95 @@ public class ProxyService {
             return compositeBundle;
         }
     }
+
+    /**
+     * Execute a search and return a pager positioned before its first page.  The first page has already been
+     * fetched when this method returns, so errors from the initial search request surface here; subsequent pages are
+     * fetched as the pager is advanced.  If the upstream server pages by offset and reports a total, the remaining
+     * pages are fetched concurrently; otherwise next links are followed one at a time.  Pages fetched in the
+     * background are subject to the Deadline current when the search is opened.
+     * @param clientInfo
+     * @param resourceType
+     * @param paramsMap
+     * @param pageLimit
+     * @return
+     */
+    public SearchPager openSearch(ClientInfo clientInfo, String resourceType, Map<String, String> paramsMap,
+                                  Integer pageLimit) {
+        IGenericClient client = fhirClientService.getClient(clientInfo);
+
+        List<String> paramsList = new ArrayList<>();
+
+        for (Map.Entry<String,String> entry : paramsMap.entrySet()) {
+            paramsList.add(entry.getKey() + "=" + entry.getValue());
+        }
+
+        String path = resourceType + "?" + StringUtils.join(paramsList, "&");
+
+        logger.info("search: " + clientInfo.getServerUrl() + "/" + path);
+
+        Bundle bundle = client.search()
+                .byUrl(path)
+                .returnBundle(Bundle.class)
+                .execute();
+
+        Deadline deadline = Deadline.current();
+        Executor executor = deadline != null ? deadline.wrap(upstreamExecutor) : upstreamExecutor;
+
+        if (fanoutEnabled) {
+            List<String> pageUrls = OffsetSearchPager.planPageUrls(bundle, pageLimit);
+            if (pageUrls != null) {
+                logger.info("search: upstream pages by offset, fetching " + pageUrls.size() + " more page(s) concurrently");
+                return new OffsetSearchPager(client, bundle, pageUrls, fanoutMaxConcurrency, executor);
+            }
+        }
+
+        return new NextLinkSearchPager(client, bundle, pageLimit, prefetchDepth, executor);
+    }
+
+    /**
+     * @return the entry that ends the results of a search cut short by its deadline
+     */
+    public static Bundle.BundleEntryComponent incompleteEntry(Deadline deadline, SearchPager pager) {
+        return incompleteEntry(deadline, pager.getPagesFetched());
+    }
+
+    /**
+     * @return the entry that ends the results of a search cut short by its deadline after pagesFetched pages
+     */
+    public static Bundle.BundleEntryComponent incompleteEntry(Deadline deadline, int pagesFetched) {
+        LoggerFactory.getLogger(ProxyService.class).warn("search: " + deadline + " reached after " +
+                pagesFetched + " page(s), returning incomplete results");
+
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                .setCode(OperationOutcome.IssueType.INCOMPLETE)
+                .setDiagnostics("results are incomplete - " + deadline + " reached after " +
+                        pagesFetched + " page(s)");
+
+        Bundle.BundleEntryComponent entry = new Bundle.BundleEntryComponent();
+        entry.setResource(outcome);
+        entry.getSearch().setMode(Bundle.SearchEntryMode.OUTCOME);
+        return entry;
+    }
+
+    /**
+     * Identifies equivalent searches: the same registration, resource type, parameters (in any order, ignoring those
+     * that only affect how the proxy encodes its response) and page limit
+     */
+    private record SearchKey(ClientInfo clientInfo, String resourceType, Map<String, String> params, Integer pageLimit) {
+        SearchKey {
+            resourceType = resourceType.trim();
+
+            Map<String, String> sorted = new TreeMap<>(params);
+            sorted.remove("_format");
+            sorted.remove("_pretty");
+            params = sorted;
+
+            if (pageLimit != null && pageLimit == 0) {
+                pageLimit = null;
+            }
+        }
+    }
 }
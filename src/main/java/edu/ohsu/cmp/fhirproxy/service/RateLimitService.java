@@ -0,0 +1,139 @@
+package edu.ohsu.cmp.fhirproxy.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import edu.ohsu.cmp.fhirproxy.exception.RateLimitExceededException;
+import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import edu.ohsu.cmp.fhirproxy.util.TokenBucket;
+import jakarta.annotation.PostConstruct;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate limits proxied requests with a token bucket per access token (ratelimit.token.*) and another per clientId
+ * (ratelimit.client.*), so that no one registration, nor all of one client's registrations together, can take more
+ * than their share of the proxy.  A request must get a token from both, starting with its access token's, which is
+ * taken before the access token is even known to be registered.  The clientId limit can be set per client
+ * with ratelimit.client.limits.  Buckets of access tokens no longer in use are dropped once they would be full again.
+ * Enabled by ratelimit.enabled.
+ */
+@Service
+public class RateLimitService {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final String UNKNOWN_CLIENT = "unknown";
+
+    @Value("${ratelimit.enabled:false}")
+    private Boolean enabled;
+
+    @Value("${ratelimit.token.rate:20}")
+    private Double tokenRate;
+
+    @Value("${ratelimit.token.burst:40}")
+    private Integer tokenBurst;
+
+    @Value("${ratelimit.client.rate:100}")
+    private Double clientRate;
+
+    @Value("${ratelimit.client.burst:200}")
+    private Integer clientBurst;
+
+    @Value("${ratelimit.client.limits:}")
+    private String clientLimits;
+
+    @Autowired
+    private MetricsService metricsService;
+
+    private record Limit(double rate, int burst) {}
+
+    private final Map<String, Limit> limitByClientId = new HashMap<>();
+    private final Map<String, TokenBucket> clientBuckets = new ConcurrentHashMap<>();
+    private Cache<String, TokenBucket> tokenBuckets;
+
+    @PostConstruct
+    public void init() {
+        for (String entry : StringUtils.split(StringUtils.defaultString(clientLimits), ',')) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length < 2 || parts.length > 3) {
+                throw new IllegalArgumentException("invalid ratelimit.client.limits entry '" + entry +
+                        "' - expected clientId:rate or clientId:rate:burst");
+            }
+            double rate = Double.parseDouble(parts[1].trim());
+            int burst = parts.length == 3 ? Integer.parseInt(parts[2].trim()) : (int) Math.max(1, Math.ceil(rate));
+            limitByClientId.put(parts[0].trim(), new Limit(rate, burst));
+        }
+
+        // an idle bucket refills completely in burst / rate seconds, after which it's as good as new
+        tokenBuckets = Caffeine.newBuilder()
+                .expireAfterAccess(Duration.ofMillis((long) Math.ceil(1000 * tokenBurst / tokenRate) + 1000))
+                .build();
+
+        if (enabled) {
+            logger.info("rate limiting at " + tokenRate + "/s (burst " + tokenBurst + ") per access token and " +
+                    clientRate + "/s (burst " + clientBurst + ") per client, except " + limitByClientId);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Take an access token's token for one request.  This comes before the access token is looked up, so that
+     * requests with access tokens that aren't registered, which must be looked up on every peer, are limited too.
+     * @param accessToken the proxy access token the request was made with, registered or not
+     * @throws RateLimitExceededException if the access token is over its limit
+     */
+    public void acquire(String accessToken) {
+        if ( ! enabled ) return;
+
+        long wait = tokenBuckets.get(accessToken, k -> new TokenBucket(tokenRate, tokenBurst)).tryAcquire();
+        if (wait > 0) {
+            // the access token's registration isn't looked up for a request that's refused anyway
+            throw reject("access token", UNKNOWN_CLIENT, wait);
+        }
+    }
+
+    /**
+     * Take a client's token for one request, once its access token has had its own (see acquire(String))
+     * @param clientInfo the registration of the access token the request was made with
+     * @throws RateLimitExceededException if the registration's client is over its limit
+     */
+    public void acquire(ClientInfo clientInfo) {
+        if ( ! enabled ) return;
+
+        String clientId = String.valueOf(clientInfo.getClientId());
+
+        long wait = clientBuckets.computeIfAbsent(clientId, this::createClientBucket).tryAcquire();
+        if (wait > 0) {
+            throw reject("client", clientId, wait);
+        }
+    }
+
+///////////////////////////////////////////////////////////////////////////////////
+/// private methods
+///
+
+    private TokenBucket createClientBucket(String clientId) {
+        Limit limit = limitByClientId.getOrDefault(clientId, new Limit(clientRate, clientBurst));
+        return new TokenBucket(limit.rate(), limit.burst());
+    }
+
+    private RateLimitExceededException reject(String scope, String clientId, long waitNanos) {
+        metricsService.recordRateLimitRejection(scope, clientId);
+        int retryAfter = (int) Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1));
+        return new RateLimitExceededException("rate limit exceeded for " + scope +
+                (clientId.equals(UNKNOWN_CLIENT) ? "" : " of client " + clientId) +
+                " - retry after " + retryAfter + " s", retryAfter);
+    }
+}
@@ -0,0 +1,370 @@
+package edu.ohsu.cmp.fhirproxy.service;
+
+import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import edu.ohsu.cmp.fhirproxy.model.RegisteredClient;
+import edu.ohsu.cmp.fhirproxy.util.CryptoUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Append-only, encrypted journal of client registrations, replayed at startup so that access tokens issued before a
+ * restart remain valid after it.  Each record is individually sealed with AES-GCM under a fresh IV, so a record that
+ * was cut short by a crash, or that has been tampered with, is detected rather than silently misread.
+ *
+ * The journal is compacted when it is opened and whenever dead records (deletions, expirations) come to outnumber
+ * live ones, so replay time is bounded by the number of live registrations rather than by the age of the file.
+ *
+ * Writers are serialized with a {@link ReentrantLock} rather than a monitor, since appends write and fsync the file on
+ * the registering request's (virtual) thread, and blocking I/O inside {@code synchronized} would pin its carrier.
+ * Records are encrypted before the lock is taken, so only the write itself is serialized.
+ */
+public class RegistrationJournal implements Closeable {
+    private static final byte[] MAGIC = "FPRJ1".getBytes(StandardCharsets.US_ASCII);
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH_BITS = 128;
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+    private static final int COMPACT_MIN_RECORDS = 1024;
+
+    private static final byte TYPE_SALT = 1;
+    private static final byte TYPE_PUT = 2;
+    private static final byte TYPE_DELETE = 3;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final Path path;
+    private final SecretKey key;
+    private final boolean fsync;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private FileOutputStream fileOut;
+    private DataOutputStream out;
+    private int recordCount;
+
+    public RegistrationJournal(Path path, SecretKey key, boolean fsync) {
+        this.path = path;
+        this.key = key;
+        this.fsync = fsync;
+    }
+
+    /**
+     * Read the journal, if one exists, discarding deleted registrations and any that expired at or before the
+     * specified time.  The journal must subsequently be rewritten with compact() before anything is appended to it.
+     * @param now
+     * @return the salt and live registrations recorded in the journal; the salt is null if there is no journal yet
+     * @throws IOException if the journal can't be read, or can't be decrypted with the configured key
+     */
+    public Replay replay(long now) throws IOException {
+        lock.lock();
+        try {
+            return readJournal(now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Atomically replace the journal with one holding only the specified salt and registrations, and open it for
+     * appending.
+     * @param salt
+     * @param registrations
+     * @throws IOException
+     */
+    public void compact(String salt, Collection<RegisteredClient> registrations) throws IOException {
+        lock.lock();
+        try {
+            rewrite(salt, registrations);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Compact the journal if it holds substantially more records than there are live registrations
+     * @param salt
+     * @param liveCount the current number of live registrations
+     * @param registrations supplies a snapshot of the live registrations; only called if the journal is compacted
+     * @return true if the journal was compacted
+     */
+    public boolean compactIfNeeded(String salt, int liveCount,
+                                   Supplier<Collection<RegisteredClient>> registrations) throws IOException {
+        lock.lock();
+        try {
+            if (recordCount > COMPACT_MIN_RECORDS && recordCount > 2 * (liveCount + 1)) {
+                rewrite(salt, registrations.get());
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void appendPut(RegisteredClient registered) throws IOException {
+        append(seal(newCipher(), putRecord(registered)));
+    }
+
+    public void appendDelete(String accessToken) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(baos);
+        record.writeByte(TYPE_DELETE);
+        writeString(record, accessToken);
+        append(seal(newCipher(), baos.toByteArray()));
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closeStreams();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static SecretKey decodeKey(String base64Key) {
+        if (base64Key == null || base64Key.isBlank()) {
+            throw new IllegalArgumentException("registration.journal.key must be set when the registration journal is enabled");
+        }
+        byte[] bytes = Base64.getDecoder().decode(base64Key.trim());
+        if (bytes.length != 16 && bytes.length != 24 && bytes.length != 32) {
+            throw new IllegalArgumentException("registration.journal.key must be a base64-encoded 128, 192 or 256-bit AES key");
+        }
+        return new SecretKeySpec(bytes, "AES");
+    }
+
+    public record Replay(String salt, List<RegisteredClient> registrations) {
+    }
+
+////////////////////////////////////////////////////////////////////////////////////
+/// private stuff
+///
+
+    private Replay readJournal(long now) throws IOException {
+        if ( ! Files.exists(path) ) {
+            logger.info("registration journal " + path + " does not exist - starting empty");
+            return new Replay(null, List.of());
+        }
+
+        long start = System.currentTimeMillis();
+        String salt = null;
+        Map<String, RegisteredClient> live = new LinkedHashMap<>();
+        int records = 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 65536))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if ( ! Arrays.equals(magic, MAGIC) ) {
+                throw new IOException(path + " is not a registration journal");
+            }
+
+            Cipher cipher = newCipher();
+            while (true) {
+                byte[] plaintext;
+                try {
+                    plaintext = readRecord(in, cipher);
+                    if (plaintext == null) break;
+
+                } catch (EOFException e) {
+                    logger.warn("registration journal " + path + " ends with a truncated record - ignoring it");
+                    break;
+
+                } catch (GeneralSecurityException e) {
+                    if (records == 0) {
+                        throw new IOException("couldn't decrypt registration journal " + path +
+                                " - is registration.journal.key correct?", e);
+                    }
+                    logger.warn("registration journal " + path + " has a corrupt record after " + records +
+                            " record(s) - ignoring it and everything after it");
+                    break;
+                }
+
+                records++;
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(plaintext));
+                switch (record.readByte()) {
+                    case TYPE_SALT -> salt = readString(record);
+                    case TYPE_PUT -> {
+                        String accessToken = readString(record);
+                        ClientInfo clientInfo = new ClientInfo(readString(record), readString(record),
+                                readString(record), readString(record), readString(record));
+                        long expiresAt = record.readLong();
+                        live.put(accessToken, new RegisteredClient(accessToken, clientInfo, expiresAt));
+                    }
+                    case TYPE_DELETE -> live.remove(readString(record));
+                    default -> throw new IOException("unrecognized record type in registration journal " + path);
+                }
+            }
+        }
+
+        live.values().removeIf(r -> r.isExpired(now));
+
+        logger.info("replayed " + records + " registration journal record(s) from " + path + " in " +
+                (System.currentTimeMillis() - start) + " ms (" + live.size() + " live registration(s))");
+
+        return new Replay(salt, new ArrayList<>(live.values()));
+    }
+
+    private void rewrite(String salt, Collection<RegisteredClient> registrations) throws IOException {
+        long start = System.currentTimeMillis();
+        closeStreams();
+
+        Path dir = path.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, path.getFileName().toString(), ".tmp");
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+                 DataOutputStream tmpOut = new DataOutputStream(new BufferedOutputStream(fos, 65536))) {
+                tmpOut.write(MAGIC);
+                Cipher cipher = newCipher();
+                tmpOut.write(seal(cipher, saltRecord(salt)));
+                for (RegisteredClient r : registrations) {
+                    tmpOut.write(seal(cipher, putRecord(r)));
+                }
+                tmpOut.flush();
+                fos.getFD().sync();
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+
+        recordCount = registrations.size() + 1;
+        fileOut = new FileOutputStream(path.toFile(), true);
+        out = new DataOutputStream(new BufferedOutputStream(fileOut));
+
+        logger.info("compacted registration journal " + path + " to " + registrations.size() +
+                " registration(s) in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void append(byte[] sealed) throws IOException {
+        lock.lock();
+        try {
+            if (out == null) {
+                throw new IllegalStateException("registration journal " + path + " is not open");
+            }
+            out.write(sealed);
+            out.flush();
+            if (fsync) {
+                fileOut.getFD().sync();
+            }
+            recordCount++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeStreams() throws IOException {
+        if (out != null) {
+            try {
+                out.close();
+            } finally {
+                out = null;
+                fileOut = null;
+            }
+        }
+    }
+
+    private Cipher newCipher() throws IOException {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("couldn't create " + TRANSFORMATION + " cipher", e);
+        }
+    }
+
+    /**
+     * @return the record encrypted under a fresh IV and framed with its length, ready to be written to the journal
+     */
+    private byte[] seal(Cipher cipher, byte[] plaintext) throws IOException {
+        byte[] iv = CryptoUtil.randomBytes(IV_LENGTH);
+        byte[] ciphertext;
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, iv));
+            cipher.updateAAD(MAGIC);
+            ciphertext = cipher.doFinal(plaintext);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("couldn't encrypt registration journal record", e);
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(4 + IV_LENGTH + ciphertext.length);
+        DataOutputStream record = new DataOutputStream(baos);
+        record.writeInt(IV_LENGTH + ciphertext.length);
+        record.write(iv);
+        record.write(ciphertext);
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return the decrypted record, or null at a clean end of file
+     * @throws EOFException if the record is truncated
+     */
+    private byte[] readRecord(DataInputStream in, Cipher cipher) throws IOException, GeneralSecurityException {
+        int b = in.read();
+        if (b < 0) return null;
+
+        int length = (b << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+        if (length <= IV_LENGTH || length > MAX_RECORD_LENGTH) {
+            throw new GeneralSecurityException("invalid record length " + length);
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, bytes, 0, IV_LENGTH));
+        cipher.updateAAD(MAGIC);
+        return cipher.doFinal(bytes, IV_LENGTH, length - IV_LENGTH);
+    }
+
+    private byte[] saltRecord(String salt) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(baos);
+        record.writeByte(TYPE_SALT);
+        writeString(record, salt);
+        return baos.toByteArray();
+    }
+
+    private byte[] putRecord(RegisteredClient r) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(512);
+        DataOutputStream record = new DataOutputStream(baos);
+        record.writeByte(TYPE_PUT);
+        writeString(record, r.accessToken());
+        writeString(record, r.clientInfo().getClientId());
+        writeString(record, r.clientInfo().getServerUrl());
+        writeString(record, r.clientInfo().getBearerToken());
+        writeString(record, r.clientInfo().getPatientId());
+        writeString(record, r.clientInfo().getUserId());
+        record.writeLong(r.expiresAt());
+        return baos.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
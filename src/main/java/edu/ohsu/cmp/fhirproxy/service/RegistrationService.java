@@ -2,119 +2,209 @@ package edu.ohsu.cmp.fhirproxy.service;
 
 import com.auth0.jwt.impl.JWTParser;
 import com.auth0.jwt.interfaces.Payload;
-import edu.ohsu.cmp.fhirproxy.DeleteStaleClientInfoJob;
 import edu.ohsu.cmp.fhirproxy.exception.ClientInfoNotFoundException;
 import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import edu.ohsu.cmp.fhirproxy.model.RegisteredClient;
 import edu.ohsu.cmp.fhirproxy.model.Registration;
 import edu.ohsu.cmp.fhirproxy.util.CryptoUtil;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.apache.commons.codec.digest.DigestUtils;
-import org.quartz.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.ApplicationContext;
-import org.springframework.scheduling.quartz.JobDetailFactoryBean;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.Calendar;
 import java.util.*;
 
+/**
+ * Issues access tokens to registered clients and resolves them back to client info.  Registrations are held in the
+ * configured RegistrationStore, which may be local to this instance or shared with other instances; expired
+ * registrations are swept out in a single pass by DeleteStaleClientInfoJob.
+ *
+ * If the registration journal is enabled, the salt and every registration are also written to an encrypted
+ * RegistrationJournal and restored from it at startup, so that access tokens survive a restart.  Instances that share
+ * registrations should be configured with the same registration.salt, so that a client registering with any of them
+ * is issued the same access token.
+ */
 @Service
 public class RegistrationService {
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
-    private final Map<String, ClientInfo> map;
-    private final String salt;
+    private String salt;
+
+    @Value("${registration.salt:}")
+    private String configuredSalt;
+
+    @Value("${registration.journal.enabled:false}")
+    private Boolean journalEnabled;
+
+    @Value("${registration.journal.path:registrations.journal}")
+    private String journalPath;
+
+    @Value("${registration.journal.key:}")
+    private String journalKey;
+
+    @Value("${registration.journal.fsync:false}")
+    private Boolean journalFsync;
+
+    private RegistrationJournal journal;
+
+    @Autowired
+    private RegistrationStore store;
+
+    @Autowired
+    private MetricsService metricsService;
+
+    @Autowired
+    private FhirClientService fhirClientService;
 
     @Autowired
-    private ApplicationContext ctx;
+    private ResourceCacheService resourceCacheService;
 
-    public RegistrationService() {
-        this.map = new HashMap<>();
-        this.salt = Base64.getEncoder().encodeToString(CryptoUtil.randomBytes(64));;
+    @PostConstruct
+    public void init() throws IOException {
+        metricsService.registerRegistrationGauge(this::size);
+
+        salt = Base64.getEncoder().encodeToString(CryptoUtil.randomBytes(64));
+
+        if (journalEnabled) {
+            RegistrationJournal journal = new RegistrationJournal(Paths.get(journalPath),
+                    RegistrationJournal.decodeKey(journalKey), journalFsync);
+
+            RegistrationJournal.Replay replay = journal.replay(System.currentTimeMillis());
+            if (replay.salt() != null) {
+                salt = replay.salt();
+            }
+            for (RegisteredClient r : replay.registrations()) {
+                store.putIfAbsent(r);
+            }
+            if (configuredSalt != null && ! configuredSalt.isEmpty()) {
+                salt = configuredSalt;
+            }
+            journal.compact(salt, store.snapshot());
+
+            logger.info("restored " + replay.registrations().size() + " registration(s) from " + journalPath);
+            this.journal = journal;
+
+        } else if (configuredSalt != null && ! configuredSalt.isEmpty()) {
+            salt = configuredSalt;
+        }
+    }
+
+    @PreDestroy
+    public void destroy() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
     }
 
     public boolean exists(String key) {
-        return map.containsKey(key);
+        return store.get(key) != null;
     }
 
     public Registration put(ClientInfo clientInfo) {
         String accessToken = Base64.getEncoder().encodeToString(DigestUtils.sha512(clientInfo.toString() + salt));
 
-        if ( ! map.containsKey(accessToken) ) {
-            map.put(accessToken, clientInfo);
-            setupDeleteStaleClientInfoJob(clientInfo, accessToken);
+        RegisteredClient registration = store.get(accessToken);
+        if (registration != null && registration.isExpired(System.currentTimeMillis())) {
+            delete(accessToken);
+            registration = null;
         }
 
-        return new Registration(
-                accessToken,
-                deriveExpirationTimestamp(clientInfo.getBearerToken())
-        );
+        if (registration == null) {
+            Date expires = deriveExpirationTimestamp(clientInfo.getBearerToken());
+            RegisteredClient created = new RegisteredClient(accessToken, clientInfo, expires.getTime());
+            registration = store.putIfAbsent(created);
+            if (registration == null) {
+                logger.info("registered clientId=" + clientInfo.getClientId() + ", expires " + expires);
+                metricsService.recordRegistrationAdded();
+                registration = created;
+                journalPut(created);
+            }
+        }
+
+        return new Registration(accessToken, new Date(registration.expiresAt()));
     }
 
     public ClientInfo get(String key) throws ClientInfoNotFoundException {
-        if (map.containsKey(key)) {
-            return map.get(key);
+        RegisteredClient registration = store.get(key);
+        if (registration != null && ! registration.isExpired(System.currentTimeMillis())) {
+            return registration.clientInfo();
         } else {
             throw new ClientInfoNotFoundException("client info not found for key=" + key);
         }
     }
 
     public boolean delete(String key) {
-        return map.remove(key) != null;
+        RegisteredClient removed = store.remove(key);
+        if (removed != null) {
+            evict(removed.clientInfo());
+            if (journal != null) {
+                try {
+                    journal.appendDelete(key);
+                } catch (IOException e) {
+                    logger.error("couldn't journal deletion of registration - it will be restored on restart", e);
+                }
+            }
+            return true;
+        } else {
+            return false;
+        }
     }
 
-////////////////////////////////////////////////////////////////////////////////////
-/// private stuff
-///
-
-    private void setupDeleteStaleClientInfoJob(ClientInfo clientInfo, String cacheKey) {
-        Scheduler scheduler = ctx.getBean(Scheduler.class);
-        Date shutdownTimestamp = deriveExpirationTimestamp(clientInfo.getBearerToken());
-
-        JobDataMap jobDataMap = new JobDataMap();
-        jobDataMap.put(DeleteStaleClientInfoJob.JOBDATA_APPLICATIONCONTEXT, ctx);
-        jobDataMap.put(DeleteStaleClientInfoJob.JOBDATA_CACHEKEY, cacheKey);
+    /**
+     * Delete every registration that expired at or before the specified time
+     * @param now
+     * @return the number of registrations deleted
+     */
+    public int deleteExpired(long now) {
+        List<RegisteredClient> removed = store.removeExpired(now);
+        for (RegisteredClient registration : removed) {
+            evict(registration.clientInfo());
+        }
+        metricsService.recordRegistrationsExpired(removed.size());
 
-        String jobId = Base64.getEncoder().encodeToString(DigestUtils.sha1(cacheKey + salt));
+        if (journal != null) {
+            try {
+                journal.compactIfNeeded(salt, store.size(), store::snapshot);
+            } catch (IOException e) {
+                logger.error("couldn't compact registration journal " + journalPath, e);
+            }
+        }
 
-        JobKey jobKey = new JobKey("deleteStaleClientInfoJob-" + jobId);
-        JobDetail job = JobBuilder.newJob(DeleteStaleClientInfoJob.class)
-                .storeDurably()
-                .withIdentity(jobKey)
-                .withDescription("Auto-delete stale client info for clientId=" + clientInfo.getClientId() + " at " + shutdownTimestamp)
-                .usingJobData(jobDataMap)
-                .build();
+        return removed.size();
+    }
 
-        JobDetailFactoryBean jobDetailFactory = new JobDetailFactoryBean();
-        jobDetailFactory.setJobClass(DeleteStaleClientInfoJob.class);
-        jobDetailFactory.setDescription("Invoke Shutdown User Workspace Job service...");
-        jobDetailFactory.setDurability(true);
+    /**
+     * Release the cached upstream client and resources held for a client whose registration has been removed
+     * @param clientInfo
+     */
+    public void evict(ClientInfo clientInfo) {
+        fhirClientService.evict(clientInfo);
+        resourceCacheService.evict(clientInfo);
+    }
 
-        Trigger trigger = TriggerBuilder.newTrigger().forJob(job)
-                .withIdentity("deleteStaleClientInfoTrigger-" + jobId)
-                .withDescription("Delete stale client info trigger for clientId=" + clientInfo.getClientId())
-                .startAt(shutdownTimestamp)
-                .build();
+    public int size() {
+        return store.size();
+    }
 
-        try {
-            if ( ! scheduler.isStarted() ) {
-                scheduler.start();
-            }
+////////////////////////////////////////////////////////////////////////////////////
+/// private stuff
+///
 
-            if (scheduler.checkExists(jobKey)) {
-                JobDetail jobDetail = scheduler.getJobDetail(jobKey);
-                logger.warn("found pre-existing job for jobId=" + jobId +
-                        ", but this should have been cleared earlier, it shouldn't have gotten this far.  ???");
-                logger.info("deleting job: " + jobDetail.getDescription());
-                scheduler.deleteJob(jobKey);
+    private void journalPut(RegisteredClient registration) {
+        if (journal != null) {
+            try {
+                journal.appendPut(registration);
+            } catch (IOException e) {
+                logger.error("couldn't journal registration for clientId=" + registration.clientInfo().getClientId() +
+                        " - it will not survive a restart", e);
             }
-
-            logger.info("scheduling job: " + job.getKey().getName() + " - " + job.getDescription());
-            scheduler.scheduleJob(job, trigger);
-
-        } catch (SchedulerException e) {
-            throw new RuntimeException(e);
         }
     }
 
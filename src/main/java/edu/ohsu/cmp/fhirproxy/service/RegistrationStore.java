@@ -0,0 +1,46 @@
+package edu.ohsu.cmp.fhirproxy.service;
+
+import edu.ohsu.cmp.fhirproxy.model.RegisteredClient;
+
+import java.util.List;
+
+/**
+ * Backing store for client registrations, keyed by access token.  RegistrationService owns token issuance, expiry
+ * policy and cache eviction; a store only holds registrations, and may share them with other proxy instances.
+ */
+public interface RegistrationStore {
+
+    /**
+     * @param accessToken
+     * @return the registration for the specified access token, or null if there is none.  May return a registration
+     * that has expired but has not yet been swept.
+     */
+    RegisteredClient get(String accessToken);
+
+    /**
+     * Store a registration unless one is already held for its access token
+     * @param registration
+     * @return the registration already held, or null if the specified registration was stored
+     */
+    RegisteredClient putIfAbsent(RegisteredClient registration);
+
+    /**
+     * @param accessToken
+     * @return the registration removed, or null if there was none
+     */
+    RegisteredClient remove(String accessToken);
+
+    /**
+     * Remove every registration that expired at or before the specified time
+     * @param now
+     * @return the registrations removed
+     */
+    List<RegisteredClient> removeExpired(long now);
+
+    /**
+     * @return a point-in-time copy of every registration held
+     */
+    List<RegisteredClient> snapshot();
+
+    int size();
+}
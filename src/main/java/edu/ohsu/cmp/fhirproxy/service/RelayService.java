@@ -0,0 +1,262 @@
+package edu.ohsu.cmp.fhirproxy.service;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import edu.ohsu.cmp.fhirproxy.model.FhirFormat;
+import edu.ohsu.cmp.fhirproxy.model.FhirResponseBody;
+import edu.ohsu.cmp.fhirproxy.util.GuardedHttpClientBuilder;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Relays upstream responses to the client byte for byte, without parsing and re-encoding them.  This is only
+ * possible when the client wants the response exactly as the upstream server sends it: in JSON or XML, not
+ * pretty-printed, and in a single upstream response (a read, a vread, or one page of a search).  The upstream
+ * server is asked for the client's format, and for gzip if the client accepts it; a response is relayed only if it
+ * arrives in that format, as UTF-8, and in an encoding the client accepts.  Otherwise the relay declines (returns
+ * null) and the caller falls back to the usual parse and re-encode.  Failing to get a response at all is no reason to
+ * decline, as asking again would only fail again: it's thrown as a FhirClientConnectionException, as it would be on
+ * the usual path.
+ * Enabled by proxy.relay.enabled.
+ */
+@Service
+public class RelayService {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final String GZIP = "gzip";
+    private static final String IDENTITY = "identity";
+
+    private static final Set<String> JSON_CONTENT_TYPES = Set.of("application/fhir+json", "application/json",
+            "application/json+fhir");
+    private static final Set<String> XML_CONTENT_TYPES = Set.of("application/fhir+xml", "application/xml",
+            "application/xml+fhir", "text/xml");
+
+    // relayed as received; anything else about the upstream response is the upstream server's business
+    private static final List<String> RELAYED_HEADERS = List.of(HttpHeaders.CONTENT_ENCODING, HttpHeaders.CONTENT_LENGTH,
+            HttpHeaders.ETAG, HttpHeaders.LAST_MODIFIED);
+
+    @Value("${proxy.relay.enabled:false}")
+    private Boolean enabled;
+
+    @Autowired
+    private CloseableHttpClient relayHttpClient;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param format
+     * @param pretty
+     * @return true if a response in the specified format could be relayed
+     */
+    public boolean canRelay(FhirFormat format, boolean pretty) {
+        return enabled && ! pretty && (format == FhirFormat.JSON || format == FhirFormat.XML);
+    }
+
+    /**
+     * Relay a read.  The client's If-None-Match and If-Modified-Since are passed upstream, so a 304 Not Modified
+     * from the upstream server is relayed too.
+     * @param clientInfo
+     * @param resourceType
+     * @param id
+     * @param format
+     * @param requestHeaders
+     * @return the relayed response, or null if it can't be relayed
+     * @throws FhirClientConnectionException if no response was received
+     */
+    public ResponseEntity<FhirResponseBody> read(ClientInfo clientInfo, String resourceType, String id,
+                                                 FhirFormat format, HttpHeaders requestHeaders) {
+        return relay(clientInfo, clientInfo.getServerUrl() + "/" + resourceType + "/" + id, format, requestHeaders);
+    }
+
+    public ResponseEntity<FhirResponseBody> vread(ClientInfo clientInfo, String resourceType, String id, String vid,
+                                                  FhirFormat format, HttpHeaders requestHeaders) {
+        return relay(clientInfo, clientInfo.getServerUrl() + "/" + resourceType + "/" + id + "/_history/" + vid,
+                format, requestHeaders);
+    }
+
+    /**
+     * Relay the first page of a search, as-is, next link and all
+     * @param clientInfo
+     * @param resourceType
+     * @param paramsMap
+     * @param format
+     * @param requestHeaders
+     * @return the relayed response, or null if it can't be relayed
+     * @throws FhirClientConnectionException if no response was received
+     */
+    public ResponseEntity<FhirResponseBody> searchPage(ClientInfo clientInfo, String resourceType,
+                                                       Map<String, String> paramsMap, FhirFormat format,
+                                                       HttpHeaders requestHeaders) {
+        List<String> paramsList = new ArrayList<>();
+        for (Map.Entry<String, String> entry : paramsMap.entrySet()) {
+            if (entry.getKey().equals("_format") || entry.getKey().equals("_pretty")) continue;
+            paramsList.add(URLEncoder.encode(entry.getKey(), StandardCharsets.UTF_8) + "=" +
+                    URLEncoder.encode(entry.getValue(), StandardCharsets.UTF_8));
+        }
+
+        return relay(clientInfo, clientInfo.getServerUrl() + "/" + resourceType + "?" + String.join("&", paramsList),
+                format, requestHeaders);
+    }
+
+///////////////////////////////////////////////////////////////////////////////////
+/// private methods
+///
+
+    private ResponseEntity<FhirResponseBody> relay(ClientInfo clientInfo, String url, FhirFormat format,
+                                                   HttpHeaders requestHeaders) {
+        boolean clientAcceptsGzip = acceptsGzip(requestHeaders);
+
+        HttpGet get = new HttpGet(url);
+        get.setHeader(HttpHeaders.ACCEPT, format.getContentType());
+        get.setHeader(HttpHeaders.ACCEPT_ENCODING, clientAcceptsGzip ? GZIP : IDENTITY);
+        get.setHeader(HttpHeaders.AUTHORIZATION, "Bearer " + clientInfo.getBearerToken());
+        if (clientInfo.getClientId() != null) {
+            get.setHeader(GuardedHttpClientBuilder.CLIENT_ID_HEADER, clientInfo.getClientId());
+        }
+        copyHeader(requestHeaders, get, HttpHeaders.IF_NONE_MATCH);
+        copyHeader(requestHeaders, get, HttpHeaders.IF_MODIFIED_SINCE);
+
+        logger.info("relay: " + url);
+
+        CloseableHttpResponse response = null;
+        try {
+            response = relayHttpClient.execute(get);
+            int status = response.getStatusLine().getStatusCode();
+
+            HttpHeaders responseHeaders = new HttpHeaders();
+            for (String name : RELAYED_HEADERS) {
+                Header header = response.getFirstHeader(name);
+                if (header != null) {
+                    responseHeaders.add(name, header.getValue());
+                }
+            }
+
+            HttpEntity entity = response.getEntity();
+            if (status == HttpStatus.NOT_MODIFIED.value() || entity == null) {
+                EntityUtils.consumeQuietly(entity);
+                response.close();
+                return new ResponseEntity<>(responseHeaders, HttpStatusCode.valueOf(status));
+            }
+
+            String reason = checkRelayable(entity, format, clientAcceptsGzip);
+            if (reason != null) {
+                logger.info("relay: not relaying " + url + " - " + reason);
+                response.close();
+                return null;
+            }
+
+            responseHeaders.set(HttpHeaders.CONTENT_TYPE, format.getContentType());
+            // the response is gzipped or not depending on the client's Accept-Encoding, so caches must key on it
+            responseHeaders.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+
+            CloseableHttpResponse relayed = response;
+            response = null;
+            FhirResponseBody body = out -> {
+                try (relayed; InputStream in = entity.getContent()) {
+                    in.transferTo(out);
+                }
+            };
+            return new ResponseEntity<>(body, responseHeaders, HttpStatusCode.valueOf(status));
+
+        } catch (IOException e) {
+            logger.warn("relay: caught " + e.getClass().getSimpleName() + " requesting " + url + " - " + e.getMessage());
+            closeQuietly(response);
+            throw new FhirClientConnectionException("relay: failed requesting " + url + " - " + e.getMessage(), e);
+
+        } catch (RuntimeException e) {
+            closeQuietly(response);
+            throw e;
+        }
+    }
+
+    /**
+     * @return the reason the entity can't be relayed, or null if it can
+     */
+    private String checkRelayable(HttpEntity entity, FhirFormat format, boolean clientAcceptsGzip) {
+        ContentType contentType;
+        try {
+            contentType = ContentType.get(entity);
+        } catch (RuntimeException e) {
+            return "unparseable Content-Type";
+        }
+        if (contentType == null) {
+            return "no Content-Type";
+        }
+
+        String mimeType = contentType.getMimeType().toLowerCase();
+        Set<String> expected = format == FhirFormat.JSON ? JSON_CONTENT_TYPES : XML_CONTENT_TYPES;
+        if ( ! expected.contains(mimeType) ) {
+            return "Content-Type is " + mimeType + ", not " + format;
+        }
+
+        Charset charset = contentType.getCharset();
+        if (charset != null && ! charset.equals(StandardCharsets.UTF_8)) {
+            return "charset is " + charset;
+        }
+
+        Header contentEncoding = entity.getContentEncoding();
+        String encoding = contentEncoding == null ? IDENTITY : contentEncoding.getValue().trim().toLowerCase();
+        if ( ! encoding.equals(IDENTITY) && ! (encoding.equals(GZIP) && clientAcceptsGzip) ) {
+            return "Content-Encoding is " + encoding;
+        }
+
+        return null;
+    }
+
+    private boolean acceptsGzip(HttpHeaders requestHeaders) {
+        for (String value : requestHeaders.getOrEmpty(HttpHeaders.ACCEPT_ENCODING)) {
+            for (String coding : StringUtils.split(value, ',')) {
+                String[] parts = coding.trim().split(";");
+                if (parts[0].trim().equalsIgnoreCase(GZIP) &&
+                        (parts.length == 1 || ! parts[1].replace(" ", "").equalsIgnoreCase("q=0"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void copyHeader(HttpHeaders from, HttpGet to, String name) {
+        String value = from.getFirst(name);
+        if (value != null) {
+            to.setHeader(name, value);
+        }
+    }
+
+    private void closeQuietly(CloseableHttpResponse response) {
+        if (response != null) {
+            try {
+                response.close();
+            } catch (IOException e) {
+                logger.debug("relay: caught " + e.getClass().getSimpleName() + " closing response - " + e.getMessage());
+            }
+        }
+    }
+}
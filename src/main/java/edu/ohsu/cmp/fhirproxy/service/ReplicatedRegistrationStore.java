@@ -0,0 +1,341 @@
+package edu.ohsu.cmp.fhirproxy.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import edu.ohsu.cmp.fhirproxy.model.RegisteredClient;
+import edu.ohsu.cmp.fhirproxy.util.SingleFlight;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RegistrationStore that shares registrations with a fixed set of peer proxy instances.  Every instance holds its own
+ * InMemoryRegistrationStore, which serves as a near-cache: registrations and deletions made locally are pushed to
+ * each peer in batches by a background thread, and a lookup that misses locally is read through from the peers and
+ * kept.  Request threads therefore only touch the network the first time an instance sees a given access token, and
+ * instances never coordinate on the hot path; this, rather than any measurement, is the basis for expecting
+ * throughput to grow with the number of instances.  Registrations themselves don't scale out: each one is pushed to
+ * every peer, so every instance receives every registration made anywhere.
+ *
+ * Each instance sweeps expired registrations independently, since expiry times travel with the registrations.  A
+ * starting instance copies the full set of registrations from the first peer that answers.  Peers authenticate one
+ * another with a shared secret; as the peer endpoints carry client bearer tokens, they should also be reachable only
+ * from the proxy instances themselves.
+ */
+public class ReplicatedRegistrationStore implements RegistrationStore, Closeable {
+    public static final String SECRET_HEADER = "X-Registration-Replication-Secret";
+    // carries the access token to look up on a peer; never in the URL, which gets logged
+    public static final String ACCESS_TOKEN_HEADER = "X-Registration-Access-Token";
+    public static final String PATH = "/internal/registrations";
+
+    private static final int MAX_BATCH_SIZE = 500;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final InMemoryRegistrationStore local = new InMemoryRegistrationStore();
+    private final List<URI> peers;
+    private final String secret;
+    private final Duration timeout;
+    private final ObjectMapper objectMapper;
+    private final HttpClient httpClient;
+    private final Cache<String, Boolean> misses;
+    private final SingleFlight<String, RegisteredClient> fetches = new SingleFlight<>();
+    private final BlockingQueue<Change> outbox = new LinkedBlockingQueue<>();
+    private final Thread replicator;
+    private final AtomicLong peerLookups = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    /**
+     * @param peers base URLs of the other proxy instances, e.g. http://10.0.0.2:8888
+     * @param secret shared secret presented to, and expected from, peers
+     * @param timeout timeout for each request to a peer
+     * @param negativeTtl how long a lookup that no peer could answer is remembered, so that unknown access tokens
+     *                    aren't looked up on every request
+     * @param objectMapper
+     */
+    public ReplicatedRegistrationStore(List<String> peers, String secret, Duration timeout, Duration negativeTtl,
+                                       ObjectMapper objectMapper) {
+        if (secret == null || secret.isBlank()) {
+            throw new IllegalArgumentException("registration.replication.secret must be set when registrations are replicated");
+        }
+
+        this.peers = new ArrayList<>();
+        for (String peer : peers) {
+            String base = peer.trim();
+            if (base.isEmpty()) continue;
+            if (base.endsWith("/")) base = base.substring(0, base.length() - 1);
+            this.peers.add(URI.create(base + PATH));
+        }
+
+        this.secret = secret;
+        this.timeout = timeout;
+        this.objectMapper = objectMapper;
+        this.httpClient = HttpClient.newBuilder().connectTimeout(timeout).build();
+        this.misses = Caffeine.newBuilder()
+                .expireAfterWrite(negativeTtl)
+                .maximumSize(100000)
+                .build();
+
+        this.replicator = new Thread(this::replicate, "registration-replicator");
+        this.replicator.setDaemon(true);
+    }
+
+    /**
+     * Copy every registration held by the first peer that answers, and start pushing local changes to peers
+     */
+    public void start() {
+        for (URI peer : peers) {
+            try {
+                HttpResponse<byte[]> response = httpClient.send(request(peer).GET().build(),
+                        HttpResponse.BodyHandlers.ofByteArray());
+                if (response.statusCode() == 200) {
+                    List<RegisteredClient> registrations = objectMapper.readValue(response.body(),
+                            new TypeReference<List<RegisteredClient>>() {});
+                    int accepted = acceptPut(registrations);
+                    logger.info("copied " + accepted + " registration(s) from peer " + peer);
+                    break;
+                } else {
+                    logger.warn("couldn't copy registrations from peer " + peer + " - got status " + response.statusCode());
+                }
+
+            } catch (IOException e) {
+                logger.warn("couldn't copy registrations from peer " + peer + " - " + e.getMessage());
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        replicator.start();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        replicator.interrupt();
+    }
+
+    @Override
+    public RegisteredClient get(String accessToken) {
+        RegisteredClient registration = local.get(accessToken);
+        if (registration != null || peers.isEmpty() || misses.getIfPresent(accessToken) != null) {
+            return registration;
+        }
+
+        return fetches.execute(accessToken, () -> {
+            RegisteredClient fetched = fetchFromPeers(accessToken);
+            if (fetched == null) {
+                misses.put(accessToken, Boolean.TRUE);
+                return null;
+            }
+            RegisteredClient existing = local.putIfAbsent(fetched);
+            return existing != null ? existing : fetched;
+        });
+    }
+
+    @Override
+    public RegisteredClient putIfAbsent(RegisteredClient registration) {
+        RegisteredClient existing = local.putIfAbsent(registration);
+        if (existing == null) {
+            misses.invalidate(registration.accessToken());
+            outbox.add(new Change(registration.accessToken(), registration));
+        }
+        return existing;
+    }
+
+    @Override
+    public RegisteredClient remove(String accessToken) {
+        RegisteredClient removed = local.remove(accessToken);
+        if (removed != null) {
+            outbox.add(new Change(accessToken, null));
+        }
+        return removed;
+    }
+
+    @Override
+    public List<RegisteredClient> removeExpired(long now) {
+        return local.removeExpired(now);
+    }
+
+    @Override
+    public List<RegisteredClient> snapshot() {
+        return local.snapshot();
+    }
+
+    @Override
+    public int size() {
+        return local.size();
+    }
+
+    /**
+     * Apply changes received from a peer, without passing them on
+     * @param changes
+     * @return the registrations removed by the changes, so that resources held for them can be released
+     */
+    public List<RegisteredClient> accept(List<Change> changes) {
+        List<RegisteredClient> removed = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Change change : changes) {
+            if (change.registration() != null) {
+                if ( ! change.registration().isExpired(now) ) {
+                    local.putIfAbsent(change.registration());
+                    misses.invalidate(change.accessToken());
+                }
+            } else {
+                RegisteredClient r = local.remove(change.accessToken());
+                if (r != null) removed.add(r);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return the local registration for the specified access token, without consulting peers
+     */
+    public RegisteredClient getLocal(String accessToken) {
+        return local.get(accessToken);
+    }
+
+    /**
+     * @return the number of lookups that missed locally and were read through from peers
+     */
+    public long getPeerLookupCount() {
+        return peerLookups.get();
+    }
+
+    /**
+     * @return the number of local changes not yet pushed to peers
+     */
+    public int getPendingChangeCount() {
+        return outbox.size();
+    }
+
+    public boolean isAuthorized(String presentedSecret) {
+        return presentedSecret != null && MessageDigest.isEqual(
+                presentedSecret.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * A registration made (registration non-null) or deleted (registration null) on some instance
+     */
+    public record Change(String accessToken, RegisteredClient registration) {
+    }
+
+////////////////////////////////////////////////////////////////////////////////////
+/// private stuff
+///
+
+    private int acceptPut(List<RegisteredClient> registrations) {
+        List<Change> changes = new ArrayList<>(registrations.size());
+        for (RegisteredClient r : registrations) {
+            changes.add(new Change(r.accessToken(), r));
+        }
+        accept(changes);
+        return changes.size();
+    }
+
+    private RegisteredClient fetchFromPeers(String accessToken) {
+        peerLookups.incrementAndGet();
+        List<CompletableFuture<HttpResponse<byte[]>>> responses = new ArrayList<>();
+        for (URI peer : peers) {
+            HttpRequest request = request(peer).header(ACCESS_TOKEN_HEADER, accessToken).GET().build();
+            responses.add(httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()));
+        }
+
+        for (int i = 0; i < responses.size(); i++) {
+            try {
+                HttpResponse<byte[]> response = responses.get(i).get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+                if (response.statusCode() == 200) {
+                    RegisteredClient registration = objectMapper.readValue(response.body(), RegisteredClient.class);
+                    if ( ! registration.isExpired(System.currentTimeMillis()) ) {
+                        return registration;
+                    }
+                }
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+
+            } catch (Exception e) {
+                logger.warn("couldn't look up registration on peer " + peers.get(i) + " - " + e.getMessage());
+            }
+        }
+
+        return null;
+    }
+
+    private void replicate() {
+        List<Change> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (running) {
+            try {
+                batch.add(outbox.take());
+                outbox.drainTo(batch, MAX_BATCH_SIZE - 1);
+                send(batch);
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+
+            } catch (Exception e) {
+                logger.error("caught " + e.getClass().getName() + " replicating registrations - " + e.getMessage(), e);
+
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void send(List<Change> batch) throws IOException, InterruptedException {
+        byte[] body = objectMapper.writeValueAsBytes(batch);
+
+        List<CompletableFuture<HttpResponse<Void>>> responses = new ArrayList<>();
+        for (URI peer : peers) {
+            HttpRequest request = request(peer)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                    .build();
+            responses.add(httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding()));
+        }
+
+        for (int i = 0; i < responses.size(); i++) {
+            try {
+                int status = responses.get(i).get(timeout.toMillis(), TimeUnit.MILLISECONDS).statusCode();
+                if (status / 100 != 2) {
+                    logger.warn("peer " + peers.get(i) + " rejected " + batch.size() + " registration change(s) with status " + status);
+                }
+
+            } catch (InterruptedException e) {
+                throw e;
+
+            } catch (Exception e) {
+                logger.warn("couldn't send " + batch.size() + " registration change(s) to peer " + peers.get(i) +
+                        " - " + e.getMessage());
+            }
+        }
+    }
+
+    private HttpRequest.Builder request(URI uri) {
+        return HttpRequest.newBuilder(uri)
+                .timeout(timeout)
+                .header(SECRET_HEADER, secret);
+    }
+}
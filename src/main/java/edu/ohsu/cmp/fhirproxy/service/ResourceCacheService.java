@@ -0,0 +1,215 @@
+package edu.ohsu.cmp.fhirproxy.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import edu.ohsu.cmp.fhirproxy.model.CachedResource;
+import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import edu.ohsu.cmp.fhirproxy.model.FhirFormat;
+import edu.ohsu.cmp.fhirproxy.util.FhirUtil;
+import edu.ohsu.cmp.fhirproxy.util.SingleFlight;
+import jakarta.annotation.PostConstruct;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Caches resources returned by read and vread, together with their encoded forms, so that repeated requests skip
+ * both the upstream call and re-encoding.  A resource is only encoded in a given format when a response body is
+ * first sent in it (see getEncoded()), so conditional reads answered 304 Not Modified never pay for encoding.  Entries are keyed by registration, so a resource fetched with one
+ * registration's bearer token is never served to another.  Versioned reads are immutable, so they are always served
+ * from the cache.  Plain reads are served from the cache for a configurable TTL, after which they are revalidated
+ * with a conditional read upstream; if the upstream version is unchanged, the cached copy and its encodings are kept.
+ * Entries are held until evicted for space or until their registration is deleted; entries are indexed by
+ * registration, so deleting one only touches its own entries.  Misses are fetched outside the
+ * cache, so that a slow upstream holds up no other entries, and concurrent misses or revalidations for one resource share one upstream request.
+ * Disabled by default, as it lets reads be served up to the TTL stale; enabled by cache.resource.enabled.
+ */
+@Service
+public class ResourceCacheService {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Value("${cache.resource.enabled:false}")
+    private Boolean enabled;
+
+    @Value("${cache.resource.max-weight:67108864}")
+    private Long maxWeight;
+
+    @Value("${cache.resource.read-ttl:60000}")
+    private Long readTtl;
+
+    @Autowired
+    private FhirContext fhirContext;
+
+    @Autowired
+    private ProxyService proxyService;
+
+    private Cache<ResourceKey, CachedResource> cache;
+    private final SingleFlight<ResourceKey, CachedResource> loads = new SingleFlight<>();
+
+    // the keys of each registration's entries.  Only changed while the cache holds the key's lock: in store() and
+    // remove(), and in the eviction listener, which Caffeine calls atomically with the eviction
+    private final Map<ClientInfo, Set<ResourceKey>> keysByClient = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        cache = Caffeine.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher((ResourceKey key, CachedResource value) -> value.getWeight())
+                .evictionListener((ResourceKey key, CachedResource value, RemovalCause cause) -> unindex(key))
+                .build();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public CachedResource read(ClientInfo clientInfo, String resourceType, String id, Map<String, String> params) {
+        ResourceKey key = new ResourceKey(clientInfo, resourceType, id, null);
+
+        CachedResource cached = get(key, () -> proxyService.read(clientInfo, resourceType, id, params));
+
+        if ( ! cached.isFresh(readTtl) ) {
+            CachedResource stale = cached;
+            cached = loads.execute(key, () -> {
+                // another caller's revalidation may have completed since the lookup above
+                CachedResource current = cache.getIfPresent(key);
+                return current != null && current.isFresh(readTtl) ?
+                        current :
+                        revalidate(key, current != null ? current : stale, params);
+            });
+        }
+
+        return cached;
+    }
+
+    public CachedResource vread(ClientInfo clientInfo, String resourceType, String id, String vid,
+                                Map<String, String> params) {
+        ResourceKey key = new ResourceKey(clientInfo, resourceType, id, vid);
+
+        return get(key, () -> proxyService.vread(clientInfo, resourceType, id, vid, params));
+    }
+
+    /**
+     * @param vid the version read, or null for a plain read
+     * @param cached as returned by read() or vread()
+     * @return the cached resource encoded as specified, encoding it if it hasn't been in that format before
+     */
+    public byte[] getEncoded(ClientInfo clientInfo, String resourceType, String id, String vid, CachedResource cached,
+                             FhirFormat format, boolean pretty) {
+        byte[] encoded = cached.getEncoded(format, pretty);
+        if (encoded == null) {
+            encoded = FhirUtil.encode(fhirContext, cached.getResource(), format, pretty).getBytes(StandardCharsets.UTF_8);
+            cached.putEncoded(format, pretty, encoded);
+
+            // re-insert so the cache accounts for the added encoding
+            cache.asMap().replace(new ResourceKey(clientInfo, resourceType, id, vid), cached, cached);
+        }
+        return encoded;
+    }
+
+    public void evict(ClientInfo clientInfo) {
+        Set<ResourceKey> keys = keysByClient.remove(clientInfo);
+        if (keys != null) {
+            cache.invalidateAll(keys);
+        }
+    }
+
+    public long size() {
+        return cache.estimatedSize();
+    }
+
+///////////////////////////////////////////////////////////////////////////////////
+/// private methods
+///
+
+    /**
+     * Get a cached resource, fetching it on a miss.  The fetch must not run inside the cache's own loading, which
+     * holds a lock shared with other keys for as long as it runs.
+     */
+    private CachedResource get(ResourceKey key, Supplier<IBaseResource> fetch) {
+        CachedResource cached = cache.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        return loads.execute(key, () -> {
+            // another caller's fetch may have completed since the lookup above
+            CachedResource loaded = cache.getIfPresent(key);
+            if (loaded == null) {
+                logger.debug("resource cache miss for " + key.describe());
+                loaded = new CachedResource(fetch.get());
+                store(key, loaded);
+            }
+            return loaded;
+        });
+    }
+
+    private CachedResource revalidate(ResourceKey key, CachedResource cached, Map<String, String> params) {
+        ClientInfo clientInfo = key.clientInfo();
+        String versionId = cached.getVersionId();
+
+        try {
+            IBaseResource current = StringUtils.isNotBlank(versionId) ?
+                    proxyService.readIfModified(clientInfo, key.resourceType(), key.id(), versionId, params) :
+                    proxyService.read(clientInfo, key.resourceType(), key.id(), params);
+
+            if (current == null) {
+                logger.debug("resource cache entry still current for " + key.describe());
+                cached.markValidated();
+                return cached;
+
+            } else {
+                CachedResource replacement = new CachedResource(current);
+                store(key, replacement);
+                return replacement;
+            }
+
+        } catch (RuntimeException e) {
+            remove(key);
+            throw e;
+        }
+    }
+
+    private void store(ResourceKey key, CachedResource value) {
+        cache.asMap().compute(key, (k, previous) -> {
+            keysByClient.compute(k.clientInfo(), (clientInfo, keys) -> {
+                if (keys == null) keys = ConcurrentHashMap.newKeySet();
+                keys.add(k);
+                return keys;
+            });
+            return value;
+        });
+    }
+
+    private void remove(ResourceKey key) {
+        cache.asMap().computeIfPresent(key, (k, previous) -> {
+            unindex(k);
+            return null;
+        });
+    }
+
+    private void unindex(ResourceKey key) {
+        keysByClient.computeIfPresent(key.clientInfo(), (clientInfo, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    private record ResourceKey(ClientInfo clientInfo, String resourceType, String id, String vid) {
+        String describe() {
+            return resourceType + "/" + id + (vid != null ? "/_history/" + vid : "");
+        }
+    }
+}
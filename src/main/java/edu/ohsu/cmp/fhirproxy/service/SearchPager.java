@@ -0,0 +1,32 @@
+package edu.ohsu.cmp.fhirproxy.service;
+
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Iterates over the pages of a search, starting with the first page, until there are no more pages or the page
+ * limit has been reached.  A page limit of null or 0 means no limit.
+ */
+public interface SearchPager extends Iterator<Bundle> {
+    int getPagesFetched();
+
+    /**
+     * Wait for a page fetched in the background, rethrowing any upstream failure as it was originally thrown
+     * @param future
+     * @return
+     */
+    static Bundle join(CompletableFuture<Bundle> future) {
+        try {
+            return future.join();
+
+        } catch (CompletionException ce) {
+            if (ce.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw ce;
+        }
+    }
+}
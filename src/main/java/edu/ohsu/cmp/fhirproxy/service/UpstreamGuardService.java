@@ -0,0 +1,109 @@
+package edu.ohsu.cmp.fhirproxy.service;
+
+import edu.ohsu.cmp.fhirproxy.exception.UpstreamUnavailableException;
+import edu.ohsu.cmp.fhirproxy.util.UpstreamGuard;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps an UpstreamGuard per upstream server, so that one slow or failing server can only tie up as many of the
+ * proxy's threads as its own limit allows, and requests to it fail fast (503, with Retry-After) while its breaker is
+ * open.  Servers are told apart by host and port, as the HTTP clients see them.  Each guard's limit, in-flight
+ * requests and breaker state are published as metrics.
+ * Enabled by upstream.guard.enabled.
+ */
+@Service
+public class UpstreamGuardService {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Value("${upstream.guard.enabled:true}")
+    private Boolean enabled;
+
+    @Value("${upstream.guard.limit.initial:100}")
+    private Integer initialLimit;
+
+    @Value("${upstream.guard.limit.min:5}")
+    private Integer minLimit;
+
+    @Value("${upstream.guard.limit.max:500}")
+    private Integer maxLimit;
+
+    @Value("${upstream.guard.limit.backoff-ratio:0.9}")
+    private Double backoffRatio;
+
+    @Value("${upstream.guard.latency-threshold:5000}")
+    private Long latencyThreshold;
+
+    @Value("${upstream.guard.breaker.window:50}")
+    private Integer window;
+
+    @Value("${upstream.guard.breaker.min-calls:20}")
+    private Integer minCalls;
+
+    @Value("${upstream.guard.breaker.failure-rate:0.5}")
+    private Double failureRate;
+
+    @Value("${upstream.guard.breaker.open-duration:10000}")
+    private Long openDuration;
+
+    @Autowired
+    private MetricsService metricsService;
+
+    private UpstreamGuard.Settings settings;
+    private final Map<String, UpstreamGuard> guards = new ConcurrentHashMap<>();
+
+    private static final UpstreamGuard.Permit UNGUARDED = (status, nanos) -> {};
+
+    @PostConstruct
+    public void init() {
+        settings = new UpstreamGuard.Settings(initialLimit, minLimit, maxLimit, backoffRatio, latencyThreshold,
+                window, minCalls, failureRate, openDuration);
+    }
+
+    /**
+     * @param host the upstream host, as host:port
+     * @return a permit for one request to the host, to be released when the request completes
+     * @throws UpstreamUnavailableException if the request must not be sent
+     */
+    public UpstreamGuard.Permit acquire(String host) {
+        return acquire(host, true);
+    }
+
+    /**
+     * @param host the upstream host, as host:port
+     * @param limited false for a request that doesn't hold a thread while it waits, which is subject only to the
+     *                breaker
+     * @return a permit for one request to the host, to be released when the request completes
+     * @throws UpstreamUnavailableException if the request must not be sent
+     */
+    public UpstreamGuard.Permit acquire(String host, boolean limited) {
+        if ( ! enabled ) return UNGUARDED;
+
+        UpstreamGuard guard = guards.computeIfAbsent(host, this::create);
+        try {
+            return guard.acquire(limited);
+
+        } catch (UpstreamUnavailableException e) {
+            metricsService.recordUpstreamRejection(host, guard.getState());
+            throw e;
+        }
+    }
+
+///////////////////////////////////////////////////////////////////////////////////
+/// private methods
+///
+
+    private UpstreamGuard create(String host) {
+        logger.info("guarding upstream " + host + " with " + settings);
+        UpstreamGuard guard = new UpstreamGuard(host, settings);
+        metricsService.registerUpstreamGuard(host, guard);
+        return guard;
+    }
+}
@@ -0,0 +1,223 @@
+package edu.ohsu.cmp.fhirproxy.service;
+
+import edu.ohsu.cmp.fhirproxy.model.UpstreamEndpoint;
+import edu.ohsu.cmp.fhirproxy.util.Deadline;
+import edu.ohsu.cmp.fhirproxy.util.LatencyTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.stereotype.Service;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Tracks recent upstream latencies per upstream server and kind of request (see UpstreamEndpoint), and derives from
+ * them the socket timeout each request gets: upstream.deadline.multiplier times the upstream.deadline.percentile
+ * latency, but no less than upstream.deadline.min and no more than socket.timeout.  Until enough requests have been
+ * seen, and for requests of no recognized kind, the timeout is socket.timeout.
+ *
+ * Reads and vreads may also be hedged (upstream.hedge.enabled): if the upstream server hasn't answered by the
+ * upstream.hedge.percentile latency, the same request is sent again, and whichever response arrives first is used.
+ * At most upstream.hedge.budget of requests are hedged, so that a server that is slow across the board isn't sent
+ * twice the traffic.  The losing request is not aborted; its response is discarded.
+ */
+@Service
+public class UpstreamLatencyService {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Value("${socket.timeout:300000}")
+    private Integer socketTimeout;
+
+    @Value("${upstream.deadline.adaptive.enabled:true}")
+    private Boolean adaptiveEnabled;
+
+    @Value("${upstream.deadline.window:256}")
+    private Integer window;
+
+    @Value("${upstream.deadline.min-samples:20}")
+    private Integer minSamples;
+
+    @Value("${upstream.deadline.percentile:0.99}")
+    private Double deadlinePercentile;
+
+    @Value("${upstream.deadline.multiplier:4}")
+    private Double multiplier;
+
+    @Value("${upstream.deadline.min:2000}")
+    private Integer minTimeout;
+
+    @Value("${upstream.hedge.enabled:false}")
+    private Boolean hedgeEnabled;
+
+    @Value("${upstream.hedge.percentile:0.95}")
+    private Double hedgePercentile;
+
+    @Value("${upstream.hedge.min-delay:10}")
+    private Long hedgeMinDelay;
+
+    @Value("${upstream.hedge.budget:0.1}")
+    private Double hedgeBudget;
+
+    @Autowired
+    private MetricsService metricsService;
+
+    @Autowired
+    private AsyncTaskExecutor upstreamExecutor;
+
+    private record Key(String host, UpstreamEndpoint endpoint) {}
+
+    private class Stats {
+        final LatencyTracker tracker = new LatencyTracker(window);
+        final AtomicLong hedgeable = new AtomicLong();
+        final AtomicLong hedged = new AtomicLong();
+    }
+
+    private final Map<Key, Stats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * @param serverUrl
+     * @return the upstream server's host, as host:port, in the form the HTTP clients use
+     */
+    public static String hostOf(String serverUrl) {
+        URI uri = URI.create(serverUrl);
+        return uri.getPort() == -1 ? uri.getHost() : uri.getHost() + ":" + uri.getPort();
+    }
+
+    /**
+     * Record the latency of an upstream request that got a response, or that timed out
+     * @param host the upstream host, as host:port
+     * @param endpoint
+     * @param nanos
+     */
+    public void record(String host, UpstreamEndpoint endpoint, long nanos) {
+        if (endpoint == UpstreamEndpoint.OTHER) return;
+
+        stats.computeIfAbsent(new Key(host, endpoint), this::create).tracker.record(nanos);
+    }
+
+    /**
+     * @param host the upstream host, as host:port
+     * @param endpoint
+     * @return the socket timeout, in milliseconds, for a request of the specified kind to the host
+     */
+    public int socketTimeout(String host, UpstreamEndpoint endpoint) {
+        if ( ! adaptiveEnabled ) return socketTimeout;
+
+        long latency = latency(stats.get(new Key(host, endpoint)), deadlinePercentile);
+        if (latency < 0) return socketTimeout;
+
+        return (int) Math.max(minTimeout, Math.min(socketTimeout, (long) (latency * multiplier)));
+    }
+
+    /**
+     * Make an idempotent upstream request, hedging it if enabled and the server's latencies are known
+     * @param serverUrl
+     * @param endpoint
+     * @param call makes the request
+     * @return the first response
+     */
+    public <T> T hedge(String serverUrl, UpstreamEndpoint endpoint, Supplier<T> call) {
+        if ( ! hedgeEnabled ) return call.get();
+
+        String host = hostOf(serverUrl);
+        Stats s = stats.get(new Key(host, endpoint));
+        long delay = latency(s, hedgePercentile);
+        if (delay < 0) return call.get();
+
+        delay = Math.max(hedgeMinDelay, delay);
+        long hedgeable = s.hedgeable.incrementAndGet();
+
+        Deadline deadline = Deadline.current();
+        Executor executor = deadline != null ? deadline.wrap(upstreamExecutor) : upstreamExecutor;
+
+        CompletableFuture<T> first = CompletableFuture.supplyAsync(call, executor);
+        try {
+            return first.get(delay, TimeUnit.MILLISECONDS);
+
+        } catch (TimeoutException te) {
+            // slower than usual; hedge, budget permitting
+
+        } catch (ExecutionException ee) {
+            throw rethrow(ee.getCause());
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted waiting for " + host, ie);
+        }
+
+        if (s.hedged.get() >= hedgeBudget * hedgeable) {
+            return join(first);
+        }
+        s.hedged.incrementAndGet();
+
+        logger.debug("hedging " + endpoint + " to " + host + " - no response after " + delay + " ms");
+
+        CompletableFuture<T> second = CompletableFuture.supplyAsync(call, executor);
+        CompletableFuture<T> winner = new CompletableFuture<>();
+        AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+
+        first.whenComplete((result, t) -> {
+            if (t == null) {
+                if (winner.complete(result)) metricsService.recordUpstreamHedge(host, endpoint, false);
+            } else if ( ! firstFailure.compareAndSet(null, t) ) {
+                winner.completeExceptionally(t);
+            }
+        });
+        second.whenComplete((result, t) -> {
+            if (t == null) {
+                if (winner.complete(result)) metricsService.recordUpstreamHedge(host, endpoint, true);
+            } else if ( ! firstFailure.compareAndSet(null, t) ) {
+                winner.completeExceptionally(firstFailure.get());
+            }
+        });
+
+        return join(winner);
+    }
+
+///////////////////////////////////////////////////////////////////////////////////
+/// private methods
+///
+
+    private Stats create(Key key) {
+        Stats s = new Stats();
+        metricsService.registerUpstreamTimeout(key.host(), key.endpoint(), () -> socketTimeout(key.host(), key.endpoint()));
+        return s;
+    }
+
+    /**
+     * @return the latency in milliseconds at the specified percentile, or -1 if too few requests have been seen
+     */
+    private long latency(Stats s, double percentile) {
+        if (s == null || s.tracker.getCount() < minSamples) return -1;
+        return TimeUnit.NANOSECONDS.toMillis(s.tracker.percentile(percentile));
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+
+        } catch (CompletionException ce) {
+            throw rethrow(ce.getCause());
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof CompletionException && t.getCause() != null) t = t.getCause();
+        if (t instanceof RuntimeException re) return re;
+        if (t instanceof Error e) throw e;
+        return new CompletionException(t);
+    }
+}
@@ -0,0 +1,182 @@
+package edu.ohsu.cmp.fhirproxy.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Scheduler;
+import edu.ohsu.cmp.fhirproxy.model.RecordedExchange;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records upstream traffic, for replaying later with UpstreamReplayServer.  Each registration's exchanges are
+ * appended to their own archive in upstream.record.path, a gzipped file of one JSON RecordedExchange per line, named
+ * for a hash of the registration's bearer token, the time the recording run started and a sequence number; each run
+ * writes archives of its own.  The token itself is never recorded, nor is any other request
+ * header but those that make a request conditional.  Response bodies are recorded as they are, so an archive holds
+ * whatever patient data was fetched while recording, and must be protected accordingly.
+ *
+ * Every exchange is flushed through to its archive as it is recorded, so an archive left unfinished by a crash holds
+ * everything recorded before it, and is replayed up to where it ends.  At most upstream.record.max-open archives are
+ * kept open at once, and an archive unused for upstream.record.idle-timeout ms is finished and closed; a registration
+ * that records again after that gets a new archive, replayed along with its earlier ones.
+ * Enabled by upstream.record.enabled.
+ */
+@Service
+public class UpstreamRecorder {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    public static final String ARCHIVE_SUFFIX = ".ndjson.gz";
+    private static final String ANONYMOUS = "anonymous";
+
+    @Value("${upstream.record.enabled:false}")
+    private Boolean enabled;
+
+    @Value("${upstream.record.path:recordings}")
+    private String path;
+
+    @Value("${upstream.record.max-open:256}")
+    private Integer maxOpen;
+
+    @Value("${upstream.record.idle-timeout:60000}")
+    private Long idleTimeout;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final long runStarted = System.currentTimeMillis();
+    private final AtomicLong sequence = new AtomicLong();
+    private Cache<String, Archive> archives;
+
+    @PostConstruct
+    public void init() throws IOException {
+        archives = Caffeine.newBuilder()
+                .maximumSize(maxOpen)
+                .expireAfterAccess(Duration.ofMillis(idleTimeout))
+                // so that idle archives are closed even when nothing else is being recorded
+                .scheduler(Scheduler.systemScheduler())
+                .removalListener((String name, Archive archive, RemovalCause cause) -> {
+                    if (archive != null) archive.close();
+                })
+                .build();
+
+        if (enabled) {
+            Files.createDirectories(Paths.get(path));
+            logger.warn("recording upstream traffic to " + Paths.get(path).toAbsolutePath());
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        archives.invalidateAll();
+        archives.cleanUp();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Append an exchange to the archive of the registration it was made for.  Failures are logged, not thrown; a
+     * recording is never allowed to fail the request being recorded.
+     * @param bearerToken the upstream bearer token the request carried, or null
+     * @param exchange
+     */
+    public void record(String bearerToken, RecordedExchange exchange) {
+        String name = bearerToken == null ? ANONYMOUS : DigestUtils.sha256Hex(bearerToken).substring(0, 16);
+        try {
+            String line = objectMapper.writeValueAsString(exchange);
+            while (true) {
+                Archive archive = archives.get(name, this::open);
+                if (archive.write(line)) break;
+                // evicted and closed after it was got; replace it, unless that's already been done
+                archives.asMap().remove(name, archive);
+            }
+
+        } catch (IOException | UncheckedIOException e) {
+            logger.error("couldn't record upstream exchange " + exchange.key(), e);
+        }
+    }
+
+///////////////////////////////////////////////////////////////////////////////////
+/// private methods
+///
+
+    private Archive open(String name) {
+        // a new file per run, and per opening within a run, so that a finished archive, or one a crashed run left
+        // unfinished, is never appended to
+        Path file = Paths.get(path, name + "-" + runStarted + "-" + sequence.incrementAndGet() + ARCHIVE_SUFFIX);
+        try {
+            OutputStream out = Files.newOutputStream(file, StandardOpenOption.CREATE_NEW);
+            // with sync flush, each flush makes everything written so far readable
+            return new Archive(file, new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(out, true),
+                    StandardCharsets.UTF_8)));
+
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * An open archive.  Writes are serialized with a lock rather than a monitor, as they're made on request threads,
+     * which may be virtual, and block on file I/O.
+     */
+    private class Archive {
+        private final Path file;
+        private final Writer writer;
+        private final ReentrantLock lock = new ReentrantLock();
+        private boolean closed = false;
+
+        Archive(Path file, Writer writer) {
+            this.file = file;
+            this.writer = writer;
+        }
+
+        /**
+         * @return false if the archive has been closed, and nothing was written
+         */
+        boolean write(String line) throws IOException {
+            lock.lock();
+            try {
+                if (closed) return false;
+                writer.write(line);
+                writer.write('\n');
+                writer.flush();
+                return true;
+
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void close() {
+            lock.lock();
+            try {
+                if (closed) return;
+                closed = true;
+                writer.close();
+
+            } catch (IOException e) {
+                logger.error("couldn't finish upstream recording " + file, e);
+
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
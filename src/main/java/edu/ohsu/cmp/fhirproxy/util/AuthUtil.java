@@ -0,0 +1,26 @@
+package edu.ohsu.cmp.fhirproxy.util;
+
+import org.apache.commons.lang3.StringUtils;
+
+public class AuthUtil {
+    private static final String BEARER_TOKEN_PREFIX = "Bearer ";
+
+    /**
+     * @param authorization the value of an Authorization header
+     * @return the bearer token it carries
+     * @throws IllegalArgumentException if the header is blank or doesn't carry a bearer token
+     */
+    public static String extractBearerToken(String authorization) {
+        if (StringUtils.isBlank(authorization))
+            throw new IllegalArgumentException("authorization is blank");
+
+        if ( ! authorization.startsWith(BEARER_TOKEN_PREFIX) )
+            throw new IllegalArgumentException("authorization is not a bearer token");
+
+        String key = authorization.substring(BEARER_TOKEN_PREFIX.length());
+        if (StringUtils.isBlank(key))
+            throw new IllegalArgumentException("bearer token is blank");
+
+        return key;
+    }
+}
@@ -0,0 +1,94 @@
+package edu.ohsu.cmp.fhirproxy.util;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import edu.ohsu.cmp.fhirproxy.model.FhirFormat;
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes a Bundle incrementally: first the envelope (everything but the entries), then each entry as it becomes
+ * available, then the closing of the envelope.  Only the entry being written is ever held in encoded form, so
+ * memory use depends on entry size rather than on the number of entries.
+ * Supports JSON and XML only; see supports(FhirFormat).
+ */
+public class BundleStreamWriter {
+    private static final String XML_ELEMENT_OPEN = "<element";
+    private static final String XML_ELEMENT_CLOSE = "</element>";
+    private static final String XML_BUNDLE_CLOSE = "</Bundle>";
+
+    private final FhirContext ctx;
+    private final FhirFormat format;
+    private final boolean pretty;
+    private final Writer writer;
+
+    private String envelopeSuffix = null;
+    private int entryCount = 0;
+
+    public BundleStreamWriter(FhirContext ctx, FhirFormat format, boolean pretty, Writer writer) {
+        if ( ! supports(format) ) {
+            throw new IllegalArgumentException("streaming is not supported for format " + format);
+        }
+        this.ctx = ctx;
+        this.format = format;
+        this.pretty = pretty;
+        this.writer = writer;
+    }
+
+    public static boolean supports(FhirFormat format) {
+        return format == FhirFormat.JSON || format == FhirFormat.XML;
+    }
+
+    /**
+     * Write the opening of the bundle.  The envelope must not contain any entries.
+     * @param envelope
+     * @throws IOException
+     */
+    public void start(Bundle envelope) throws IOException {
+        if (envelope.hasEntry()) {
+            throw new IllegalArgumentException("envelope must not contain entries");
+        }
+
+        String encoded = FhirUtil.encode(ctx, envelope, format, pretty);
+        int pos = format == FhirFormat.JSON ?
+                encoded.lastIndexOf('}') :
+                encoded.lastIndexOf(XML_BUNDLE_CLOSE);
+
+        writer.write(encoded, 0, pos);
+        envelopeSuffix = encoded.substring(pos);
+    }
+
+    public void writeEntry(Bundle.BundleEntryComponent entry) throws IOException {
+        try (FhirUtil.ParserLease lease = FhirUtil.borrowParser(ctx, format, pretty)) {
+            IParser parser = lease.parser();
+
+            if (format == FhirFormat.JSON) {
+                writer.write(entryCount == 0 ? ",\"entry\":[" : ",");
+                parser.encodeToWriter(entry, writer);
+
+            } else {
+                // HAPI encodes a bare element as <element>...</element>, it needs to be named for its place in the Bundle
+                String encoded = parser.encodeToString(entry);
+                writer.write("<entry");
+                writer.write(encoded, XML_ELEMENT_OPEN.length(), encoded.lastIndexOf(XML_ELEMENT_CLOSE) - XML_ELEMENT_OPEN.length());
+                writer.write("</entry>");
+            }
+        }
+
+        entryCount++;
+    }
+
+    public void finish() throws IOException {
+        if (format == FhirFormat.JSON && entryCount > 0) {
+            writer.write("]");
+        }
+        writer.write(envelopeSuffix);
+        writer.flush();
+    }
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+}
@@ -3,9 +3,11 @@ package edu.ohsu.cmp.fhirproxy.util;
 import java.security.SecureRandom;
 
 public class CryptoUtil {
+    private static final SecureRandom RANDOM = new SecureRandom();
+
     public static byte[] randomBytes(int length) {
         byte[] b = new byte[length];
-        new SecureRandom().nextBytes(b);
+        RANDOM.nextBytes(b);
         return b;
     }
 }
@@ -0,0 +1,94 @@
+package edu.ohsu.cmp.fhirproxy.util;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * A point in time by which all of the upstream requests made for one proxied request must be done.  A deadline is
+ * made current on a thread for the duration of a call; the upstream HTTP clients (see GuardedHttpClientBuilder) cap
+ * the timeouts of each request made under it at the time remaining, and refuse to send requests once it has passed.
+ * Work handed to another thread carries the deadline with it if submitted through wrap().  Where deadlines are
+ * nested, the earlier one applies.
+ */
+public final class Deadline {
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+    private final long millis;
+    private final long expiresAt;
+
+    private Deadline(long millis) {
+        this.millis = millis;
+        this.expiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * @param millis
+     * @return a deadline the specified number of milliseconds from now
+     */
+    public static Deadline after(long millis) {
+        return new Deadline(millis);
+    }
+
+    /**
+     * @return the deadline current on this thread, or null if there is none
+     */
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @return the length of the deadline, as originally set
+     */
+    public long getMillis() {
+        return millis;
+    }
+
+    /**
+     * @return the milliseconds remaining, which are 0 or less once the deadline has passed
+     */
+    public long remainingMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime());
+    }
+
+    public boolean isExpired() {
+        return expiresAt - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Call the supplier with this deadline current, unless an earlier one already is
+     * @param supplier
+     * @return
+     */
+    public <T> T call(Supplier<T> supplier) {
+        Deadline previous = CURRENT.get();
+        CURRENT.set(previous != null && previous.expiresAt - expiresAt < 0 ? previous : this);
+        try {
+            return supplier.get();
+
+        } finally {
+            if (previous == null) CURRENT.remove();
+            else CURRENT.set(previous);
+        }
+    }
+
+    public void run(Runnable runnable) {
+        call(() -> {
+            runnable.run();
+            return null;
+        });
+    }
+
+    /**
+     * @param executor
+     * @return an executor that runs each task on the specified executor with this deadline current
+     */
+    public Executor wrap(Executor executor) {
+        return command -> executor.execute(() -> run(command));
+    }
+
+    @Override
+    public String toString() {
+        return "deadline of " + millis + " ms";
+    }
+}
@@ -0,0 +1,125 @@
+package edu.ohsu.cmp.fhirproxy.util;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admits up to a fixed number of concurrent holders; beyond that, callers wait in a queue shared by many flows, and
+ * are admitted in weighted-fair order (start-time fair queuing).  Each waiter is stamped with its flow's virtual
+ * finish time, which advances by 1/weight with every request the flow queues, and the waiter with the earliest stamp
+ * goes next.  So while the queue is busy a flow of weight 2 gets twice the admissions of a flow of weight 1, and a
+ * flow with many waiters can't hold back a flow with few.  Flows are forgotten whenever the queue empties.
+ * Uncontended acquisitions take a permit without locking.
+ */
+public class FairQueue {
+    private record Waiter(Object flow, double tag, long seq, CompletableFuture<Void> admitted) {}
+
+    private final Semaphore permits;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>(
+            Comparator.comparingDouble(Waiter::tag).thenComparingLong(Waiter::seq));
+    private final Map<Object, Double> finishTags = new HashMap<>();
+
+    private double virtualTime = 0;
+    private long seq = 0;
+    private volatile int waiting = 0;
+
+    public FairQueue(int capacity) {
+        this.permits = new Semaphore(capacity);
+    }
+
+    /**
+     * Wait for admission
+     * @param flow identifies the caller's flow
+     * @param weight the flow's share relative to other flows
+     * @param timeoutMillis
+     * @return true if admitted, in which case release() must follow; false if not admitted within the timeout
+     * @throws InterruptedException
+     */
+    public boolean acquire(Object flow, double weight, long timeoutMillis) throws InterruptedException {
+        if (waiting == 0 && permits.tryAcquire()) {
+            return true;
+        }
+
+        Waiter waiter;
+        lock.lock();
+        try {
+            if (waiters.isEmpty() && permits.tryAcquire()) {
+                return true;
+            }
+
+            double start = Math.max(virtualTime, finishTags.getOrDefault(flow, 0.0));
+            waiter = new Waiter(flow, start + 1 / weight, seq++, new CompletableFuture<>());
+            finishTags.put(flow, waiter.tag());
+            waiters.add(waiter);
+            waiting = waiters.size();
+
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            waiter.admitted().get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+
+        } catch (TimeoutException | InterruptedException e) {
+            lock.lock();
+            try {
+                if (waiters.remove(waiter)) {
+                    waiting = waiters.size();
+                    if (e instanceof InterruptedException ie) throw ie;
+                    return false;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            // admitted just as the wait ended; the permit is ours
+            if (e instanceof InterruptedException) Thread.currentThread().interrupt();
+            return true;
+
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Release a permit, handing it to the next waiter if there is one
+     */
+    public void release() {
+        lock.lock();
+        try {
+            Waiter next = waiters.poll();
+            if (next == null) {
+                permits.release();
+                return;
+            }
+
+            waiting = waiters.size();
+            virtualTime = next.tag();
+            if (waiters.isEmpty()) {
+                finishTags.clear();
+                virtualTime = 0;
+            }
+            next.admitted().complete(null);
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of callers waiting for admission
+     */
+    public int getWaiting() {
+        return waiting;
+    }
+}
@@ -2,41 +2,133 @@ package edu.ohsu.cmp.fhirproxy.util;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
 import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
 import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import edu.ohsu.cmp.fhirproxy.model.FhirFormat;
+import edu.ohsu.cmp.fhirproxy.model.FhirResponseBody;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
 public class FhirUtil {
-    public static String toJson(IBaseResource r, boolean pretty) {
-        FhirContext ctx = FhirContext.forR4();
-        IParser parser = ctx.newJsonParser();
-        parser.setPrettyPrint(pretty);
-        return parser.encodeResourceToString(r);
+
+    // parsers are not thread-safe, but they are reusable, so they are pooled per context, format and pretty-print
+    // combination and lent to one thread at a time.  Not per thread: with virtual threads, every request has a new one
+    private static final int MAX_POOLED_PARSERS = 64;
+    private static final Map<ParserKey, BlockingQueue<IParser>> PARSERS = new ConcurrentHashMap<>();
+
+    public static String toJson(FhirContext ctx, IBaseResource r, boolean pretty) {
+        return encode(ctx, r, FhirFormat.JSON, pretty);
+    }
+
+    public static String toXml(FhirContext ctx, IBaseResource r, boolean pretty) {
+        return encode(ctx, r, FhirFormat.XML, pretty);
+    }
+
+    public static String toRDF(FhirContext ctx, IBaseResource r, boolean pretty) {
+        return encode(ctx, r, FhirFormat.RDF, pretty);
+    }
+
+    public static String encode(FhirContext ctx, IBaseResource r, FhirFormat format, boolean pretty) {
+        try (ParserLease lease = borrowParser(ctx, format, pretty)) {
+            return lease.parser().encodeResourceToString(r);
+        }
+    }
+
+    public static void encode(FhirContext ctx, IBaseResource r, FhirFormat format, boolean pretty, Writer writer)
+            throws IOException {
+        try (ParserLease lease = borrowParser(ctx, format, pretty)) {
+            lease.parser().encodeResourceToWriter(r, writer);
+        }
     }
 
-    public static String toXml(IBaseResource r, boolean pretty) {
-        FhirContext ctx = FhirContext.forR4();
-        IParser parser = ctx.newXmlParser();
-        parser.setPrettyPrint(pretty);
-        return parser.encodeResourceToString(r);
+    /**
+     * @return a response body that encodes the resource as it's written, rather than into an intermediate String
+     */
+    public static FhirResponseBody toResponseBody(FhirContext ctx, IBaseResource r, FhirFormat format, boolean pretty) {
+        return out -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            encode(ctx, r, format, pretty, writer);
+            writer.flush();
+        };
     }
 
-    public static String toRDF(IBaseResource r, boolean pretty) {
-        FhirContext ctx = FhirContext.forR4();
-        IParser parser = ctx.newRDFParser();
-        parser.setPrettyPrint(pretty);
-        return parser.encodeResourceToString(r);
+    /**
+     * Borrow a parser, for use by the calling thread only until the lease is closed
+     * @return a lease on a pooled parser, or on a new one if none is free
+     */
+    public static ParserLease borrowParser(FhirContext ctx, FhirFormat format, boolean pretty) {
+        ParserKey key = new ParserKey(ctx, format, pretty);
+        IParser parser = PARSERS.computeIfAbsent(key, k -> new ArrayBlockingQueue<>(MAX_POOLED_PARSERS)).poll();
+        if (parser == null) {
+            parser = switch (format) {
+                case JSON -> ctx.newJsonParser();
+                case XML -> ctx.newXmlParser();
+                case RDF -> ctx.newRDFParser();
+            };
+            parser.setPrettyPrint(pretty);
+        }
+        return new ParserLease(key, parser);
     }
 
-    public static IGenericClient buildClient(ClientInfo clientInfo, Integer socketTimeout) {
-        FhirContext ctx = FhirContext.forR4();
-        ctx.getRestfulClientFactory().setSocketTimeout(socketTimeout);
+    public static IGenericClient buildClient(FhirContext ctx, ClientInfo clientInfo) {
         IGenericClient client = ctx.newRestfulGenericClient(clientInfo.getServerUrl());
 
         BearerTokenAuthInterceptor authInterceptor = new BearerTokenAuthInterceptor(clientInfo.getBearerToken());
         client.registerInterceptor(authInterceptor);
 
+        if (clientInfo.getClientId() != null) {
+            // tells the HTTP client whose request this is; removed before the request is sent
+            client.registerInterceptor(new IClientInterceptor() {
+                @Override
+                public void interceptRequest(IHttpRequest request) {
+                    request.addHeader(GuardedHttpClientBuilder.CLIENT_ID_HEADER, clientInfo.getClientId());
+                }
+
+                @Override
+                public void interceptResponse(IHttpResponse response) {
+                }
+            });
+        }
+
         return client;
     }
+
+    private record ParserKey(FhirContext ctx, FhirFormat format, boolean pretty) {
+    }
+
+    /**
+     * A parser borrowed with borrowParser(); closing the lease returns the parser to the pool, or drops it if the
+     * pool is full
+     */
+    public static final class ParserLease implements AutoCloseable {
+        private final ParserKey key;
+        private final IParser parser;
+
+        private ParserLease(ParserKey key, IParser parser) {
+            this.key = key;
+            this.parser = parser;
+        }
+
+        public IParser parser() {
+            return parser;
+        }
+
+        @Override
+        public void close() {
+            PARSERS.get(key).offer(parser);
+        }
+    }
 }
@@ -0,0 +1,227 @@
+package edu.ohsu.cmp.fhirproxy.util;
+
+import edu.ohsu.cmp.fhirproxy.model.UpstreamEndpoint;
+import edu.ohsu.cmp.fhirproxy.service.FairQueueService;
+import edu.ohsu.cmp.fhirproxy.service.UpstreamGuardService;
+import edu.ohsu.cmp.fhirproxy.service.UpstreamLatencyService;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.EofSensorInputStream;
+import org.apache.http.conn.EofSensorWatcher;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.execchain.ClientExecChain;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Builds HTTP clients whose every request must first be admitted by the upstream server's UpstreamGuard.  The guard
+ * is consulted before a connection is leased, so a request it rejects never reaches, or even connects to, the
+ * server.  The request is released once its response body has been read to the end, or the body or response is
+ * closed, or when it fails; until then it still occupies the upstream server, and the proxy's connection to it.
+ *
+ * Each request also gets the socket timeout UpstreamLatencyService derives for its server and kind, capped at the
+ * time remaining before the current Deadline, if any; once that deadline has passed, requests fail without being
+ * sent.  Latencies of requests that get a response, or that time out on their own account rather than the
+ * deadline's, are fed back to UpstreamLatencyService.
+ *
+ * Before all of that, the request waits its registration's turn in FairQueueService.  The registration is told by
+ * the request's Authorization header and by its CLIENT_ID_HEADER, which is removed before the request is sent.
+ */
+public class GuardedHttpClientBuilder extends HttpClientBuilder {
+    /**
+     * Carries the clientId of the registration an upstream request is made for, from the FHIR client to the HTTP
+     * client; never sent upstream
+     */
+    public static final String CLIENT_ID_HEADER = "X-Proxy-Client-Id";
+
+    private final UpstreamGuardService guardService;
+    private final UpstreamLatencyService latencyService;
+    private final FairQueueService fairQueueService;
+
+    public GuardedHttpClientBuilder(UpstreamGuardService guardService, UpstreamLatencyService latencyService,
+                                    FairQueueService fairQueueService) {
+        this.guardService = guardService;
+        this.latencyService = latencyService;
+        this.fairQueueService = fairQueueService;
+    }
+
+    @Override
+    protected ClientExecChain decorateProtocolExec(ClientExecChain protocolExec) {
+        return (HttpRoute route, HttpRequestWrapper request, HttpClientContext context,
+                HttpExecutionAware execAware) -> {
+            // the request's own target, which is not the route's when replaying
+            HttpHost target = request.getTarget() != null ? request.getTarget() : route.getTargetHost();
+            String host = target.toHostString();
+            UpstreamEndpoint endpoint = UpstreamEndpoint.of(request.getMethod(), request.getURI());
+
+            Header clientId = request.getFirstHeader(CLIENT_ID_HEADER);
+            request.removeHeaders(CLIENT_ID_HEADER);
+            Header authorization = request.getFirstHeader(HttpHeaders.AUTHORIZATION);
+
+            Deadline deadline = Deadline.current();
+            if (deadline != null && deadline.isExpired()) {
+                throw new SocketTimeoutException(deadline + " passed before request to " + host);
+            }
+
+            fairQueueService.acquire(clientId != null ? clientId.getValue() : null,
+                    authorization != null ? authorization.getValue() : null);
+            Runnable release = fairQueueService::release;
+            try {
+                // the wait for admission may have used up some of the deadline
+                boolean cappedByDeadline = applyTimeouts(context, latencyService.socketTimeout(host, endpoint), deadline);
+
+                UpstreamGuard.Permit permit = guardService.acquire(host);
+
+                long start = System.nanoTime();
+                CloseableHttpResponse response = null;
+                int status = 0;
+                boolean timedOut = false;
+                try {
+                    response = protocolExec.execute(route, request, context, execAware);
+                    status = response.getStatusLine().getStatusCode();
+
+                } catch (SocketTimeoutException e) {
+                    timedOut = true;
+                    throw e;
+
+                } finally {
+                    long nanos = System.nanoTime() - start;
+                    release = releaseOnce(permit, status, nanos);
+                    if (status > 0 || (timedOut && ! cappedByDeadline)) {
+                        latencyService.record(host, endpoint, nanos);
+                    }
+                }
+
+                if (response.getEntity() == null) {
+                    return response;
+                }
+                CloseableHttpResponse released = releasedWhenConsumed(response, release);
+                release = null;
+                return released;
+
+            } finally {
+                if (release != null) release.run();
+            }
+        };
+    }
+
+    /**
+     * @return releases the permit and the fair queue place of a completed request, the first time it's run
+     */
+    private Runnable releaseOnce(UpstreamGuard.Permit permit, int status, long nanos) {
+        AtomicBoolean released = new AtomicBoolean();
+        return () -> {
+            if (released.compareAndSet(false, true)) {
+                try {
+                    permit.release(status, nanos);
+                } finally {
+                    fairQueueService.release();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the response, but running release once its body has been read to the end, or the body or the response
+     * has been closed
+     */
+    private static CloseableHttpResponse releasedWhenConsumed(CloseableHttpResponse response, Runnable release) {
+        response.setEntity(new ReleasingEntity(response.getEntity(), release));
+        return (CloseableHttpResponse) Proxy.newProxyInstance(GuardedHttpClientBuilder.class.getClassLoader(),
+                new Class<?>[] { CloseableHttpResponse.class }, (proxy, method, args) -> {
+                    try {
+                        return method.invoke(response, args);
+
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+
+                    } finally {
+                        if (method.getName().equals("close") && method.getParameterCount() == 0) {
+                            release.run();
+                        }
+                    }
+                });
+    }
+
+    private static class ReleasingEntity extends HttpEntityWrapper {
+        private final Runnable release;
+
+        ReleasingEntity(HttpEntity entity, Runnable release) {
+            super(entity);
+            this.release = release;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new EofSensorInputStream(super.getContent(), new EofSensorWatcher() {
+                @Override
+                public boolean eofDetected(InputStream wrapped) {
+                    release.run();
+                    return true;
+                }
+
+                @Override
+                public boolean streamClosed(InputStream wrapped) {
+                    release.run();
+                    return true;
+                }
+
+                @Override
+                public boolean streamAbort(InputStream wrapped) {
+                    release.run();
+                    return true;
+                }
+            });
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try (InputStream in = getContent()) {
+                in.transferTo(out);
+            }
+        }
+    }
+
+    /**
+     * @return true if the deadline made the socket timeout shorter than it would otherwise have been
+     */
+    private boolean applyTimeouts(HttpClientContext context, int socketTimeout, Deadline deadline) {
+        RequestConfig config = context.getRequestConfig();
+        int connectTimeout = config.getConnectTimeout();
+        boolean capped = false;
+
+        if (deadline != null) {
+            int remaining = (int) Math.max(1, Math.min(Integer.MAX_VALUE, deadline.remainingMillis()));
+            if (remaining < socketTimeout) {
+                socketTimeout = remaining;
+                capped = true;
+            }
+            if (connectTimeout <= 0 || remaining < connectTimeout) {
+                connectTimeout = remaining;
+            }
+        }
+
+        if (socketTimeout != config.getSocketTimeout() || connectTimeout != config.getConnectTimeout()) {
+            context.setRequestConfig(RequestConfig.copy(config)
+                    .setSocketTimeout(socketTimeout)
+                    .setConnectTimeout(connectTimeout)
+                    .build());
+        }
+        return capped;
+    }
+}
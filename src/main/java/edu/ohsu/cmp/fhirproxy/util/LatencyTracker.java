@@ -0,0 +1,49 @@
+package edu.ohsu.cmp.fhirproxy.util;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latencies of one kind of request, in a ring of fixed size, and reports percentiles of them.
+ * Old samples are overwritten rather than decayed, so the percentiles follow a change in latency within one ring's
+ * worth of requests.  Percentiles are computed by sorting a copy of the ring, which is cheap next to the requests
+ * being measured.
+ */
+public class LatencyTracker {
+    private final long[] samples;
+    private int next = 0;
+    private int count = 0;
+
+    public LatencyTracker(int size) {
+        if (size < 1) throw new IllegalArgumentException("size must be at least 1");
+        this.samples = new long[size];
+    }
+
+    public synchronized void record(long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) count++;
+    }
+
+    /**
+     * @return the number of samples held, at most the ring's size
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * @param percentile between 0 and 1, e.g. 0.99
+     * @return the latency in nanoseconds at the given percentile of the samples held, or -1 if there are none
+     */
+    public long percentile(double percentile) {
+        long[] sorted;
+        synchronized (this) {
+            if (count == 0) return -1;
+            sorted = Arrays.copyOf(samples, count);
+        }
+        Arrays.sort(sorted);
+
+        int rank = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank))];
+    }
+}
@@ -0,0 +1,132 @@
+package edu.ohsu.cmp.fhirproxy.util;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps a pooling connection manager so that callers wait for a free connection on a Semaphore, before reaching the
+ * pool, rather than inside it.  Apache HttpClient 4.x waits for a pooled connection while holding a monitor, which
+ * pins a virtual thread to its carrier for the whole wait; a Semaphore wait unmounts it instead.  The permits match
+ * the pool's own limits, so once a caller holds permits the pool always has a connection to give it.
+ */
+public class PermitGatedConnectionManager implements HttpClientConnectionManager {
+    private final HttpClientConnectionManager delegate;
+    private final Semaphore totalPermits;
+    private final int maxPerRoute;
+    private final Map<HttpRoute, Semaphore> routePermits = new ConcurrentHashMap<>();
+    private final Map<HttpClientConnection, HttpRoute> leased = new ConcurrentHashMap<>();
+
+    public PermitGatedConnectionManager(HttpClientConnectionManager delegate, int maxTotal, int maxPerRoute) {
+        this.delegate = delegate;
+        this.totalPermits = new Semaphore(maxTotal, true);
+        this.maxPerRoute = maxPerRoute;
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+        return new ConnectionRequest() {
+            private volatile ConnectionRequest request;
+
+            @Override
+            public HttpClientConnection get(long timeout, TimeUnit timeUnit)
+                    throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                long deadline = timeout > 0 ? System.nanoTime() + timeUnit.toNanos(timeout) : Long.MAX_VALUE;
+
+                Semaphore perRoute = routePermits.computeIfAbsent(route, r -> new Semaphore(maxPerRoute, true));
+                acquire(perRoute, deadline);
+                try {
+                    acquire(totalPermits, deadline);
+                    try {
+                        request = delegate.requestConnection(route, state);
+                        HttpClientConnection conn = request.get(remaining(deadline), TimeUnit.NANOSECONDS);
+                        leased.put(conn, route);
+                        return conn;
+
+                    } catch (InterruptedException | ExecutionException | ConnectionPoolTimeoutException | RuntimeException e) {
+                        totalPermits.release();
+                        throw e;
+                    }
+                } catch (InterruptedException | ExecutionException | ConnectionPoolTimeoutException | RuntimeException e) {
+                    perRoute.release();
+                    throw e;
+                }
+            }
+
+            @Override
+            public boolean cancel() {
+                ConnectionRequest r = request;
+                return r != null && r.cancel();
+            }
+        };
+    }
+
+    @Override
+    public void releaseConnection(HttpClientConnection conn, Object newState, long validDuration, TimeUnit timeUnit) {
+        try {
+            delegate.releaseConnection(conn, newState, validDuration, timeUnit);
+        } finally {
+            HttpRoute route = leased.remove(conn);
+            if (route != null) {
+                totalPermits.release();
+                routePermits.get(route).release();
+            }
+        }
+    }
+
+    @Override
+    public void connect(HttpClientConnection conn, HttpRoute route, int connectTimeout, HttpContext context) throws IOException {
+        delegate.connect(conn, route, connectTimeout, context);
+    }
+
+    @Override
+    public void upgrade(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+        delegate.upgrade(conn, route, context);
+    }
+
+    @Override
+    public void routeComplete(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+        delegate.routeComplete(conn, route, context);
+    }
+
+    @Override
+    public void closeIdleConnections(long idletime, TimeUnit timeUnit) {
+        delegate.closeIdleConnections(idletime, timeUnit);
+    }
+
+    @Override
+    public void closeExpiredConnections() {
+        delegate.closeExpiredConnections();
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+////////////////////////////////////////////////////////////////////////////////////
+/// private stuff
+///
+
+    private static void acquire(Semaphore semaphore, long deadline) throws InterruptedException, ConnectionPoolTimeoutException {
+        if (deadline == Long.MAX_VALUE) {
+            semaphore.acquire();
+        } else if ( ! semaphore.tryAcquire(remaining(deadline), TimeUnit.NANOSECONDS) ) {
+            throw new ConnectionPoolTimeoutException("Timeout waiting for connection from pool");
+        }
+    }
+
+    private static long remaining(long deadline) {
+        return deadline == Long.MAX_VALUE ? 0 : Math.max(1, deadline - System.nanoTime());
+    }
+}
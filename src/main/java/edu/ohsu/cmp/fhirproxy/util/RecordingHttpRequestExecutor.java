@@ -0,0 +1,123 @@
+package edu.ohsu.cmp.fhirproxy.util;
+
+import edu.ohsu.cmp.fhirproxy.model.RecordedExchange;
+import edu.ohsu.cmp.fhirproxy.service.MetricsService;
+import edu.ohsu.cmp.fhirproxy.service.UpstreamRecorder;
+import org.apache.http.*;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A TimedHttpRequestExecutor that also records every exchange with UpstreamRecorder.  The response body is read in
+ * full, as it came off the wire, and handed on to the client from memory; so recording adds the time to read the
+ * body to the time the caller waits for the response head.
+ */
+public class RecordingHttpRequestExecutor extends TimedHttpRequestExecutor {
+    private static final String BEARER_TOKEN_PREFIX = "Bearer ";
+
+    // the only request headers recorded, since they select the response
+    private static final List<String> CONDITIONAL_HEADERS = List.of(HttpHeaders.IF_NONE_MATCH,
+            HttpHeaders.IF_MODIFIED_SINCE);
+
+    // the response headers recorded, which describe the body
+    private static final List<String> RECORDED_HEADERS = List.of(HttpHeaders.CONTENT_TYPE, HttpHeaders.CONTENT_ENCODING,
+            HttpHeaders.ETAG, HttpHeaders.LAST_MODIFIED, HttpHeaders.LOCATION);
+
+    private final UpstreamRecorder recorder;
+
+    public RecordingHttpRequestExecutor(MetricsService metricsService, UpstreamRecorder recorder) {
+        super(metricsService);
+        this.recorder = recorder;
+    }
+
+    @Override
+    public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+            throws IOException, HttpException {
+        long start = System.nanoTime();
+        HttpResponse response = super.execute(request, conn, context);
+
+        byte[] body = null;
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            body = EntityUtils.toByteArray(entity);
+            ByteArrayEntity copy = new ByteArrayEntity(body);
+            copy.setContentType(entity.getContentType());
+            copy.setContentEncoding(entity.getContentEncoding());
+            response.setEntity(copy);
+        }
+        long latencyMillis = (System.nanoTime() - start) / 1_000_000;
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (String name : RECORDED_HEADERS) {
+            Header header = response.getFirstHeader(name);
+            if (header != null) headers.put(name, header.getValue());
+        }
+
+        recorder.record(bearerToken(request), new RecordedExchange(request.getRequestLine().getMethod(),
+                host(context), pathAndQuery(request), conditional(request),
+                response.getStatusLine().getStatusCode(), headers, latencyMillis, body));
+
+        return response;
+    }
+
+    /**
+     * @return the request's conditional headers, in a form that can be matched against a replayed request's
+     */
+    public static String conditional(Map<String, String> headers) {
+        StringBuilder sb = new StringBuilder();
+        for (String name : CONDITIONAL_HEADERS) {
+            String value = headers.get(name);
+            if (value != null) {
+                if ( ! sb.isEmpty() ) sb.append(' ');
+                sb.append(name).append('=').append(value);
+            }
+        }
+        return sb.toString();
+    }
+
+    public static List<String> getConditionalHeaders() {
+        return CONDITIONAL_HEADERS;
+    }
+
+///////////////////////////////////////////////////////////////////////////////////
+/// private methods
+///
+
+    private String conditional(HttpRequest request) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (String name : CONDITIONAL_HEADERS) {
+            Header header = request.getFirstHeader(name);
+            if (header != null) headers.put(name, header.getValue());
+        }
+        return conditional(headers);
+    }
+
+    private String bearerToken(HttpRequest request) {
+        Header authorization = request.getFirstHeader(HttpHeaders.AUTHORIZATION);
+        return authorization != null && authorization.getValue().startsWith(BEARER_TOKEN_PREFIX) ?
+                authorization.getValue().substring(BEARER_TOKEN_PREFIX.length()) :
+                null;
+    }
+
+    private static String host(HttpContext context) {
+        Object target = context.getAttribute(HttpCoreContext.HTTP_TARGET_HOST);
+        return target instanceof HttpHost httpHost ? httpHost.toHostString() : "unknown";
+    }
+
+    private static String pathAndQuery(HttpRequest request) {
+        String uri = request.getRequestLine().getUri();
+        if (uri.startsWith("/")) return uri;
+
+        // absolute, as sent through a proxy
+        URI parsed = URI.create(uri);
+        return parsed.getRawPath() + (parsed.getRawQuery() != null ? "?" + parsed.getRawQuery() : "");
+    }
+}
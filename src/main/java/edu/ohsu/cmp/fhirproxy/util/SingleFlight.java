@@ -0,0 +1,56 @@
+package edu.ohsu.cmp.fhirproxy.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Deduplicates concurrent calls for the same key.  The first caller for a key runs the supplier; callers that arrive
+ * for the same key while it is running wait for, and share, its result.  If the supplier throws, every waiter
+ * receives the same exception.  Once the call completes the key is released, so results are never cached.
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    public V execute(K key, Supplier<V> supplier) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+
+        if (existing != null) {
+            return join(existing);
+        }
+
+        try {
+            V value = supplier.get();
+            future.complete(value);
+            return value;
+
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    public int size() {
+        return inFlight.size();
+    }
+
+    private V join(CompletableFuture<V> future) {
+        try {
+            return future.join();
+
+        } catch (CompletionException ce) {
+            if (ce.getCause() instanceof RuntimeException re) {
+                throw re;
+            } else if (ce.getCause() instanceof Error err) {
+                throw err;
+            }
+            throw ce;
+        }
+    }
+}
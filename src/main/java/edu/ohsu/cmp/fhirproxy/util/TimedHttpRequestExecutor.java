@@ -0,0 +1,44 @@
+package edu.ohsu.cmp.fhirproxy.util;
+
+import edu.ohsu.cmp.fhirproxy.service.MetricsService;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import java.io.IOException;
+
+/**
+ * Records every request an Apache HttpClient sends, by upstream host and response status.  Time is measured from
+ * sending the request to receiving the response head; waiting for a pooled connection is not included, and neither
+ * is reading the response body.
+ */
+public class TimedHttpRequestExecutor extends HttpRequestExecutor {
+    private final MetricsService metricsService;
+
+    public TimedHttpRequestExecutor(MetricsService metricsService) {
+        this.metricsService = metricsService;
+    }
+
+    @Override
+    public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+            throws IOException, HttpException {
+        long start = System.nanoTime();
+        int status = 0;
+        try {
+            HttpResponse response = super.execute(request, conn, context);
+            status = response.getStatusLine().getStatusCode();
+            return response;
+
+        } finally {
+            Object target = context.getAttribute(HttpCoreContext.HTTP_TARGET_HOST);
+            String host = target instanceof HttpHost httpHost ? httpHost.toHostString() : "unknown";
+            metricsService.recordUpstreamRequest(host, request.getRequestLine().getMethod(), status,
+                    System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package edu.ohsu.cmp.fhirproxy.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that refills at a steady rate up to a burst size.  The bucket's whole state is one timestamp, the
+ * time at which it would be full again (the "theoretical arrival time" of the generic cell rate algorithm), so a
+ * token is taken with a single compare-and-set and callers never block one another.
+ */
+public class TokenBucket {
+    private final long interval;
+    private final long tolerance;
+    private final AtomicLong fullAt;
+
+    /**
+     * @param ratePerSecond tokens added per second
+     * @param burst tokens the bucket holds when full, and so the most that can be taken at once
+     */
+    public TokenBucket(double ratePerSecond, int burst) {
+        this(ratePerSecond, burst, System.nanoTime());
+    }
+
+    TokenBucket(double ratePerSecond, int burst, long now) {
+        if (ratePerSecond <= 0) throw new IllegalArgumentException("rate must be positive");
+        if (burst < 1) throw new IllegalArgumentException("burst must be at least 1");
+
+        this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+        this.tolerance = interval * burst;
+        this.fullAt = new AtomicLong(now);
+    }
+
+    /**
+     * Take a token, if there is one
+     * @return 0 if a token was taken; otherwise the nanoseconds until one will be available
+     */
+    public long tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    long tryAcquire(long now) {
+        while (true) {
+            long current = fullAt.get();
+            long next = (current - now > 0 ? current : now) + interval;
+            long wait = next - now - tolerance;
+            if (wait > 0) {
+                return wait;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+}
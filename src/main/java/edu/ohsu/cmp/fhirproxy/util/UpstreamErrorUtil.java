@@ -0,0 +1,63 @@
+package edu.ohsu.cmp.fhirproxy.util;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpTimeoutException;
+
+/**
+ * Maps failed upstream requests to the OperationOutcome and status the proxy responds with, whether they failed in
+ * HAPI's client (as a BaseServerResponseException) or in the JDK's (as an IOException)
+ */
+public class UpstreamErrorUtil {
+
+    /**
+     * @return true if the exception is a failed upstream request, rather than a failure of the proxy itself
+     */
+    public static boolean isUpstreamFailure(Throwable t) {
+        return t instanceof BaseServerResponseException || t instanceof IOException;
+    }
+
+    /**
+     * @return the OperationOutcome of a failed upstream request; one is made up for failures to get a response at all,
+     * which come without
+     */
+    public static IBaseResource outcomeOf(Throwable t) {
+        if (t instanceof BaseServerResponseException bsre && bsre.getOperationOutcome() != null) {
+            return bsre.getOperationOutcome();
+        }
+
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setCode(isTimeout(t) ? OperationOutcome.IssueType.TIMEOUT : OperationOutcome.IssueType.EXCEPTION)
+                .setDiagnostics(t.getMessage());
+        return outcome;
+    }
+
+    /**
+     * @return the status of a failed upstream request; 504 Gateway Timeout if the upstream server took too long (see
+     * UpstreamLatencyService), or 502 Bad Gateway if no response came from it for any other reason
+     */
+    public static HttpStatusCode statusOf(Throwable t) {
+        if (isTimeout(t)) {
+            return HttpStatus.GATEWAY_TIMEOUT;
+        } else if (t instanceof FhirClientConnectionException || t instanceof IOException) {
+            return HttpStatus.BAD_GATEWAY;
+        } else if (t instanceof BaseServerResponseException bsre) {
+            return HttpStatusCode.valueOf(bsre.getStatusCode());
+        }
+        return HttpStatus.INTERNAL_SERVER_ERROR;
+    }
+
+    public static boolean isTimeout(Throwable t) {
+        return ExceptionUtils.indexOfType(t, SocketTimeoutException.class) >= 0 ||
+                ExceptionUtils.indexOfType(t, HttpTimeoutException.class) >= 0;
+    }
+}
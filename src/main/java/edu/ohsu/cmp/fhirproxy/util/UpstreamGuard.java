@@ -0,0 +1,202 @@
+package edu.ohsu.cmp.fhirproxy.util;
+
+import edu.ohsu.cmp.fhirproxy.exception.UpstreamUnavailableException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Protects the proxy from one upstream server, and that server from the proxy, with an adaptive concurrency limit and
+ * a circuit breaker.
+ *
+ * The limit is adjusted AIMD-style from the outcome of each request: it grows by one for each request that completes
+ * within the latency threshold while the limit is at least half used, and shrinks by the backoff ratio for each one
+ * that fails or is slower, down to minLimit.  A request beyond the limit is rejected rather than queued, since a
+ * queue in front of a slow server is how the proxy's threads would end up waiting on it.
+ *
+ * The breaker counts failed and slow requests among the last window requests.  Once at least minCalls have been seen
+ * and the failing fraction reaches failureRate, it opens, and every request is rejected for openMillis.  It then lets
+ * a single trial request through: if that succeeds the breaker closes, otherwise it opens again.
+ */
+public class UpstreamGuard {
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    public record Settings(int initialLimit, int minLimit, int maxLimit, double backoffRatio, long latencyThresholdMillis,
+                           int window, int minCalls, double failureRate, long openMillis) {
+    }
+
+    /**
+     * A request admitted by the guard, which must be released when it completes
+     */
+    public interface Permit {
+        /**
+         * @param status the response status, or 0 if no response was received
+         * @param nanos
+         */
+        void release(int status, long nanos);
+    }
+
+    private final String name;
+    private final Settings settings;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    // limit and breaker state change together on completion, so they're guarded by this
+    private double limit;
+    private final boolean[] outcomes;
+    private int outcomeIndex = 0;
+    private int outcomeCount = 0;
+    private int failureCount = 0;
+    private volatile State state = State.CLOSED;
+    private volatile long openUntil = 0;
+    private boolean trialInFlight = false;
+
+    public UpstreamGuard(String name, Settings settings) {
+        this.name = name;
+        this.settings = settings;
+        this.limit = settings.initialLimit();
+        this.outcomes = new boolean[settings.window()];
+    }
+
+    /**
+     * @return a permit for one request
+     * @throws UpstreamUnavailableException if the breaker is open or the limit has been reached
+     */
+    public Permit acquire() {
+        return acquire(true);
+    }
+
+    /**
+     * @param limited false if the request is to be admitted regardless of the concurrency limit, because waiting on
+     *                it doesn't hold a thread; it's still counted, and its outcome still adjusts the limit
+     * @return a permit for one request
+     * @throws UpstreamUnavailableException if the breaker is open, or the request is limited and the limit has been
+     * reached
+     */
+    public Permit acquire(boolean limited) {
+        if (state != State.CLOSED && acquireTrial()) {
+            return this::releaseTrial;
+        }
+
+        if ( ! limited ) {
+            inFlight.incrementAndGet();
+            return this::release;
+        }
+
+        int limit = getLimit();
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                throw new UpstreamUnavailableException("upstream " + name + " is at its limit of " + limit +
+                        " concurrent requests", 1);
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return this::release;
+            }
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public State getState() {
+        if (state == State.OPEN && System.currentTimeMillis() >= openUntil) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+///////////////////////////////////////////////////////////////////////////////////
+/// private methods
+///
+
+    /**
+     * @return true if the request is the breaker's trial, or false if the breaker has closed since it was checked
+     */
+    private synchronized boolean acquireTrial() {
+        long now = System.currentTimeMillis();
+        if (state == State.OPEN && now >= openUntil) {
+            state = State.HALF_OPEN;
+        }
+        if (state == State.OPEN || trialInFlight) {
+            long wait = Math.max(openUntil - now, 1000);
+            throw new UpstreamUnavailableException("upstream " + name + " is failing; requests to it are suspended",
+                    (int) Math.ceil(wait / 1000.0));
+        }
+        if (state == State.CLOSED) {
+            return false;
+        }
+        trialInFlight = true;
+        inFlight.incrementAndGet();
+        return true;
+    }
+
+    private void releaseTrial(int status, long nanos) {
+        inFlight.decrementAndGet();
+        synchronized (this) {
+            trialInFlight = false;
+            if (isFailure(status, nanos)) {
+                open();
+            } else {
+                state = State.CLOSED;
+                resetWindow();
+            }
+        }
+    }
+
+    private void release(int status, long nanos) {
+        int inFlightAtCompletion = inFlight.getAndDecrement();
+        boolean failure = isFailure(status, nanos);
+
+        synchronized (this) {
+            if (failure) {
+                limit = Math.max(settings.minLimit(), limit * settings.backoffRatio());
+            } else if (inFlightAtCompletion * 2 >= limit) {
+                limit = Math.min(settings.maxLimit(), limit + 1);
+            }
+            record(failure);
+        }
+    }
+
+    // called holding the lock
+    private void record(boolean failure) {
+        if (outcomeCount == outcomes.length) {
+            if (outcomes[outcomeIndex]) failureCount --;
+        } else {
+            outcomeCount ++;
+        }
+        outcomes[outcomeIndex] = failure;
+        if (failure) failureCount ++;
+        outcomeIndex = (outcomeIndex + 1) % outcomes.length;
+
+        if (state == State.CLOSED && outcomeCount >= settings.minCalls() &&
+                failureCount >= settings.failureRate() * outcomeCount) {
+            open();
+        }
+    }
+
+    // called holding the lock
+    private void open() {
+        state = State.OPEN;
+        openUntil = System.currentTimeMillis() + settings.openMillis();
+        resetWindow();
+    }
+
+    // called holding the lock
+    private void resetWindow() {
+        outcomeIndex = 0;
+        outcomeCount = 0;
+        failureCount = 0;
+    }
+
+    private boolean isFailure(int status, long nanos) {
+        // 4xx responses other than 429 are the client's problem, not the server's
+        return status == 0 || status >= 500 || status == 429 ||
+                nanos / 1_000_000 > settings.latencyThresholdMillis();
+    }
+}
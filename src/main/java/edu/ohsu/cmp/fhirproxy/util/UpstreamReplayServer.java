@@ -0,0 +1,163 @@
+package edu.ohsu.cmp.fhirproxy.util;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import edu.ohsu.cmp.fhirproxy.model.RecordedExchange;
+import edu.ohsu.cmp.fhirproxy.service.UpstreamRecorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Serves upstream traffic recorded by UpstreamRecorder, standing in for every upstream server that was recorded.
+ * Requests are matched on method, Host, path and query and conditional headers; a request recorded more than once is
+ * answered with its recordings in the order they were made, and with the last one after that.  Each response is
+ * delayed by its recorded latency divided by the speedup, or not at all if the speedup is 0.  Unrecorded requests
+ * get 404.  An archive left unfinished, by a recording run that crashed, is replayed up to its last whole exchange.
+ */
+public class UpstreamReplayServer implements Closeable {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final Map<String, List<RecordedExchange>> recordings;
+    private final Map<String, AtomicInteger> cursors = new HashMap<>();
+    private final double speedup;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final AtomicInteger unmatchedCount = new AtomicInteger();
+
+    /**
+     * @param archives the directory holding the archives to serve
+     * @param port the port to listen on, or 0 for any free port
+     * @param speedup
+     * @throws IOException
+     */
+    public UpstreamReplayServer(Path archives, int port, double speedup) throws IOException {
+        this.recordings = load(archives);
+        for (String key : recordings.keySet()) {
+            cursors.put(key, new AtomicInteger());
+        }
+        this.speedup = speedup;
+
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+
+        logger.info("replaying " + recordings.values().stream().mapToInt(List::size).sum() + " recorded exchange(s) from " +
+                archives.toAbsolutePath() + " on port " + getPort() + " at speedup " + speedup);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public int getUnmatchedCount() {
+        return unmatchedCount.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.close();
+    }
+
+///////////////////////////////////////////////////////////////////////////////////
+/// private methods
+///
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            Map<String, String> requestHeaders = new HashMap<>();
+            for (String name : RecordingHttpRequestExecutor.getConditionalHeaders()) {
+                String value = exchange.getRequestHeaders().getFirst(name);
+                if (value != null) requestHeaders.put(name, value);
+            }
+            String key = RecordedExchange.key(exchange.getRequestMethod(),
+                    exchange.getRequestHeaders().getFirst("Host"), exchange.getRequestURI().toString(),
+                    RecordingHttpRequestExecutor.conditional(requestHeaders));
+
+            List<RecordedExchange> recorded = recordings.get(key);
+            if (recorded == null) {
+                unmatchedCount.incrementAndGet();
+                logger.warn("replay: no recording of " + key);
+                byte[] body = ("no recording of " + key).getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+                exchange.sendResponseHeaders(404, body.length);
+                exchange.getResponseBody().write(body);
+                return;
+            }
+
+            int n = cursors.get(key).getAndIncrement();
+            RecordedExchange response = recorded.get(Math.min(n, recorded.size() - 1));
+
+            if (speedup > 0) {
+                Thread.sleep((long) (response.latencyMillis() / speedup));
+            }
+
+            response.headers().forEach((name, value) -> exchange.getResponseHeaders().set(name, value));
+            byte[] body = response.body();
+            if (body == null || body.length == 0) {
+                exchange.sendResponseHeaders(response.status(), -1);
+            } else {
+                exchange.sendResponseHeaders(response.status(), body.length);
+                exchange.getResponseBody().write(body);
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Map<String, List<RecordedExchange>> load(Path archives) throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        Map<String, List<RecordedExchange>> map = new HashMap<>();
+
+        // archives are named for their registration and recording run, so in name order a registration's runs are
+        // replayed in the order they were recorded
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(archives, "*" + UpstreamRecorder.ARCHIVE_SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        Collections.sort(files);
+
+        for (Path file : files) {
+            // read as much as can be inflated before anything else; a reader over the stream would lose the lines it
+            // had buffered when an unfinished archive runs out
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+                in.transferTo(content);
+
+            } catch (IOException e) {
+                logger.warn("replay: " + file + " is unfinished, and is replayed up to where it ends - " +
+                        e.getClass().getSimpleName() + ": " + e.getMessage());
+            }
+
+            for (String line : content.toString(StandardCharsets.UTF_8).split("\n")) {
+                if (line.isEmpty()) continue;
+                try {
+                    RecordedExchange exchange = objectMapper.readValue(line, RecordedExchange.class);
+                    map.computeIfAbsent(exchange.key(), k -> new ArrayList<>()).add(exchange);
+
+                } catch (JsonProcessingException e) {
+                    // the last line of an unfinished archive is usually cut short
+                    logger.warn("replay: skipping unreadable exchange in " + file + " - " + e.getMessage());
+                }
+            }
+        }
+
+        return map;
+    }
+}
@@ -0,0 +1,172 @@
+package edu.ohsu.cmp.fhirproxy;
+
+import ca.uhn.fhir.context.FhirContext;
+import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import edu.ohsu.cmp.fhirproxy.model.Registration;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = { "proxy.async.enabled=true", "server.tomcat.threads.max=10", "socket.timeout=5000",
+                "search.deadline=4000" })
+class AsyncProxyControllerTests {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncProxyControllerTests.class);
+
+    private static MockFhirServer upstream;
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    @Autowired
+    private FhirContext fhirContext;
+
+    @LocalServerPort
+    private int port;
+
+    private final HttpClient http = HttpClient.newHttpClient();
+
+    private String accessToken;
+
+    @BeforeAll
+    static void startUpstream() throws IOException {
+        upstream = new MockFhirServer();
+    }
+
+    @AfterAll
+    static void stopUpstream() {
+        upstream.close();
+    }
+
+    @BeforeEach
+    void register() {
+        upstream.pages(5).pageSize(10).latencyMillis(0).errorRate(0);
+        ClientInfo clientInfo = new ClientInfo("async-client", upstream.getBaseUrl(), "not-a-jwt", "123", "user");
+        Registration registration = restTemplate.postForObject("/register", clientInfo, Registration.class);
+        accessToken = registration.getAccessToken();
+    }
+
+    @Test
+    void readIsProxied() throws Exception {
+        HttpResponse<String> response = get("/async/proxy/Patient/async-1?_format=xml");
+        assertEquals(200, response.statusCode());
+        assertTrue(response.headers().firstValue("Content-Type").orElse("").contains("xml"));
+
+        Patient patient = fhirContext.newXmlParser().parseResource(Patient.class, response.body());
+        assertEquals("async-1", patient.getIdElement().getIdPart());
+    }
+
+    @Test
+    void searchAggregatesEveryPage() throws Exception {
+        HttpResponse<String> response = get("/async/proxy/Observation?code=1234-5");
+        assertEquals(200, response.statusCode());
+
+        Bundle bundle = fhirContext.newJsonParser().parseResource(Bundle.class, response.body());
+        assertEquals(50, bundle.getTotal());
+        assertEquals(50, bundle.getEntry().size());
+    }
+
+    @Test
+    void searchRespectsPageLimit() throws Exception {
+        HttpRequest request = request("/async/proxy/Observation?code=1234-5").header("X-Page-Limit", "2").build();
+        Bundle bundle = fhirContext.newJsonParser().parseResource(Bundle.class,
+                http.send(request, HttpResponse.BodyHandlers.ofString()).body());
+        assertEquals(20, bundle.getEntry().size());
+    }
+
+    @Test
+    void searchPastTheDeadlineEndsIncomplete() throws Exception {
+        upstream.pages(12).latencyMillis(1000);
+
+        long start = System.currentTimeMillis();
+        HttpResponse<String> response = get("/async/proxy/Observation?code=deadline");
+        long elapsed = System.currentTimeMillis() - start;
+        assertEquals(200, response.statusCode());
+        assertTrue(elapsed < 7000, "search took " + elapsed + " ms");
+
+        Bundle bundle = fhirContext.newJsonParser().parseResource(Bundle.class, response.body());
+        Bundle.BundleEntryComponent last = bundle.getEntry().get(bundle.getEntry().size() - 1);
+        assertTrue(last.getResource() instanceof OperationOutcome);
+        assertEquals(OperationOutcome.IssueType.INCOMPLETE, ((OperationOutcome) last.getResource()).getIssueFirstRep().getCode());
+        assertTrue(bundle.getEntry().size() - 1 < 120);
+    }
+
+    @Test
+    void upstreamErrorStatusIsPassedThrough() throws Exception {
+        upstream.errorRate(1);
+        HttpResponse<String> response = get("/async/proxy/Patient/async-2");
+        assertEquals(503, response.statusCode());
+
+        // the upstream server sent no OperationOutcome, so the proxy makes one up
+        OperationOutcome outcome = fhirContext.newJsonParser().parseResource(OperationOutcome.class, response.body());
+        assertTrue(outcome.hasIssue());
+    }
+
+    @Test
+    void upstreamTimeoutIsGatewayTimeout() throws Exception {
+        upstream.latencyMillis(6000);
+        HttpResponse<String> response = get("/async/proxy/Patient/async-3");
+        assertEquals(504, response.statusCode());
+
+        OperationOutcome outcome = fhirContext.newJsonParser().parseResource(OperationOutcome.class, response.body());
+        assertEquals(OperationOutcome.IssueType.TIMEOUT, outcome.getIssueFirstRep().getCode());
+    }
+
+    @Test
+    void unknownTokenIsRejected() throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/async/proxy/Patient/1"))
+                .header("Authorization", "Bearer not-registered").GET().build();
+        assertEquals(401, http.send(request, HttpResponse.BodyHandlers.discarding()).statusCode());
+    }
+
+    @Test
+    void inFlightRequestsAreNotBoundByTheWorkerPool() throws Exception {
+        upstream.latencyMillis(1000);
+        int requests = 500;
+
+        long start = System.currentTimeMillis();
+        List<CompletableFuture<HttpResponse<Void>>> responses = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            responses.add(http.sendAsync(request("/async/proxy/Patient/load-" + i).build(),
+                    HttpResponse.BodyHandlers.discarding()));
+        }
+        for (CompletableFuture<HttpResponse<Void>> response : responses) {
+            assertEquals(200, response.get().statusCode());
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        logger.info(requests + " concurrent reads at 1000 ms upstream latency with 10 Tomcat threads took " + elapsed + " ms");
+        assertTrue(elapsed < 10000, "took " + elapsed + " ms");
+    }
+
+    private HttpResponse<String> get(String path) throws Exception {
+        return http.send(request(path).build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpRequest.Builder request(String path) {
+        return HttpRequest.newBuilder(URI.create("http://localhost:" + port + path))
+                .header("Authorization", "Bearer " + accessToken)
+                .GET();
+    }
+}
@@ -0,0 +1,85 @@
+package edu.ohsu.cmp.fhirproxy;
+
+import edu.ohsu.cmp.fhirproxy.exception.UpstreamUnavailableException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * An upstream request keeps its place among upstream.fair.max-concurrency until its response body is done with, not
+ * merely until the response head arrives
+ */
+@SpringBootTest(properties = { "upstream.fair.enabled=true", "upstream.fair.max-concurrency=1",
+        "upstream.fair.max-wait=300" })
+class GuardedHttpClientTests {
+    private static MockFhirServer upstream;
+
+    @Autowired
+    private CloseableHttpClient relayHttpClient;
+
+    @BeforeAll
+    static void startUpstream() throws IOException {
+        upstream = new MockFhirServer();
+    }
+
+    @AfterAll
+    static void stopUpstream() {
+        upstream.close();
+    }
+
+    @BeforeEach
+    void resetUpstream() {
+        upstream.pages(1).pageSize(10).latencyMillis(0).errorRate(0);
+    }
+
+    @Test
+    void placeIsHeldUntilTheBodyIsRead() throws Exception {
+        CloseableHttpResponse first = relayHttpClient.execute(get("held-1"));
+        assertEquals(200, first.getStatusLine().getStatusCode());
+
+        assertThrows(UpstreamUnavailableException.class, () -> relayHttpClient.execute(get("held-2")));
+
+        EntityUtils.toString(first.getEntity());
+        try (CloseableHttpResponse second = relayHttpClient.execute(get("held-3"))) {
+            assertEquals(200, second.getStatusLine().getStatusCode());
+        }
+        first.close();
+    }
+
+    @Test
+    void placeIsReleasedWhenTheBodyOrResponseIsClosedUnread() throws Exception {
+        CloseableHttpResponse response = relayHttpClient.execute(get("unread-1"));
+        try (InputStream in = response.getEntity().getContent()) {
+            in.read();
+        }
+
+        response = relayHttpClient.execute(get("unread-2"));
+        response.close();
+
+        // closing again releases nothing more
+        response.close();
+        try (CloseableHttpResponse next = relayHttpClient.execute(get("unread-3"))) {
+            assertEquals(200, next.getStatusLine().getStatusCode());
+            assertThrows(UpstreamUnavailableException.class, () -> relayHttpClient.execute(get("unread-4")));
+        }
+    }
+
+    private HttpGet get(String id) {
+        HttpGet get = new HttpGet(upstream.getBaseUrl() + "/Patient/" + id);
+        get.setHeader("Accept", "application/fhir+json");
+        return get;
+    }
+}
@@ -0,0 +1,220 @@
+package edu.ohsu.cmp.fhirproxy;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives a running proxy the way its clients do: registers clients with POST /register, then issues reads, vreads
+ * and searches through /proxy from a fixed number of concurrent workers until the requested number of requests has
+ * been made.  Latency is measured per request, from sending it to having read the whole response body.
+ *
+ * Heap and GC figures are for the whole JVM the driver runs in, which in tests includes the proxy and the mock
+ * upstream server.
+ */
+public class LoadDriver {
+    public enum Operation {
+        READ, VREAD, SEARCH
+    }
+
+    private final String proxyUrl;
+    private final String upstreamUrl;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final HttpClient http = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    private int clients = 10;
+    private int concurrency = 16;
+    private int requests = 1000;
+    private List<Operation> mix = List.of(Operation.READ, Operation.VREAD, Operation.SEARCH);
+
+    /**
+     * @param proxyUrl the proxy's base URL, e.g. http://localhost:8080
+     * @param upstreamUrl the FHIR server the registered clients are proxied to
+     */
+    public LoadDriver(String proxyUrl, String upstreamUrl) {
+        this.proxyUrl = proxyUrl;
+        this.upstreamUrl = upstreamUrl;
+    }
+
+    public LoadDriver clients(int clients) {
+        this.clients = clients;
+        return this;
+    }
+
+    public LoadDriver concurrency(int concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    public LoadDriver requests(int requests) {
+        this.requests = requests;
+        return this;
+    }
+
+    /**
+     * @param mix the operations to cycle through; list an operation more than once to weight it
+     */
+    public LoadDriver mix(Operation... mix) {
+        this.mix = List.of(mix);
+        return this;
+    }
+
+    public Report run() throws Exception {
+        List<String> accessTokens = new ArrayList<>();
+        for (int i = 0; i < clients; i ++) {
+            accessTokens.add(register(i));
+        }
+
+        Map<Operation, List<Long>> latencies = new EnumMap<>(Operation.class);
+        Map<Operation, AtomicInteger> failures = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, Collections.synchronizedList(new ArrayList<>()));
+            failures.put(operation, new AtomicInteger());
+        }
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        long[] gcBefore = gcTotals();
+
+        AtomicInteger next = new AtomicInteger();
+        long start = System.nanoTime();
+        try (ExecutorService workers = Executors.newFixedThreadPool(concurrency)) {
+            for (int w = 0; w < concurrency; w ++) {
+                workers.submit(() -> {
+                    int n;
+                    while ((n = next.getAndIncrement()) < requests) {
+                        Operation operation = mix.get(n % mix.size());
+                        String accessToken = accessTokens.get(n % accessTokens.size());
+                        long t0 = System.nanoTime();
+                        boolean ok = send(operation, n, accessToken);
+                        latencies.get(operation).add(System.nanoTime() - t0);
+                        if ( ! ok ) failures.get(operation).incrementAndGet();
+                    }
+                    return null;
+                });
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long heapAfter = memory.getHeapMemoryUsage().getUsed();
+        long[] gcAfter = gcTotals();
+
+        Map<Operation, Stats> stats = new EnumMap<>(Operation.class);
+        List<Long> all = new ArrayList<>();
+        int allFailures = 0;
+        for (Operation operation : Operation.values()) {
+            List<Long> list = latencies.get(operation);
+            if (list.isEmpty()) continue;
+            stats.put(operation, Stats.of(list, failures.get(operation).get()));
+            all.addAll(list);
+            allFailures += failures.get(operation).get();
+        }
+
+        return new Report(concurrency, elapsed, stats, Stats.of(all, allFailures),
+                heapBefore, heapAfter, memory.getHeapMemoryUsage().getMax(),
+                gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]);
+    }
+
+    private String register(int i) throws Exception {
+        ClientInfo clientInfo = new ClientInfo("load-" + i, upstreamUrl, "not-a-jwt", String.valueOf(i), "user-" + i);
+        HttpRequest request = HttpRequest.newBuilder(URI.create(proxyUrl + "/register"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(clientInfo)))
+                .build();
+        HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("registration failed with " + response.statusCode() + ": " + response.body());
+        }
+        return objectMapper.readTree(response.body()).get("accessToken").asText();
+    }
+
+    private boolean send(Operation operation, int n, String accessToken) {
+        String path = switch (operation) {
+            case READ -> "/proxy/Patient/load-" + n;
+            case VREAD -> "/proxy/Patient/load-" + n + "/_history/2";
+            case SEARCH -> "/proxy/Observation?code=load-" + n;
+        };
+        HttpRequest request = HttpRequest.newBuilder(URI.create(proxyUrl + path))
+                .header("Authorization", "Bearer " + accessToken)
+                .timeout(Duration.ofSeconds(60))
+                .GET().build();
+        try {
+            HttpResponse<byte[]> response = http.send(request, HttpResponse.BodyHandlers.ofByteArray());
+            return response.statusCode() == 200;
+
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the total collection count and time (ms) of every collector
+     */
+    private static long[] gcTotals() {
+        long count = 0;
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[] { count, time };
+    }
+
+    public record Stats(int count, int failures, double p50, double p95, double p99, double max) {
+        static Stats of(List<Long> nanos, int failures) {
+            long[] sorted = nanos.stream().mapToLong(Long::longValue).sorted().toArray();
+            return new Stats(sorted.length, failures, millis(sorted, 0.50), millis(sorted, 0.95), millis(sorted, 0.99),
+                    sorted.length > 0 ? sorted[sorted.length - 1] / 1e6 : 0);
+        }
+
+        // nearest-rank percentile
+        private static double millis(long[] sorted, double p) {
+            if (sorted.length == 0) return 0;
+            int rank = (int) Math.ceil(p * sorted.length);
+            return sorted[Math.max(0, rank - 1)] / 1e6;
+        }
+    }
+
+    public record Report(int concurrency, long elapsedNanos, Map<Operation, Stats> byOperation, Stats overall,
+                         long heapUsedBefore, long heapUsedAfter, long heapMax, long gcCount, long gcMillis) {
+        public double throughput() {
+            return overall.count() / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%d requests at concurrency %d in %.1f s: %.1f req/s%n",
+                    overall.count(), concurrency, elapsedNanos / 1e9, throughput()));
+            sb.append(String.format("%-8s %8s %8s %10s %10s %10s %10s%n",
+                    "", "count", "failed", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+            for (Map.Entry<Operation, Stats> entry : byOperation.entrySet()) {
+                sb.append(row(entry.getKey().name().toLowerCase(), entry.getValue()));
+            }
+            sb.append(row("all", overall));
+            sb.append(String.format("heap used %d MB -> %d MB (max %d MB); %d GCs, %d ms%n",
+                    heapUsedBefore >> 20, heapUsedAfter >> 20, heapMax >> 20, gcCount, gcMillis));
+            return sb.toString();
+        }
+
+        private static String row(String label, Stats s) {
+            return String.format("%-8s %8d %8d %10.1f %10.1f %10.1f %10.1f%n",
+                    label, s.count(), s.failures(), s.p50(), s.p95(), s.p99(), s.max());
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package edu.ohsu.cmp.fhirproxy;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A minimal FHIR R4 server for tests.  Searches return a configurable number of pages of Observations, using HAPI's
+ * offset-style next links (_getpages / _getpagesoffset / _count) and reporting total.  Reads and vreads return a
+ * Patient with the requested id and version; a read conditional on version 1 gets 304 Not Modified.  Responses are
+ * gzipped if the client accepts gzip.  Every request can be delayed and can fail (with 503) at a configurable rate,
+ * which makes this the upstream server for ProxyLoadIT too; every nth request can be delayed longer, to simulate a
+ * latency tail.
+ */
+public class MockFhirServer implements AutoCloseable {
+    private static final FhirContext CTX = FhirContext.forR4Cached();
+
+    public static final Date LAST_UPDATED = new Date(1700000000000L);
+
+    static {
+        // without this, Nagle's algorithm adds ~40 ms to every response, which swamps the latencies being simulated
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicInteger notModifiedCount = new AtomicInteger();
+    private final AtomicInteger gzipCount = new AtomicInteger();
+    private final AtomicInteger uncompressedCount = new AtomicInteger();
+
+    private volatile int pages = 1;
+    private volatile int pageSize = 10;
+    private volatile long latencyMillis = 0;
+    private volatile double errorRate = 0;
+    private volatile int slowEvery = 0;
+    private volatile long slowLatencyMillis = 0;
+
+    public MockFhirServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public String getBaseUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/fhir";
+    }
+
+    public MockFhirServer pages(int pages) {
+        this.pages = pages;
+        return this;
+    }
+
+    public MockFhirServer pageSize(int pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    public MockFhirServer latencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        return this;
+    }
+
+    public MockFhirServer errorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * Delay every nth request by the specified latency instead of the usual one
+     * @param n 0 for none
+     * @param latencyMillis
+     * @return
+     */
+    public MockFhirServer slowEvery(int n, long latencyMillis) {
+        this.slowEvery = n;
+        this.slowLatencyMillis = latencyMillis;
+        return this;
+    }
+
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    public int getGzipCount() {
+        return gzipCount.get();
+    }
+
+    public int getUncompressedCount() {
+        return uncompressedCount.get();
+    }
+
+    public int getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath().substring("/fhir".length());
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+
+            if (path.equals("/metadata")) {
+                CapabilityStatement cs = new CapabilityStatement();
+                cs.setFhirVersion(Enumerations.FHIRVersion._4_0_1);
+                respond(exchange, 200, cs);
+                return;
+            }
+
+            int count = requestCount.incrementAndGet();
+
+            long latency = slowEvery > 0 && count % slowEvery == 0 ? slowLatencyMillis : latencyMillis;
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                OperationOutcome outcome = new OperationOutcome();
+                outcome.addIssue().setCode(OperationOutcome.IssueType.TRANSIENT).setDiagnostics("simulated failure");
+                respond(exchange, 503, outcome);
+                return;
+            }
+
+            String[] parts = path.isEmpty() ? new String[0] : path.substring(1).split("/");
+            if (params.containsKey("_getpages")) {
+                respond(exchange, 200, buildPage(params.get("_mocktype"), Integer.parseInt(params.get("_getpagesoffset"))));
+
+            } else if (parts.length == 1) {
+                respond(exchange, 200, buildPage(parts[0], 0));
+
+            } else if (parts.length == 2 && isVersionOneMatch(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModifiedCount.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+
+            } else if (parts.length == 2 || (parts.length == 4 && parts[2].equals("_history"))) {
+                Patient p = new Patient();
+                p.setId(parts[1]);
+                p.getMeta().setVersionId(parts.length == 4 ? parts[3] : "1");
+                p.getMeta().setLastUpdated(LAST_UPDATED);
+                p.addName().setFamily("Test").addGiven(parts[1]);
+                respond(exchange, 200, p);
+
+            } else {
+                respond(exchange, 404, new OperationOutcome());
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.sendResponseHeaders(500, -1);
+
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private Bundle buildPage(String resourceType, int offset) {
+        // every search returns Observations; ids are qualified by the type searched for, so searches are distinct
+        String idPrefix = resourceType.equals("Observation") ? "obs-" : resourceType.toLowerCase() + "-obs-";
+
+        int total = pages * pageSize;
+
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        bundle.setTotal(total);
+
+        for (int i = offset; i < Math.min(offset + pageSize, total); i++) {
+            Observation o = new Observation();
+            o.setId(idPrefix + i);
+            o.setStatus(Observation.ObservationStatus.FINAL);
+            o.setValue(new Quantity(i));
+            bundle.addEntry()
+                    .setFullUrl(getBaseUrl() + "/Observation/" + idPrefix + i)
+                    .setResource(o)
+                    .getSearch().setMode(Bundle.SearchEntryMode.MATCH);
+        }
+
+        if (offset + pageSize < total) {
+            bundle.addLink()
+                    .setRelation(Bundle.LINK_NEXT)
+                    .setUrl(getBaseUrl() + "?_getpages=mock&_getpagesoffset=" + (offset + pageSize) +
+                            "&_count=" + pageSize + "&_bundletype=searchset&_mocktype=" + resourceType);
+        }
+
+        return bundle;
+    }
+
+    private static boolean isVersionOneMatch(String ifNoneMatch) {
+        return ifNoneMatch != null && (ifNoneMatch.equals("\"1\"") || ifNoneMatch.equals("W/\"1\""));
+    }
+
+    private void respond(HttpExchange exchange, int status, IBaseResource resource) throws IOException {
+        byte[] body = CTX.newJsonParser().encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/fhir+json;charset=utf-8");
+        if (resource.getMeta().getVersionId() != null) {
+            exchange.getResponseHeaders().add("ETag", "W/\"" + resource.getMeta().getVersionId() + "\"");
+        }
+
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(body);
+            }
+            body = compressed.toByteArray();
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            gzipCount.incrementAndGet();
+
+        } else {
+            uncompressedCount.incrementAndGet();
+        }
+
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> map = new HashMap<>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                String[] kv = pair.split("=", 2);
+                map.put(URLDecoder.decode(kv[0], StandardCharsets.UTF_8),
+                        kv.length > 1 ? URLDecoder.decode(kv[1], StandardCharsets.UTF_8) : "");
+            }
+        }
+        return map;
+    }
+}
@@ -0,0 +1,411 @@
+package edu.ohsu.cmp.fhirproxy;
+
+import ca.uhn.fhir.context.FhirContext;
+import edu.ohsu.cmp.fhirproxy.model.CachedResource;
+import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import edu.ohsu.cmp.fhirproxy.model.FhirFormat;
+import edu.ohsu.cmp.fhirproxy.model.Registration;
+import edu.ohsu.cmp.fhirproxy.service.ResourceCacheService;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.actuate.observability.AutoConfigureObservability;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@AutoConfigureObservability
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = { "search.streaming.enabled=true", "cache.resource.enabled=true", "cache.resource.read-ttl=1000",
+                "everything.deadline=1000", "search.deadline=5000" })
+class ProxyControllerTests {
+    private static MockFhirServer upstream;
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private FhirContext fhirContext;
+
+    @Autowired
+    private ResourceCacheService resourceCacheService;
+
+    private String accessToken;
+
+    @BeforeAll
+    static void startUpstream() throws IOException {
+        upstream = new MockFhirServer();
+    }
+
+    @AfterAll
+    static void stopUpstream() {
+        upstream.close();
+    }
+
+    @BeforeEach
+    void register() {
+        upstream.pages(5).pageSize(10).latencyMillis(0).errorRate(0);
+        ClientInfo clientInfo = new ClientInfo("test-client", upstream.getBaseUrl(), "not-a-jwt", "123", "user");
+        Registration registration = restTemplate.postForObject("/register", clientInfo, Registration.class);
+        accessToken = registration.getAccessToken();
+    }
+
+    @Test
+    void streamedSearchIncludesEveryPage() {
+        Bundle bundle = search("/proxy/Observation?code=1234-5", null);
+        assertEquals(50, bundle.getTotal());
+        assertEquals(50, bundle.getEntry().size());
+        assertEquals("Observation/obs-49", bundle.getEntry().get(49).getResource().getIdElement().toUnqualifiedVersionless().getValue());
+    }
+
+    @Test
+    void streamedSearchAsXmlIncludesEveryPage() {
+        Bundle bundle = search("/proxy/Observation?code=1234-5&_format=xml&_pretty=true", null);
+        assertEquals(50, bundle.getEntry().size());
+    }
+
+    @Test
+    void streamedSearchRespectsPageLimit() {
+        Bundle bundle = search("/proxy/Observation?code=1234-5", 2);
+        assertEquals(50, bundle.getTotal());
+        assertEquals(20, bundle.getEntry().size());
+    }
+
+    @Test
+    void streamedSearchPastTheDeadlineEndsIncomplete() {
+        upstream.pages(12).latencyMillis(1500);
+
+        long start = System.currentTimeMillis();
+        Bundle bundle = search("/proxy/Observation?code=deadline", null);
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue(elapsed < 7000, "search took " + elapsed + " ms");
+
+        Bundle.BundleEntryComponent last = bundle.getEntry().get(bundle.getEntry().size() - 1);
+        assertTrue(last.getResource() instanceof OperationOutcome);
+        assertEquals(OperationOutcome.IssueType.INCOMPLETE, ((OperationOutcome) last.getResource()).getIssueFirstRep().getCode());
+        assertTrue(bundle.getEntry().size() - 1 < 120);
+    }
+
+    @Test
+    void upstreamResponsesAreRequestedCompressed() {
+        int gzipBefore = upstream.getGzipCount();
+        int uncompressedBefore = upstream.getUncompressedCount();
+        search("/proxy/Observation?code=gzip", null);
+        assertTrue(upstream.getGzipCount() - gzipBefore >= 5);
+        assertEquals(0, upstream.getUncompressedCount() - uncompressedBefore);
+    }
+
+    @Test
+    void repeatedReadsAreServedFromCache() {
+        int before = upstream.getRequestCount();
+
+        assertEquals(HttpStatus.OK, get("/proxy/Patient/cached-1", accessToken).getStatusCode());
+        assertEquals(HttpStatus.OK, get("/proxy/Patient/cached-1", accessToken).getStatusCode());
+        ResponseEntity<String> xml = get("/proxy/Patient/cached-1?_format=xml", accessToken);
+        assertEquals(HttpStatus.OK, xml.getStatusCode());
+        assertTrue(xml.getBody().startsWith("<Patient"));
+
+        assertEquals(1, upstream.getRequestCount() - before);
+    }
+
+    @Test
+    void cachedReadsAreScopedToRegistration() {
+        ClientInfo other = new ClientInfo("test-client", upstream.getBaseUrl(), "another-token", "456", "user");
+        String otherAccessToken = restTemplate.postForObject("/register", other, Registration.class).getAccessToken();
+        int before = upstream.getRequestCount();
+
+        get("/proxy/Patient/cached-2", accessToken);
+        get("/proxy/Patient/cached-2", otherAccessToken);
+
+        assertEquals(2, upstream.getRequestCount() - before);
+    }
+
+    @Test
+    void evictingARegistrationOnlyDropsItsOwnEntries() {
+        ClientInfo evicted = new ClientInfo("test-client", upstream.getBaseUrl(), "evicted-token", "123", "user");
+        String evictedAccessToken = restTemplate.postForObject("/register", evicted, Registration.class).getAccessToken();
+
+        // versioned reads, which are never revalidated, so every upstream request counted is a miss
+        get("/proxy/Patient/cached-4/_history/1", accessToken);
+        get("/proxy/Patient/cached-4/_history/1", evictedAccessToken);
+
+        resourceCacheService.evict(evicted);
+        int before = upstream.getRequestCount();
+
+        get("/proxy/Patient/cached-4/_history/1", accessToken);
+        assertEquals(0, upstream.getRequestCount() - before);
+        get("/proxy/Patient/cached-4/_history/1", evictedAccessToken);
+        assertEquals(1, upstream.getRequestCount() - before);
+    }
+
+    @Test
+    void concurrentMissesShareOneUpstreamRead() {
+        upstream.latencyMillis(300);
+        int before = upstream.getRequestCount();
+
+        readConcurrently("/proxy/Patient/cached-3", 4);
+
+        assertEquals(1, upstream.getRequestCount() - before);
+    }
+
+    @Test
+    void concurrentRevalidationsShareOneUpstreamRead() throws InterruptedException {
+        get("/proxy/Patient/revalidate-2", accessToken);
+        upstream.latencyMillis(300);
+        Thread.sleep(1100);
+        int before = upstream.getRequestCount();
+
+        readConcurrently("/proxy/Patient/revalidate-2", 4);
+
+        assertEquals(1, upstream.getRequestCount() - before);
+    }
+
+    private void readConcurrently(String path, int readers) {
+        HttpClient http = HttpClient.newHttpClient();
+        List<CompletableFuture<HttpResponse<String>>> responses = IntStream.range(0, readers)
+                .mapToObj(i -> http.sendAsync(HttpRequest.newBuilder(URI.create("http://localhost:" + port + path))
+                        .header(HttpHeaders.AUTHORIZATION, "Bearer " + accessToken)
+                        .GET().build(), HttpResponse.BodyHandlers.ofString()))
+                .toList();
+        for (CompletableFuture<HttpResponse<String>> response : responses) {
+            assertEquals(200, response.join().statusCode());
+        }
+    }
+
+    @Test
+    void matchingValidatorsGetNotModified() {
+        ResponseEntity<String> response = get("/proxy/Patient/conditional-1", accessToken);
+        assertEquals("W/\"1\"", response.getHeaders().getETag());
+        assertEquals(MockFhirServer.LAST_UPDATED.getTime(), response.getHeaders().getLastModified());
+
+        HttpHeaders ifNoneMatch = new HttpHeaders();
+        ifNoneMatch.setIfNoneMatch("W/\"1\"");
+        response = get("/proxy/Patient/conditional-1", accessToken, ifNoneMatch);
+        assertEquals(HttpStatus.NOT_MODIFIED, response.getStatusCode());
+        assertNull(response.getBody());
+
+        HttpHeaders ifModifiedSince = new HttpHeaders();
+        ifModifiedSince.setIfModifiedSince(MockFhirServer.LAST_UPDATED.getTime());
+        assertEquals(HttpStatus.NOT_MODIFIED, get("/proxy/Patient/conditional-1", accessToken, ifModifiedSince).getStatusCode());
+
+        HttpHeaders stale = new HttpHeaders();
+        stale.setIfNoneMatch("W/\"0\"");
+        assertEquals(HttpStatus.OK, get("/proxy/Patient/conditional-1", accessToken, stale).getStatusCode());
+    }
+
+    @Test
+    void notModifiedCachedReadsAreNotEncoded() {
+        ResponseEntity<String> response = get("/proxy/Patient/conditional-2/_history/1", accessToken);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+
+        HttpHeaders ifNoneMatch = new HttpHeaders();
+        ifNoneMatch.setIfNoneMatch(response.getHeaders().getETag());
+        response = get("/proxy/Patient/conditional-2/_history/1?_format=xml", accessToken, ifNoneMatch);
+        assertEquals(HttpStatus.NOT_MODIFIED, response.getStatusCode());
+
+        ClientInfo clientInfo = new ClientInfo("test-client", upstream.getBaseUrl(), "not-a-jwt", "123", "user");
+        CachedResource cached = resourceCacheService.vread(clientInfo, "Patient", "conditional-2", "1", Map.of());
+        assertNull(cached.getEncoded(FhirFormat.XML, false));
+        assertNull(cached.getEncoded(FhirFormat.XML, true));
+    }
+
+    @Test
+    void staleCachedReadsAreRevalidatedUpstream() throws InterruptedException {
+        get("/proxy/Patient/revalidate-1", accessToken);
+        int notModifiedBefore = upstream.getNotModifiedCount();
+
+        Thread.sleep(1100);
+        ResponseEntity<String> response = get("/proxy/Patient/revalidate-1", accessToken);
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertTrue(response.getBody().contains("revalidate-1"));
+        assertEquals(1, upstream.getNotModifiedCount() - notModifiedBefore);
+    }
+
+    @Test
+    void batchEntriesSucceedOrFailIndependently() {
+        Bundle batch = new Bundle();
+        batch.setType(Bundle.BundleType.BATCH);
+        batch.addEntry().getRequest().setMethod(Bundle.HTTPVerb.GET).setUrl("Patient/batch-1");
+        batch.addEntry().getRequest().setMethod(Bundle.HTTPVerb.GET).setUrl("Patient/batch-2/_history/1");
+        batch.addEntry().getRequest().setMethod(Bundle.HTTPVerb.GET).setUrl("Observation?code=1234-5");
+        batch.addEntry().getRequest().setMethod(Bundle.HTTPVerb.DELETE).setUrl("Patient/batch-3");
+        batch.addEntry().getRequest().setMethod(Bundle.HTTPVerb.GET).setUrl("Patient/batch-4/something/else");
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setBearerAuth(accessToken);
+        headers.setContentType(MediaType.valueOf("application/fhir+json"));
+        headers.add("X-Page-Limit", "2");
+        ResponseEntity<String> response = restTemplate.exchange("/proxy", HttpMethod.POST,
+                new HttpEntity<>(fhirContext.newJsonParser().encodeResourceToString(batch), headers), String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+
+        Bundle batchResponse = fhirContext.newJsonParser().parseResource(Bundle.class, response.getBody());
+        assertEquals(Bundle.BundleType.BATCHRESPONSE, batchResponse.getType());
+        assertEquals(5, batchResponse.getEntry().size());
+
+        assertEquals("200 OK", batchResponse.getEntry().get(0).getResponse().getStatus());
+        assertEquals("batch-1", batchResponse.getEntry().get(0).getResource().getIdElement().getIdPart());
+        assertEquals("200 OK", batchResponse.getEntry().get(1).getResponse().getStatus());
+        assertEquals("batch-2", batchResponse.getEntry().get(1).getResource().getIdElement().getIdPart());
+        assertEquals(20, ((Bundle) batchResponse.getEntry().get(2).getResource()).getEntry().size());
+        assertTrue(batchResponse.getEntry().get(3).getResponse().getStatus().startsWith("405"));
+        assertTrue(batchResponse.getEntry().get(3).getResponse().getOutcome() instanceof OperationOutcome);
+        assertTrue(batchResponse.getEntry().get(4).getResponse().getStatus().startsWith("400"));
+    }
+
+    @Test
+    void nonBatchBundlesAreRejected() {
+        Bundle transaction = new Bundle();
+        transaction.setType(Bundle.BundleType.TRANSACTION);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setBearerAuth(accessToken);
+        headers.setContentType(MediaType.valueOf("application/fhir+xml"));
+        ResponseEntity<String> response = restTemplate.exchange("/proxy", HttpMethod.POST,
+                new HttpEntity<>(fhirContext.newXmlParser().encodeResourceToString(transaction), headers), String.class);
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+    }
+
+    @Test
+    void everythingMergesEverySearchForTheRegisteredPatient() {
+        Bundle bundle = search("/proxy/Patient/123/$everything", 2);
+
+        // five configured searches, two pages of ten each
+        assertEquals(100, bundle.getEntry().size());
+        assertEquals(100, bundle.getEntry().stream().map(Bundle.BundleEntryComponent::getFullUrl).distinct().count());
+        assertTrue(bundle.getEntry().stream().anyMatch(e -> e.getFullUrl().endsWith("/encounter-obs-19")));
+    }
+
+    @Test
+    void everythingIsOnlyAvailableForTheRegisteredPatient() {
+        ResponseEntity<String> response = get("/proxy/Patient/456/$everything", accessToken);
+        assertEquals(HttpStatus.FORBIDDEN, response.getStatusCode());
+    }
+
+    @Test
+    void everythingRequiresARegisteredPatient() {
+        ClientInfo clientInfo = new ClientInfo("test-client", upstream.getBaseUrl(), "not-a-jwt", null, "user");
+        String token = restTemplate.postForObject("/register", clientInfo, Registration.class).getAccessToken();
+
+        ResponseEntity<String> response = get("/proxy/Patient/$everything", token);
+        assertEquals(HttpStatus.FORBIDDEN, response.getStatusCode());
+        assertTrue(response.getBody().contains("OperationOutcome"));
+    }
+
+    @Test
+    void everythingReportsSearchesStillRunningAtTheDeadline() {
+        upstream.latencyMillis(600);
+
+        long start = System.currentTimeMillis();
+        Bundle bundle = search("/proxy/Patient/$everything", null);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue(elapsed < 2000, "took " + elapsed + " ms");
+        Bundle.BundleEntryComponent last = bundle.getEntry().get(bundle.getEntry().size() - 1);
+        assertEquals(Bundle.SearchEntryMode.OUTCOME, last.getSearch().getMode());
+        assertEquals(OperationOutcome.IssueType.INCOMPLETE, ((OperationOutcome) last.getResource()).getIssueFirstRep().getCode());
+    }
+
+    @Test
+    void metricsArePublishedForPrometheus() {
+        search("/proxy/Observation?code=metrics", 2);
+        get("/proxy/Patient/metrics-1?_format=xml", accessToken);
+
+        String metrics = restTemplate.getForObject("/actuator/prometheus", String.class);
+        String host = upstream.getBaseUrl().replaceFirst("^http://", "").replaceFirst("/.*$", "");
+
+        assertTrue(metrics.contains("fhirproxy_upstream_requests_seconds_bucket{host=\"" + host + "\""), metrics);
+        assertTrue(metrics.contains("fhirproxy_search_pages_count"));
+        assertTrue(metrics.contains("fhirproxy_upstream_limit{host=\"" + host + "\"}"));
+        assertTrue(metrics.contains("fhirproxy_upstream_breaker_state{host=\"" + host + "\"} 0.0"));
+        assertTrue(metrics.contains("fhirproxy_response_bytes_sum{format=\"xml\"}"));
+        assertTrue(metrics.contains("fhirproxy_registrations_active "), metrics);
+        assertTrue(metrics.contains("fhirproxy_registrations_sweeps_seconds_count"));
+        assertTrue(metrics.contains("http_server_requests_seconds_bucket"));
+    }
+
+    @Test
+    void failingUpstreamIsCutOffWithRetryAfter() throws Exception {
+        // TestRestTemplate's client would retry each 503 after its Retry-After
+        HttpClient http = HttpClient.newHttpClient();
+
+        try (MockFhirServer failing = new MockFhirServer().errorRate(1)) {
+            ClientInfo clientInfo = new ClientInfo("failing-client", failing.getBaseUrl(), "not-a-jwt", "123", "user");
+            String token = restTemplate.postForObject("/register", clientInfo, Registration.class).getAccessToken();
+
+            for (int i = 0; i < 20; i++) {
+                assertEquals(503, send(http, "/proxy/Patient/failing-" + i, token).statusCode());
+            }
+            int sent = failing.getRequestCount();
+
+            HttpResponse<String> response = send(http, "/proxy/Patient/failing-x", token);
+            assertEquals(503, response.statusCode());
+            assertTrue(response.headers().firstValue(HttpHeaders.RETRY_AFTER).isPresent());
+            assertTrue(response.body().contains("OperationOutcome"));
+            assertEquals(sent, failing.getRequestCount());
+
+            // the breaker is per upstream server
+            assertEquals(200, send(http, "/proxy/Patient/healthy", accessToken).statusCode());
+        }
+    }
+
+    private HttpResponse<String> send(HttpClient http, String path, String token) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + path))
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + token)
+                .GET().build();
+        return http.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private ResponseEntity<String> get(String url, String accessToken) {
+        return get(url, accessToken, new HttpHeaders());
+    }
+
+    private ResponseEntity<String> get(String url, String accessToken, HttpHeaders headers) {
+        headers.setBearerAuth(accessToken);
+        return restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(headers), String.class);
+    }
+
+    private Bundle search(String url, Integer pageLimit) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setBearerAuth(accessToken);
+        if (pageLimit != null) {
+            headers.add("X-Page-Limit", String.valueOf(pageLimit));
+        }
+
+        ResponseEntity<String> response = restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(headers), String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+
+        return url.contains("_format=xml") ?
+                fhirContext.newXmlParser().parseResource(Bundle.class, response.getBody()) :
+                fhirContext.newJsonParser().parseResource(Bundle.class, response.getBody());
+    }
+}
@@ -0,0 +1,78 @@
+package edu.ohsu.cmp.fhirproxy;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Measures proxy throughput and latency against a local mock upstream server.  Run with the load-test profile:
+ *
+ *   mvn -Pload-test verify
+ *
+ * The load and the upstream server's behavior are set with system properties (defaults in parentheses):
+ * load.clients (10), load.concurrency (32), load.requests (3000), load.upstream.pages (3),
+ * load.upstream.page-size (20), load.upstream.latency (20 ms per request) and load.upstream.error-rate (0).
+ * The report is logged and written to target/load-test/report.txt.
+ */
+class ProxyLoadIT {
+    private static final Logger logger = LoggerFactory.getLogger(ProxyLoadIT.class);
+
+    private static final Path REPORT = Paths.get("target", "load-test", "report.txt");
+
+    private static MockFhirServer upstream;
+    private static ConfigurableApplicationContext proxy;
+
+    @BeforeAll
+    static void start() throws IOException {
+        upstream = new MockFhirServer()
+                .pages(Integer.getInteger("load.upstream.pages", 3))
+                .pageSize(Integer.getInteger("load.upstream.page-size", 20))
+                .latencyMillis(Long.getLong("load.upstream.latency", 20))
+                .errorRate(Double.parseDouble(System.getProperty("load.upstream.error-rate", "0")));
+
+        proxy = new SpringApplicationBuilder(FhirProxyApplication.class).run(
+                "--server.port=0",
+                "--logging.level.edu.ohsu.cmp.fhirproxy=WARN");
+    }
+
+    @AfterAll
+    static void stop() {
+        if (proxy != null) proxy.close();
+        if (upstream != null) upstream.close();
+    }
+
+    @Test
+    void proxyUnderLoad() throws Exception {
+        int port = ((WebServerApplicationContext) proxy).getWebServer().getPort();
+        double errorRate = Double.parseDouble(System.getProperty("load.upstream.error-rate", "0"));
+
+        LoadDriver driver = new LoadDriver("http://localhost:" + port, upstream.getBaseUrl())
+                .clients(Integer.getInteger("load.clients", 10))
+                .concurrency(Integer.getInteger("load.concurrency", 32));
+
+        // warm up the JIT, the connection pools and the caches before measuring
+        driver.requests(300).run();
+        LoadDriver.Report report = driver.requests(Integer.getInteger("load.requests", 3000)).run();
+
+        logger.info("load test:\n" + report);
+        Files.createDirectories(REPORT.getParent());
+        Files.writeString(REPORT, report.toString());
+
+        assertTrue(report.overall().count() > 0);
+        if (errorRate == 0) {
+            assertEquals(0, report.overall().failures(), report.toString());
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package edu.ohsu.cmp.fhirproxy;
+
+import ca.uhn.fhir.context.FhirContext;
+import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import edu.ohsu.cmp.fhirproxy.model.Registration;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = { "ratelimit.enabled=true", "ratelimit.token.rate=0.1", "ratelimit.token.burst=3",
+                "ratelimit.client.limits=shared-client:0.1:4", "upstream.fair.enabled=true",
+                "upstream.fair.max-concurrency=2" })
+class RateLimitTests {
+    private static MockFhirServer upstream;
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    @Autowired
+    private FhirContext fhirContext;
+
+    @LocalServerPort
+    private int port;
+
+    // TestRestTemplate's client retries 429s, so the proxy's responses are checked with one that doesn't
+    private final HttpClient http = HttpClient.newHttpClient();
+
+    @BeforeAll
+    static void startUpstream() throws IOException {
+        upstream = new MockFhirServer();
+    }
+
+    @AfterAll
+    static void stopUpstream() {
+        upstream.close();
+    }
+
+    @Test
+    void accessTokenOverItsLimitGets429() throws Exception {
+        String accessToken = register("token-client", "token-1");
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(200, get("/proxy/Patient/limited-" + i, accessToken).statusCode());
+        }
+
+        HttpResponse<String> limited = get("/proxy/Patient/limited-3", accessToken);
+        assertEquals(429, limited.statusCode());
+        assertTrue(Integer.parseInt(limited.headers().firstValue("Retry-After").orElse("0")) > 0);
+
+        OperationOutcome outcome = fhirContext.newJsonParser().parseResource(OperationOutcome.class, limited.body());
+        assertEquals(OperationOutcome.IssueType.THROTTLED, outcome.getIssueFirstRep().getCode());
+
+        // other registrations are unaffected
+        assertEquals(200, get("/proxy/Patient/limited-4", register("token-client", "token-2")).statusCode());
+    }
+
+    @Test
+    void clientLimitIsSharedByItsRegistrations() throws Exception {
+        String first = register("shared-client", "shared-1");
+        String second = register("shared-client", "shared-2");
+
+        assertEquals(200, get("/proxy/Patient/shared-0", first).statusCode());
+        assertEquals(200, get("/proxy/Patient/shared-1", first).statusCode());
+        assertEquals(200, get("/proxy/Patient/shared-2", second).statusCode());
+        assertEquals(200, get("/proxy/Patient/shared-3", second).statusCode());
+
+        assertEquals(429, get("/proxy/Patient/shared-4", second).statusCode());
+    }
+
+    @Test
+    void unregisteredAccessTokensAreLimitedToo() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            assertEquals(401, get("/proxy/Patient/unregistered-" + i, "not-registered").statusCode());
+        }
+        assertEquals(429, get("/proxy/Patient/unregistered-3", "not-registered").statusCode());
+    }
+
+    private String register(String clientId, String bearerToken) {
+        ClientInfo clientInfo = new ClientInfo(clientId, upstream.getBaseUrl(), bearerToken, "123", "user");
+        return restTemplate.postForObject("/register", clientInfo, Registration.class).getAccessToken();
+    }
+
+    private HttpResponse<String> get(String path, String accessToken) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + path))
+                .header("Authorization", "Bearer " + accessToken)
+                .GET().build();
+        return http.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+}
@@ -0,0 +1,173 @@
+package edu.ohsu.cmp.fhirproxy;
+
+import ca.uhn.fhir.context.FhirContext;
+import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import edu.ohsu.cmp.fhirproxy.model.Registration;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = { "proxy.relay.enabled=true", "cache.resource.enabled=false", "socket.timeout=3000" })
+class RelayProxyTests {
+    private static MockFhirServer upstream;
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    @Autowired
+    private FhirContext fhirContext;
+
+    @LocalServerPort
+    private int port;
+
+    // unlike TestRestTemplate, doesn't decompress responses, so what the proxy sent can be checked as sent
+    private final HttpClient http = HttpClient.newHttpClient();
+
+    private String accessToken;
+
+    @BeforeAll
+    static void startUpstream() throws IOException {
+        upstream = new MockFhirServer();
+    }
+
+    @AfterAll
+    static void stopUpstream() {
+        upstream.close();
+    }
+
+    @BeforeEach
+    void register() {
+        upstream.pages(5).pageSize(10).latencyMillis(0).errorRate(0);
+        ClientInfo clientInfo = new ClientInfo("relay-client", upstream.getBaseUrl(), "not-a-jwt", "123", "user");
+        Registration registration = restTemplate.postForObject("/register", clientInfo, Registration.class);
+        accessToken = registration.getAccessToken();
+    }
+
+    @Test
+    void gzippedReadIsRelayedCompressed() throws Exception {
+        HttpResponse<byte[]> response = get("/proxy/Patient/relay-1", "gzip");
+        assertEquals(200, response.statusCode());
+        assertEquals("gzip", response.headers().firstValue("Content-Encoding").orElse(null));
+        assertEquals("W/\"1\"", response.headers().firstValue("ETag").orElse(null));
+        assertTrue(response.headers().allValues("Vary").stream().anyMatch(v -> v.contains("Accept-Encoding")));
+
+        Patient patient = fhirContext.newJsonParser().parseResource(Patient.class, gunzip(response.body()));
+        assertEquals("relay-1", patient.getIdElement().getIdPart());
+    }
+
+    @Test
+    void readIsRelayedUncompressedToClientsWithoutGzip() throws Exception {
+        HttpResponse<byte[]> response = get("/proxy/Patient/relay-2/_history/3", null);
+        assertEquals(200, response.statusCode());
+        assertTrue(response.headers().firstValue("Content-Encoding").isEmpty());
+
+        Patient patient = fhirContext.newJsonParser().parseResource(Patient.class, new String(response.body(), StandardCharsets.UTF_8));
+        assertEquals("3", patient.getMeta().getVersionId());
+    }
+
+    @Test
+    void conditionalReadIsRelayed() throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/proxy/Patient/relay-3"))
+                .header("Authorization", "Bearer " + accessToken)
+                .header("If-None-Match", "W/\"1\"")
+                .GET().build();
+        assertEquals(304, http.send(request, HttpResponse.BodyHandlers.discarding()).statusCode());
+    }
+
+    @Test
+    void transcodingAndPrettyPrintingFallBackToReencoding() throws Exception {
+        // the upstream server only speaks JSON, so XML must be transcoded; the re-encoded response is compressed by
+        // the proxy itself
+        HttpResponse<byte[]> xml = get("/proxy/Patient/relay-4?_format=xml", "gzip");
+        assertEquals(200, xml.statusCode());
+        assertEquals("relay-4", fhirContext.newXmlParser().parseResource(Patient.class, body(xml)).getIdElement().getIdPart());
+
+        HttpResponse<byte[]> pretty = get("/proxy/Patient/relay-4?_pretty=true", "gzip");
+        assertEquals(200, pretty.statusCode());
+        assertTrue(body(pretty).contains("\n"));
+    }
+
+    @Test
+    void reencodedResponsesAreCompressedForClientsThatAcceptGzip() throws Exception {
+        HttpResponse<byte[]> response = get("/proxy/Observation?code=1234-5", "gzip");
+        assertEquals("gzip", response.headers().firstValue("Content-Encoding").orElse(null));
+        assertEquals(50, fhirContext.newJsonParser().parseResource(Bundle.class, gunzip(response.body())).getEntry().size());
+
+        HttpResponse<byte[]> uncompressed = get("/proxy/Observation?code=1234-5", null);
+        assertTrue(uncompressed.headers().firstValue("Content-Encoding").isEmpty());
+    }
+
+    @Test
+    void onlySinglePageSearchesAreRelayed() throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/proxy/Observation?code=1234-5"))
+                .header("Authorization", "Bearer " + accessToken)
+                .header("Accept-Encoding", "gzip")
+                .header("X-Page-Limit", "1")
+                .GET().build();
+        HttpResponse<byte[]> onePage = http.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals("gzip", onePage.headers().firstValue("Content-Encoding").orElse(null));
+        Bundle page = fhirContext.newJsonParser().parseResource(Bundle.class, gunzip(onePage.body()));
+        assertEquals(10, page.getEntry().size());
+        assertNotNull(page.getLink(Bundle.LINK_NEXT));
+
+        HttpResponse<byte[]> everyPage = get("/proxy/Observation?code=1234-5", "gzip");
+        Bundle bundle = fhirContext.newJsonParser().parseResource(Bundle.class, body(everyPage));
+        assertEquals(50, bundle.getEntry().size());
+    }
+
+    @Test
+    void relayTimeoutIsNotRetriedByReencoding() throws Exception {
+        try (MockFhirServer slow = new MockFhirServer().latencyMillis(5000)) {
+            ClientInfo clientInfo = new ClientInfo("relay-client", slow.getBaseUrl(), "not-a-jwt", "123", "user");
+            String token = restTemplate.postForObject("/register", clientInfo, Registration.class).getAccessToken();
+
+            HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/proxy/Patient/relay-5"))
+                    .header("Authorization", "Bearer " + token)
+                    .GET().build();
+            HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+            assertEquals(504, response.statusCode());
+            assertTrue(response.body().contains("OperationOutcome"));
+            assertEquals(1, slow.getRequestCount());
+        }
+    }
+
+    private HttpResponse<byte[]> get(String path, String acceptEncoding) throws Exception {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create("http://localhost:" + port + path))
+                .header("Authorization", "Bearer " + accessToken);
+        if (acceptEncoding != null) {
+            builder.header("Accept-Encoding", acceptEncoding);
+        }
+        return http.send(builder.GET().build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private String body(HttpResponse<byte[]> response) throws IOException {
+        return response.headers().firstValue("Content-Encoding").orElse("").equals("gzip") ?
+                gunzip(response.body()) :
+                new String(response.body(), StandardCharsets.UTF_8);
+    }
+
+    private String gunzip(byte[] body) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package edu.ohsu.cmp.fhirproxy;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import edu.ohsu.cmp.fhirproxy.model.Registration;
+import edu.ohsu.cmp.fhirproxy.service.ReplicatedRegistrationStore;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs two proxy instances in one JVM, replicating registrations to one another
+ */
+class ReplicatedRegistrationTests {
+    private static final String SECRET = "test-replication-secret";
+
+    private static MockFhirServer upstream;
+    private static int portA;
+    private static int portB;
+    private static ConfigurableApplicationContext nodeA;
+    private static ConfigurableApplicationContext nodeB;
+    private static ObjectMapper objectMapper;
+
+    private final HttpClient http = HttpClient.newHttpClient();
+
+    @BeforeAll
+    static void start() throws IOException {
+        upstream = new MockFhirServer();
+        portA = freePort();
+        portB = freePort();
+        nodeA = startNode(portA, portB);
+        nodeB = startNode(portB, portA);
+        objectMapper = nodeA.getBean(ObjectMapper.class);
+    }
+
+    @AfterAll
+    static void stop() {
+        if (nodeA != null) nodeA.close();
+        if (nodeB != null) nodeB.close();
+        upstream.close();
+    }
+
+    @Test
+    void registrationWithOneNodeIsHonoredByTheOther() throws Exception {
+        String accessToken = register(portA, "read-through");
+
+        assertEquals(200, read(portB, accessToken).statusCode());
+        assertNotNull(nodeB.getBean(ReplicatedRegistrationStore.class).getLocal(accessToken));
+    }
+
+    @Test
+    void registrationsArePushedToPeers() throws Exception {
+        String accessToken = register(portA, "pushed");
+
+        ReplicatedRegistrationStore storeB = nodeB.getBean(ReplicatedRegistrationStore.class);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (storeB.getLocal(accessToken) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertNotNull(storeB.getLocal(accessToken));
+    }
+
+    @Test
+    void onlyTheFirstLookupOnANodeReachesItsPeers() throws Exception {
+        ReplicatedRegistrationStore storeB = nodeB.getBean(ReplicatedRegistrationStore.class);
+        String accessToken = register(portA, "hot-path");
+        long lookups = storeB.getPeerLookupCount();
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals(200, read(portB, accessToken).statusCode());
+        }
+        assertTrue(storeB.getPeerLookupCount() - lookups <= 1);
+    }
+
+    @Test
+    void removingAnUnknownRegistrationSendsNothingToPeers() {
+        try (ReplicatedRegistrationStore store = new ReplicatedRegistrationStore(List.of("http://localhost:" + portA),
+                SECRET, Duration.ofSeconds(1), Duration.ofSeconds(1), objectMapper)) {
+            assertNull(store.remove("not-registered-anywhere"));
+            assertEquals(0, store.getPendingChangeCount());
+        }
+    }
+
+    @Test
+    void sameClientIsIssuedTheSameTokenByEitherNode() throws Exception {
+        assertEquals(register(portA, "same-token"), register(portB, "same-token"));
+    }
+
+    @Test
+    void unknownTokenIsRejected() throws Exception {
+        assertEquals(401, read(portB, "not-registered-anywhere").statusCode());
+    }
+
+    @Test
+    void peerEndpointsRequireTheSharedSecret() throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + portA + ReplicatedRegistrationStore.PATH))
+                .header(ReplicatedRegistrationStore.SECRET_HEADER, "wrong")
+                .GET().build();
+        assertEquals(403, http.send(request, HttpResponse.BodyHandlers.discarding()).statusCode());
+    }
+
+    @Test
+    void startingNodeCopiesRegistrationsFromPeers() throws Exception {
+        String accessToken = register(portA, "bootstrap");
+
+        ConfigurableApplicationContext nodeC = startNode(freePort(), portA);
+        try {
+            assertNotNull(nodeC.getBean(ReplicatedRegistrationStore.class).getLocal(accessToken));
+        } finally {
+            nodeC.close();
+        }
+    }
+
+    private String register(int port, String clientId) throws Exception {
+        ClientInfo clientInfo = new ClientInfo(clientId, upstream.getBaseUrl(), "not-a-jwt", "123", "user");
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/register"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(clientInfo)))
+                .build();
+        HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, response.statusCode());
+        return objectMapper.readValue(response.body(), Registration.class).getAccessToken();
+    }
+
+    private HttpResponse<String> read(int port, String accessToken) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/proxy/Patient/replicated-1"))
+                .header("Authorization", "Bearer " + accessToken)
+                .GET().build();
+        return http.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static ConfigurableApplicationContext startNode(int port, int peerPort) {
+        return new SpringApplicationBuilder(FhirProxyApplication.class).run(
+                "--server.port=" + port,
+                "--registration.store=replicated",
+                "--registration.salt=test-salt",
+                "--registration.replication.peers=http://localhost:" + peerPort,
+                "--registration.replication.secret=" + SECRET,
+                "--registration.replication.timeout=1000");
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package edu.ohsu.cmp.fhirproxy;
+
+import ca.uhn.fhir.context.FhirContext;
+import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import edu.ohsu.cmp.fhirproxy.model.Registration;
+import edu.ohsu.cmp.fhirproxy.service.MetricsService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = { "cache.resource.enabled=false", "search.coalesce.enabled=false", "search.deadline=1500",
+                "upstream.deadline.min-samples=5", "upstream.deadline.min=300", "upstream.hedge.enabled=true",
+                "upstream.hedge.budget=1" })
+class UpstreamDeadlineTests {
+    private static MockFhirServer upstream;
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    @Autowired
+    private FhirContext fhirContext;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private String accessToken;
+
+    @BeforeAll
+    static void startUpstream() throws IOException {
+        upstream = new MockFhirServer();
+    }
+
+    @AfterAll
+    static void stopUpstream() {
+        upstream.close();
+    }
+
+    @BeforeEach
+    void register() {
+        upstream.pages(1).pageSize(10).latencyMillis(20).slowEvery(0, 0).errorRate(0);
+        ClientInfo clientInfo = new ClientInfo("deadline-client", upstream.getBaseUrl(), "not-a-jwt", "123", "user");
+        accessToken = restTemplate.postForObject("/register", clientInfo, Registration.class).getAccessToken();
+
+        // enough reads to establish the upstream server's latencies
+        for (int i = 0; i < 10; i++) {
+            assertEquals(HttpStatus.OK, get("/proxy/Patient/warm-" + i).getStatusCode());
+        }
+    }
+
+    @Test
+    void slowReadsAreHedged() {
+        upstream.slowEvery(2, 1500);
+
+        for (int i = 0; i < 6; i++) {
+            long start = System.currentTimeMillis();
+            assertEquals(HttpStatus.OK, get("/proxy/Patient/hedged-" + i).getStatusCode());
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue(elapsed < 1000, "read took " + elapsed + " ms");
+        }
+
+        double hedgesWon = meterRegistry.find(MetricsService.UPSTREAM_HEDGES).tag("winner", "hedge").counters()
+                .stream().mapToDouble(Counter::count).sum();
+        assertTrue(hedgesWon > 0);
+    }
+
+    @Test
+    void readsSlowerThanTheAdaptiveTimeoutFail() {
+        upstream.latencyMillis(3000);
+
+        long start = System.currentTimeMillis();
+        ResponseEntity<String> response = get("/proxy/Patient/too-slow");
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals(HttpStatus.GATEWAY_TIMEOUT, response.getStatusCode());
+        assertTrue(elapsed < 2500, "read took " + elapsed + " ms");
+    }
+
+    @Test
+    void searchPastTheDeadlineReturnsIncompleteResults() {
+        upstream.pages(8).latencyMillis(600);
+
+        long start = System.currentTimeMillis();
+        ResponseEntity<String> response = get("/proxy/Observation?code=deadline");
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertTrue(elapsed < 3000, "search took " + elapsed + " ms");
+
+        Bundle bundle = fhirContext.newJsonParser().parseResource(Bundle.class, response.getBody());
+        Bundle.BundleEntryComponent last = bundle.getEntry().get(bundle.getEntry().size() - 1);
+        assertTrue(last.getResource() instanceof OperationOutcome);
+        assertEquals(OperationOutcome.IssueType.INCOMPLETE, ((OperationOutcome) last.getResource()).getIssueFirstRep().getCode());
+        assertTrue(bundle.getEntry().size() - 1 < 80);
+    }
+
+    private ResponseEntity<String> get(String path) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setBearerAuth(accessToken);
+        return restTemplate.exchange(path, HttpMethod.GET, new HttpEntity<>(headers), String.class);
+    }
+}
@@ -0,0 +1,156 @@
+package edu.ohsu.cmp.fhirproxy;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import edu.ohsu.cmp.fhirproxy.model.RecordedExchange;
+import edu.ohsu.cmp.fhirproxy.model.Registration;
+import edu.ohsu.cmp.fhirproxy.service.UpstreamRecorder;
+import edu.ohsu.cmp.fhirproxy.util.UpstreamReplayServer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UpstreamRecordReplayTests {
+    private static final String BEARER_TOKEN = "upstream-secret-token";
+    private static final List<String> PATHS = List.of("/proxy/Patient/rr-1", "/proxy/Patient/rr-1/_history/2",
+            "/proxy/Observation?code=rr");
+
+    private final HttpClient http = HttpClient.newHttpClient();
+
+    @TempDir
+    Path archives;
+
+    @Test
+    void recordedTrafficIsReplayedWithoutTheUpstreamServer() throws Exception {
+        recordAndReplay();
+    }
+
+    @Test
+    void archivesClosedWhileIdleAreReplayedTogether() throws Exception {
+        // every exchange finds the registration's archive idle, closed, and starts another
+        List<Path> files = recordAndReplay("--upstream.record.idle-timeout=1");
+        assertTrue(files.size() > 1, files.size() + " archive(s)");
+    }
+
+    @Test
+    void archiveCutShortIsReplayedUpToWhereItEnds() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        String host = "localhost:" + port;
+        ObjectMapper objectMapper = new ObjectMapper();
+
+        // as a run that was killed leaves it: flushed exchanges, then part of one more, and no gzip trailer
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = new GZIPOutputStream(bytes, true);
+        for (String id : List.of("cut-1", "cut-2")) {
+            RecordedExchange exchange = new RecordedExchange("GET", host, "/fhir/Patient/" + id, null, 200,
+                    Map.of("Content-Type", "application/fhir+json"), 0,
+                    ("{\"resourceType\":\"Patient\",\"id\":\"" + id + "\"}").getBytes(StandardCharsets.UTF_8));
+            out.write((objectMapper.writeValueAsString(exchange) + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        out.write("{\"method\":\"GET\",\"host\":".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        Files.write(archives.resolve("0123456789abcdef-1" + UpstreamRecorder.ARCHIVE_SUFFIX), bytes.toByteArray());
+
+        try (UpstreamReplayServer replay = new UpstreamReplayServer(archives, port, 0)) {
+            for (String id : List.of("cut-1", "cut-2")) {
+                HttpRequest request = HttpRequest.newBuilder(URI.create("http://" + host + "/fhir/Patient/" + id))
+                        .GET().build();
+                HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+                assertEquals(200, response.statusCode(), response.body());
+                assertTrue(response.body().contains(id));
+            }
+            assertEquals(0, replay.getUnmatchedCount());
+        }
+    }
+
+    /**
+     * @return the archives recorded
+     */
+    private List<Path> recordAndReplay(String... recordArgs) throws Exception {
+        MockFhirServer upstream = new MockFhirServer().pages(3).pageSize(5);
+        String serverUrl = upstream.getBaseUrl();
+
+        List<String> recorded;
+        String[] args = Stream.concat(Stream.of("--upstream.record.enabled=true", "--upstream.record.path=" + archives),
+                Stream.of(recordArgs)).toArray(String[]::new);
+        try (upstream; ConfigurableApplicationContext node = startNode(args)) {
+            recorded = fetchAll(node, serverUrl);
+        }
+
+        List<Path> files;
+        try (Stream<Path> list = Files.list(archives)) {
+            files = list.toList();
+        }
+        assertFalse(files.isEmpty());
+        for (Path file : files) {
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+                assertFalse(new String(in.readAllBytes(), StandardCharsets.UTF_8).contains(BEARER_TOKEN));
+            }
+        }
+
+        // the upstream server is gone; everything must come from the recording
+        try (ConfigurableApplicationContext node = startNode("--upstream.replay.enabled=true",
+                "--upstream.replay.path=" + archives, "--upstream.replay.speedup=0")) {
+            assertEquals(recorded, fetchAll(node, serverUrl));
+            assertEquals(0, node.getBean(UpstreamReplayServer.class).getUnmatchedCount());
+        }
+        return files;
+    }
+
+    private List<String> fetchAll(ConfigurableApplicationContext node, String serverUrl) throws Exception {
+        int port = ((WebServerApplicationContext) node).getWebServer().getPort();
+        ObjectMapper objectMapper = node.getBean(ObjectMapper.class);
+
+        ClientInfo clientInfo = new ClientInfo("record-replay", serverUrl, BEARER_TOKEN, "123", "user");
+        HttpRequest register = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/register"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(clientInfo)))
+                .build();
+        String accessToken = objectMapper.readValue(http.send(register, HttpResponse.BodyHandlers.ofString()).body(),
+                Registration.class).getAccessToken();
+
+        return PATHS.stream().map(path -> {
+            HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + path))
+                    .header("Authorization", "Bearer " + accessToken)
+                    .GET().build();
+            try {
+                HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+                assertEquals(200, response.statusCode(), path + ": " + response.body());
+                return response.body();
+
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }).toList();
+    }
+
+    private static ConfigurableApplicationContext startNode(String... args) {
+        String[] all = Stream.concat(Stream.of("--server.port=0", "--cache.resource.enabled=false"), Stream.of(args))
+                .toArray(String[]::new);
+        return new SpringApplicationBuilder(FhirProxyApplication.class).run(all);
+    }
+}
@@ -0,0 +1,127 @@
+package edu.ohsu.cmp.fhirproxy;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import edu.ohsu.cmp.fhirproxy.model.Registration;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares how many slow upstream reads the proxy can have in flight on platform threads and on virtual threads,
+ * with the same (deliberately small) Tomcat thread limit
+ */
+class VirtualThreadLoadTests {
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreadLoadTests.class);
+
+    private static final int TOMCAT_THREADS = 10;
+    private static final int CONCURRENT_REQUESTS = 100;
+    private static final int UPSTREAM_LATENCY = 1000;
+
+    private static MockFhirServer upstream;
+
+    private final HttpClient http = HttpClient.newHttpClient();
+
+    @BeforeAll
+    static void startUpstream() throws IOException {
+        upstream = new MockFhirServer().latencyMillis(UPSTREAM_LATENCY);
+    }
+
+    @AfterAll
+    static void stopUpstream() {
+        upstream.close();
+    }
+
+    @Test
+    void virtualThreadsAreNotBoundByTheWorkerPool() throws Exception {
+        long platform;
+        try (ConfigurableApplicationContext node = startNode(false, 500)) {
+            runLoad(node, "platform (warm-up)", TOMCAT_THREADS);
+            platform = runLoad(node, "platform", CONCURRENT_REQUESTS);
+        }
+
+        long virtual;
+        try (ConfigurableApplicationContext node = startNode(true, 500)) {
+            runLoad(node, "virtual (warm-up)", TOMCAT_THREADS);
+            virtual = runLoad(node, "virtual", CONCURRENT_REQUESTS);
+            assertEquals(0, node.getBean(VirtualThreadPinningMonitor.class).getPinnedCount(),
+                    "virtual threads were pinned on the proxy path");
+        }
+
+        logger.info(CONCURRENT_REQUESTS + " concurrent reads at " + UPSTREAM_LATENCY + " ms upstream latency with " +
+                TOMCAT_THREADS + " Tomcat threads: platform " + platform + " ms, virtual " + virtual + " ms");
+
+        assertTrue(virtual * 2 < platform, "virtual " + virtual + " ms vs platform " + platform + " ms");
+    }
+
+    @Test
+    void waitingForAnExhaustedConnectionPoolDoesNotPin() throws Exception {
+        try (ConfigurableApplicationContext node = startNode(true, 2)) {
+            long elapsed = runLoad(node, "virtual, 2 upstream connections", 10);
+
+            // 10 reads through 2 connections take 5 rounds of upstream latency; a pinned waiter would stall the
+            // connection holders' carriers until the connection request timed out
+            assertTrue(elapsed < 5 * UPSTREAM_LATENCY + 3000, "took " + elapsed + " ms");
+            Thread.sleep(1500);
+            assertEquals(0, node.getBean(VirtualThreadPinningMonitor.class).getPinnedCount());
+        }
+    }
+
+    private long runLoad(ConfigurableApplicationContext node, String label, int requests) throws Exception {
+        int port = ((WebServerApplicationContext) node).getWebServer().getPort();
+        String accessToken = register(node, port);
+
+        long start = System.currentTimeMillis();
+        List<CompletableFuture<HttpResponse<Void>>> responses = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/proxy/Patient/load-" + i))
+                    .header("Authorization", "Bearer " + accessToken)
+                    .GET().build();
+            responses.add(http.sendAsync(request, HttpResponse.BodyHandlers.discarding()));
+        }
+        for (CompletableFuture<HttpResponse<Void>> response : responses) {
+            assertEquals(200, response.get().statusCode());
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        logger.info(label + ": " + requests + " reads in " + elapsed + " ms");
+        return elapsed;
+    }
+
+    private String register(ConfigurableApplicationContext node, int port) throws Exception {
+        ObjectMapper objectMapper = node.getBean(ObjectMapper.class);
+        ClientInfo clientInfo = new ClientInfo("load-test", upstream.getBaseUrl(), "not-a-jwt", "123", "user");
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/register"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(clientInfo)))
+                .build();
+        HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+        return objectMapper.readValue(response.body(), Registration.class).getAccessToken();
+    }
+
+    private static ConfigurableApplicationContext startNode(boolean virtualThreads, int upstreamConnections) {
+        return new SpringApplicationBuilder(FhirProxyApplication.class).run(
+                "--server.port=0",
+                "--server.tomcat.threads.max=" + TOMCAT_THREADS,
+                "--spring.threads.virtual.enabled=" + virtualThreads,
+                "--cache.resource.enabled=false",
+                "--upstream.pool.max-total=" + upstreamConnections,
+                "--upstream.pool.max-per-route=" + upstreamConnections);
+    }
+}
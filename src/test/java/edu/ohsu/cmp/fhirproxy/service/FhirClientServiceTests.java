@@ -0,0 +1,46 @@
+package edu.ohsu.cmp.fhirproxy.service;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+@SpringBootTest
+class FhirClientServiceTests {
+    private static final String SERVER_URL = "http://localhost:1/fhir";
+
+    @Autowired
+    private FhirClientService fhirClientService;
+
+    @Test
+    void clientIsBuiltOnceAndReused() {
+        ClientInfo clientInfo = new ClientInfo("reused", SERVER_URL, "token-1", "123", "user");
+        IGenericClient client = fhirClientService.getClient(clientInfo);
+        assertSame(client, fhirClientService.getClient(clientInfo));
+
+        // any registration for the same server, token and clientId gets the same client
+        assertSame(client, fhirClientService.getClient(new ClientInfo("reused", SERVER_URL, "token-1", "456", "other")));
+    }
+
+    @Test
+    void evictedClientIsRebuilt() {
+        ClientInfo clientInfo = new ClientInfo("evicted", SERVER_URL, "token-2", "123", "user");
+        IGenericClient client = fhirClientService.getClient(clientInfo);
+
+        fhirClientService.evict(clientInfo);
+        IGenericClient rebuilt = fhirClientService.getClient(clientInfo);
+        assertNotSame(client, rebuilt);
+        assertSame(rebuilt, fhirClientService.getClient(clientInfo));
+    }
+
+    @Test
+    void clientIdIsPartOfTheKey() {
+        IGenericClient first = fhirClientService.getClient(new ClientInfo("first", SERVER_URL, "token-3", "123", "user"));
+        IGenericClient second = fhirClientService.getClient(new ClientInfo("second", SERVER_URL, "token-3", "123", "user"));
+        assertNotSame(first, second);
+    }
+}
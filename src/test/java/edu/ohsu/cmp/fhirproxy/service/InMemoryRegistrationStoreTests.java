@@ -0,0 +1,128 @@
+package edu.ohsu.cmp.fhirproxy.service;
+
+import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import edu.ohsu.cmp.fhirproxy.model.RegisteredClient;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InMemoryRegistrationStoreTests {
+    private static final long FAR_FUTURE = Long.MAX_VALUE / 2;
+
+    private final InMemoryRegistrationStore store = new InMemoryRegistrationStore();
+
+    @Test
+    void putIfAbsentKeepsTheRegistrationAlreadyHeld() {
+        RegisteredClient first = registered("token", 1000);
+        assertNull(store.putIfAbsent(first));
+        assertEquals(first, store.putIfAbsent(registered("token", 2000)));
+        assertEquals(first, store.get("token"));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    void removedRegistrationsAreNotSweptLater() {
+        store.putIfAbsent(registered("token", 1000));
+        assertNotNull(store.remove("token"));
+        assertNull(store.remove("token"));
+
+        assertTrue(store.removeExpired(FAR_FUTURE).isEmpty());
+    }
+
+    @Test
+    void expiredRegistrationsAreSweptInExpiryOrder() {
+        store.putIfAbsent(registered("c", 3000));
+        store.putIfAbsent(registered("a", 1000));
+        store.putIfAbsent(registered("d", 4000));
+        store.putIfAbsent(registered("b", 2000));
+        // same expiry as b, ordered after it by token
+        store.putIfAbsent(registered("bb", 2000));
+
+        assertEquals(List.of("a"), tokens(store.removeExpired(1000)));
+        assertEquals(List.of("b", "bb", "c"), tokens(store.removeExpired(3500)));
+        assertEquals(List.of("d"), tokens(store.snapshot()));
+    }
+
+    @Test
+    void oldExpiryDoesNotSweepRenewedRegistration() {
+        store.putIfAbsent(registered("token", 1000));
+
+        // renewal, as RegistrationService does it
+        store.remove("token");
+        store.putIfAbsent(registered("token", 5000));
+
+        assertTrue(store.removeExpired(1000).isEmpty());
+        assertEquals(5000, store.get("token").expiresAt());
+        assertEquals(List.of("token"), tokens(store.removeExpired(5000)));
+    }
+
+    @Test
+    void sweepingAlongsideConcurrentPutsAndRenewals() throws InterruptedException {
+        int count = 2000;
+        for (int i = 0; i < count; i++) {
+            store.putIfAbsent(registered("renewed-" + i, 1));
+        }
+
+        AtomicBoolean done = new AtomicBoolean();
+        ConcurrentLinkedQueue<RegisteredClient> swept = new ConcurrentLinkedQueue<>();
+        Thread sweeper = Thread.ofPlatform().start(() -> {
+            while ( ! done.get() ) {
+                swept.addAll(store.removeExpired(1000));
+            }
+        });
+
+        CountDownLatch writers = new CountDownLatch(2);
+        Thread.ofPlatform().start(() -> {
+            for (int i = 0; i < count; i++) {
+                store.remove("renewed-" + i);
+                store.putIfAbsent(registered("renewed-" + i, FAR_FUTURE));
+            }
+            writers.countDown();
+        });
+        Thread.ofPlatform().start(() -> {
+            for (int i = 0; i < count; i++) {
+                store.putIfAbsent(registered("added-" + i, FAR_FUTURE));
+                store.putIfAbsent(registered("expiring-" + i, 1));
+            }
+            writers.countDown();
+        });
+
+        writers.await();
+        done.set(true);
+        sweeper.join();
+        swept.addAll(store.removeExpired(1000));
+
+        for (RegisteredClient registration : swept) {
+            assertTrue(registration.isExpired(1000), registration.accessToken() + " was swept unexpired");
+        }
+        for (int i = 0; i < count; i++) {
+            assertEquals(FAR_FUTURE, store.get("renewed-" + i).expiresAt());
+            assertNotNull(store.get("added-" + i));
+            assertNull(store.get("expiring-" + i));
+        }
+
+        // every registration held is indexed by its expiry exactly once
+        assertEquals(2 * count, store.size());
+        assertEquals(2 * count, store.removeExpired(FAR_FUTURE).size());
+        assertEquals(0, store.size());
+    }
+
+    private static RegisteredClient registered(String accessToken, long expiresAt) {
+        return new RegisteredClient(accessToken, new ClientInfo("client", "http://localhost/fhir", "bearer-" + accessToken,
+                "123", "user"), expiresAt);
+    }
+
+    private static List<String> tokens(List<RegisteredClient> registrations) {
+        List<String> tokens = new ArrayList<>();
+        for (RegisteredClient registration : registrations) {
+            tokens.add(registration.accessToken());
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,124 @@
+package edu.ohsu.cmp.fhirproxy.service;
+
+import edu.ohsu.cmp.fhirproxy.model.ClientInfo;
+import edu.ohsu.cmp.fhirproxy.model.RegisteredClient;
+import edu.ohsu.cmp.fhirproxy.util.CryptoUtil;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RegistrationJournalTests {
+    private static final Logger logger = LoggerFactory.getLogger(RegistrationJournalTests.class);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void replayRestoresSaltAndLiveRegistrations() throws IOException {
+        Path path = dir.resolve("registrations.journal");
+        SecretKey key = newKey();
+        long now = System.currentTimeMillis();
+
+        try (RegistrationJournal journal = new RegistrationJournal(path, key, false)) {
+            assertNull(journal.replay(now).salt());
+            journal.compact("salt", List.of());
+            journal.appendPut(registered("live", now + 60000));
+            journal.appendPut(registered("expired", now - 1));
+            journal.appendPut(registered("deleted", now + 60000));
+            journal.appendDelete("deleted");
+        }
+
+        try (RegistrationJournal journal = new RegistrationJournal(path, key, false)) {
+            RegistrationJournal.Replay replay = journal.replay(now);
+            assertEquals("salt", replay.salt());
+            assertEquals(1, replay.registrations().size());
+
+            RegisteredClient r = replay.registrations().get(0);
+            assertEquals("live", r.accessToken());
+            assertEquals(now + 60000, r.expiresAt());
+            assertEquals(registered("live", 0).clientInfo(), r.clientInfo());
+        }
+    }
+
+    @Test
+    void truncatedTailIsIgnored() throws IOException {
+        Path path = dir.resolve("registrations.journal");
+        SecretKey key = newKey();
+        long now = System.currentTimeMillis();
+
+        try (RegistrationJournal journal = new RegistrationJournal(path, key, false)) {
+            journal.compact("salt", List.of(registered("first", now + 60000)));
+            journal.appendPut(registered("second", now + 60000));
+        }
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(file.length() - 5);
+        }
+
+        try (RegistrationJournal journal = new RegistrationJournal(path, key, false)) {
+            RegistrationJournal.Replay replay = journal.replay(now);
+            assertEquals(1, replay.registrations().size());
+            assertEquals("first", replay.registrations().get(0).accessToken());
+        }
+    }
+
+    @Test
+    void wrongKeyIsRejected() throws IOException {
+        Path path = dir.resolve("registrations.journal");
+
+        try (RegistrationJournal journal = new RegistrationJournal(path, newKey(), false)) {
+            journal.compact("salt", List.of());
+        }
+
+        try (RegistrationJournal journal = new RegistrationJournal(path, newKey(), false)) {
+            assertThrows(IOException.class, () -> journal.replay(System.currentTimeMillis()));
+        }
+    }
+
+    @Test
+    void replayOneHundredThousandRegistrations() throws IOException {
+        Path path = dir.resolve("registrations.journal");
+        SecretKey key = newKey();
+        long now = System.currentTimeMillis();
+
+        List<RegisteredClient> registrations = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            registrations.add(registered("token-" + i, now + 3600000));
+        }
+        try (RegistrationJournal journal = new RegistrationJournal(path, key, false)) {
+            journal.compact("salt", registrations);
+        }
+
+        long start = System.currentTimeMillis();
+        try (RegistrationJournal journal = new RegistrationJournal(path, key, false)) {
+            RegistrationJournal.Replay replay = journal.replay(now);
+            journal.compact(replay.salt(), replay.registrations());
+            assertEquals(100000, replay.registrations().size());
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        logger.info("replayed and compacted 100000 registrations (" + Files.size(path) + " bytes) in " + elapsed + " ms");
+        assertTrue(elapsed < 30000, "startup replay took " + elapsed + " ms");
+    }
+
+    private static SecretKey newKey() {
+        return RegistrationJournal.decodeKey(Base64.getEncoder().encodeToString(CryptoUtil.randomBytes(32)));
+    }
+
+    private static RegisteredClient registered(String accessToken, long expiresAt) {
+        ClientInfo clientInfo = new ClientInfo("client-" + accessToken, "http://localhost/fhir",
+                "bearer-" + accessToken, "patient-1", null);
+        return new RegisteredClient(accessToken, clientInfo, expiresAt);
+    }
+}
@@ -0,0 +1,164 @@
+package edu.ohsu.cmp.fhirproxy.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import edu.ohsu.cmp.fhirproxy.MockFhirServer;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class SearchPagerTests {
+    private static final Logger logger = LoggerFactory.getLogger(SearchPagerTests.class);
+
+    private static MockFhirServer upstream;
+    private static IGenericClient client;
+    private static ExecutorService executor;
+
+    @BeforeAll
+    static void setup() throws IOException {
+        upstream = new MockFhirServer();
+        client = FhirContext.forR4Cached().newRestfulGenericClient(upstream.getBaseUrl());
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterAll
+    static void teardown() {
+        executor.shutdownNow();
+        upstream.close();
+    }
+
+    @Test
+    void returnsPagesInOrder() {
+        upstream.pages(6).pageSize(5).latencyMillis(0);
+        for (int depth : new int[] { 0, 1, 3 }) {
+            List<String> ids = new ArrayList<>();
+            SearchPager pager = open(null, depth);
+            while (pager.hasNext()) {
+                pager.next().getEntry().forEach(e -> ids.add(e.getResource().getIdElement().getIdPart()));
+            }
+            assertEquals(30, ids.size());
+            for (int i = 0; i < ids.size(); i++) {
+                assertEquals("obs-" + i, ids.get(i));
+            }
+        }
+    }
+
+    @Test
+    void neverFetchesPastPageLimit() {
+        upstream.pages(10).pageSize(5).latencyMillis(0);
+        int before = upstream.getRequestCount();
+
+        SearchPager pager = open(3, 5);
+        int pages = 0;
+        while (pager.hasNext()) {
+            pager.next();
+            pages++;
+        }
+
+        assertEquals(3, pages);
+        assertEquals(3, upstream.getRequestCount() - before);
+    }
+
+    @Test
+    void prefetchOverlapsUpstreamLatencyWithProcessing() throws InterruptedException {
+        upstream.pages(10).pageSize(5).latencyMillis(50);
+
+        timeSlowConsumer(1); // warm up connections
+        long sequential = timeSlowConsumer(0);
+        long prefetched = timeSlowConsumer(1);
+
+        logger.info("10 pages, 50 ms upstream latency, 50 ms processing per page: sequential=" + sequential +
+                " ms, prefetch depth 1=" + prefetched + " ms");
+    }
+
+    @Test
+    void offsetPagerReturnsPagesInOrder() {
+        upstream.pages(7).pageSize(5).latencyMillis(0);
+        Bundle first = searchFirstPage();
+        List<String> pageUrls = OffsetSearchPager.planPageUrls(first, null);
+        assertEquals(6, pageUrls.size());
+
+        List<String> ids = new ArrayList<>();
+        SearchPager pager = new OffsetSearchPager(client, first, pageUrls, 3, executor);
+        while (pager.hasNext()) {
+            pager.next().getEntry().forEach(e -> ids.add(e.getResource().getIdElement().getIdPart()));
+        }
+        assertEquals(35, ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals("obs-" + i, ids.get(i));
+        }
+    }
+
+    @Test
+    void offsetPlanRespectsPageLimit() {
+        upstream.pages(10).pageSize(5).latencyMillis(0);
+        assertEquals(2, OffsetSearchPager.planPageUrls(searchFirstPage(), 3).size());
+        assertEquals(0, OffsetSearchPager.planPageUrls(searchFirstPage(), 1).size());
+    }
+
+    @Test
+    void offsetPlanRequiresOffsetLinkAndTotal() {
+        Bundle bundle = new Bundle();
+        bundle.setTotal(100);
+        bundle.addLink().setRelation(Bundle.LINK_NEXT).setUrl("http://example.org/fhir?_getpages=abc&_cursor=xyz");
+        assertNull(OffsetSearchPager.planPageUrls(bundle, null));
+
+        bundle = new Bundle();
+        bundle.addLink().setRelation(Bundle.LINK_NEXT).setUrl("http://example.org/fhir?_getpages=abc&_getpagesoffset=10&_count=10");
+        assertNull(OffsetSearchPager.planPageUrls(bundle, null));
+    }
+
+    @Test
+    void offsetFanoutCutsSerialRoundTrips() {
+        upstream.pages(10).pageSize(5).latencyMillis(50);
+
+        searchFirstPage(); // warm up connections
+        long start = System.currentTimeMillis();
+        SearchPager pager = open(null, 0);
+        while (pager.hasNext()) {
+            pager.next();
+        }
+        long sequential = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        Bundle first = searchFirstPage();
+        pager = new OffsetSearchPager(client, first, OffsetSearchPager.planPageUrls(first, null), 4, executor);
+        while (pager.hasNext()) {
+            pager.next();
+        }
+        long fanout = System.currentTimeMillis() - start;
+
+        logger.info("10 pages, 50 ms upstream latency: sequential=" + sequential + " ms, offset fan-out (4)=" + fanout + " ms");
+    }
+
+    private long timeSlowConsumer(int prefetchDepth) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        SearchPager pager = open(null, prefetchDepth);
+        while (pager.hasNext()) {
+            pager.next();
+            Thread.sleep(50);
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    private Bundle searchFirstPage() {
+        return client.search().byUrl("Observation?code=1234-5").returnBundle(Bundle.class).execute();
+    }
+
+    private SearchPager open(Integer pageLimit, int prefetchDepth) {
+        Bundle first = searchFirstPage();
+        return new NextLinkSearchPager(client, first, pageLimit, prefetchDepth, executor);
+    }
+}
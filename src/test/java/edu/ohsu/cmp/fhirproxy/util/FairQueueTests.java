@@ -0,0 +1,63 @@
+package edu.ohsu.cmp.fhirproxy.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FairQueueTests {
+
+    @Test
+    void waitersAreAdmittedInProportionToWeight() throws Exception {
+        FairQueue queue = new FairQueue(1);
+        assertTrue(queue.acquire("holder", 1, 0));
+
+        BlockingQueue<String> admitted = new LinkedBlockingQueue<>();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            // a backlog from a, queued ahead of b, which weighs twice as much
+            List<String> flows = new ArrayList<>(List.of("a", "a", "a", "a", "b", "b", "b", "b"));
+            for (String flow : flows) {
+                int waiting = queue.getWaiting();
+                executor.submit(() -> {
+                    if (queue.acquire(flow, flow.equals("b") ? 2 : 1, 5000)) admitted.add(flow);
+                    return null;
+                });
+                while (queue.getWaiting() == waiting) {
+                    Thread.onSpinWait();
+                }
+            }
+
+            List<String> order = new ArrayList<>();
+            for (int i = 0; i < flows.size(); i++) {
+                queue.release();
+                order.add(admitted.poll(5, TimeUnit.SECONDS));
+            }
+
+            assertEquals(List.of("b", "a", "b", "b", "a", "b", "a", "a"), order);
+            assertEquals(0, queue.getWaiting());
+
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void waiterGivesUpAfterTimeout() throws Exception {
+        FairQueue queue = new FairQueue(1);
+        assertTrue(queue.acquire("holder", 1, 0));
+
+        assertFalse(queue.acquire("late", 1, 50));
+        assertEquals(0, queue.getWaiting());
+
+        queue.release();
+        assertTrue(queue.acquire("late", 1, 0));
+    }
+}
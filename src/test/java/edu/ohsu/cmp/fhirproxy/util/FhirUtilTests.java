@@ -0,0 +1,41 @@
+package edu.ohsu.cmp.fhirproxy.util;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import edu.ohsu.cmp.fhirproxy.model.FhirFormat;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FhirUtilTests {
+    private final FhirContext ctx = FhirContext.forR4Cached();
+
+    @Test
+    void parsersAreReusedAcrossVirtualThreads() throws InterruptedException {
+        AtomicReference<IParser> first = new AtomicReference<>();
+        AtomicReference<IParser> second = new AtomicReference<>();
+
+        Thread.ofVirtual().start(() -> {
+            try (FhirUtil.ParserLease lease = FhirUtil.borrowParser(ctx, FhirFormat.XML, true)) {
+                first.set(lease.parser());
+            }
+        }).join();
+        Thread.ofVirtual().start(() -> {
+            try (FhirUtil.ParserLease lease = FhirUtil.borrowParser(ctx, FhirFormat.XML, true)) {
+                second.set(lease.parser());
+            }
+        }).join();
+
+        assertSame(first.get(), second.get());
+    }
+
+    @Test
+    void borrowedParsersAreNotShared() {
+        try (FhirUtil.ParserLease a = FhirUtil.borrowParser(ctx, FhirFormat.JSON, true);
+             FhirUtil.ParserLease b = FhirUtil.borrowParser(ctx, FhirFormat.JSON, true)) {
+            assertNotSame(a.parser(), b.parser());
+        }
+    }
+}
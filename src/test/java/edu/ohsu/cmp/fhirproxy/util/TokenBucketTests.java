@@ -0,0 +1,40 @@
+package edu.ohsu.cmp.fhirproxy.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBucketTests {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    void burstIsAllowedThenRateApplies() {
+        long now = 1_000 * SECOND;
+        TokenBucket bucket = new TokenBucket(10, 5, now);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, bucket.tryAcquire(now));
+        }
+        long wait = bucket.tryAcquire(now);
+        assertEquals(SECOND / 10, wait);
+
+        // one token back every 100 ms
+        assertEquals(0, bucket.tryAcquire(now + wait));
+        assertTrue(bucket.tryAcquire(now + wait) > 0);
+    }
+
+    @Test
+    void idleBucketRefillsOnlyToBurst() {
+        long now = 1_000 * SECOND;
+        TokenBucket bucket = new TokenBucket(10, 3, now);
+        assertEquals(0, bucket.tryAcquire(now));
+
+        long later = now + 60 * SECOND;
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, bucket.tryAcquire(later));
+        }
+        assertTrue(bucket.tryAcquire(later) > 0);
+    }
+}
@@ -0,0 +1,89 @@
+package edu.ohsu.cmp.fhirproxy.util;
+
+import edu.ohsu.cmp.fhirproxy.exception.UpstreamUnavailableException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UpstreamGuardTests {
+    private static final long FAST = 10_000_000L;       // 10 ms
+    private static final long SLOW = 2_000_000_000L;    // 2 s, over the 1 s threshold
+
+    private static UpstreamGuard guard(int initialLimit, long openMillis) {
+        return new UpstreamGuard("test", new UpstreamGuard.Settings(initialLimit, 2, 20, 0.5, 1000,
+                10, 4, 0.5, openMillis));
+    }
+
+    @Test
+    void requestsOverTheLimitAreRejected() {
+        UpstreamGuard guard = guard(3, 1000);
+        List<UpstreamGuard.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            permits.add(guard.acquire());
+        }
+
+        UpstreamUnavailableException e = assertThrows(UpstreamUnavailableException.class, guard::acquire);
+        assertEquals(503, e.getStatusCode());
+        assertEquals(1, e.getRetryAfterSeconds());
+
+        permits.remove(0).release(200, FAST);
+        assertNotNull(guard.acquire());
+    }
+
+    @Test
+    void limitGrowsWhileUsedAndFastAndBacksOffWhenSlow() {
+        UpstreamGuard guard = guard(4, 1000);
+
+        List<UpstreamGuard.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            permits.add(guard.acquire());
+        }
+        for (UpstreamGuard.Permit permit : permits) {
+            permit.release(200, FAST);
+        }
+        // the first two completions found the limit at least half used
+        assertEquals(6, guard.getLimit());
+
+        guard.acquire().release(200, SLOW);
+        assertEquals(3, guard.getLimit());
+
+        guard.acquire().release(500, FAST);
+        assertEquals(2, guard.getLimit());
+    }
+
+    @Test
+    void breakerOpensOnFailuresAndClosesAfterASuccessfulTrial() throws Exception {
+        UpstreamGuard guard = guard(10, 200);
+
+        for (int i = 0; i < 4; i++) {
+            guard.acquire().release(i % 2 == 0 ? 503 : 200, FAST);
+        }
+        assertEquals(UpstreamGuard.State.OPEN, guard.getState());
+        assertThrows(UpstreamUnavailableException.class, guard::acquire);
+
+        Thread.sleep(250);
+        assertEquals(UpstreamGuard.State.HALF_OPEN, guard.getState());
+        UpstreamGuard.Permit trial = guard.acquire();
+        // only one trial at a time
+        assertThrows(UpstreamUnavailableException.class, guard::acquire);
+
+        trial.release(200, FAST);
+        assertEquals(UpstreamGuard.State.CLOSED, guard.getState());
+        guard.acquire().release(200, FAST);
+    }
+
+    @Test
+    void failedTrialReopensTheBreaker() throws Exception {
+        UpstreamGuard guard = guard(10, 200);
+        for (int i = 0; i < 4; i++) {
+            guard.acquire().release(0, FAST);
+        }
+
+        Thread.sleep(250);
+        guard.acquire().release(0, FAST);
+        assertEquals(UpstreamGuard.State.OPEN, guard.getState());
+    }
+}